@@ -0,0 +1,67 @@
+package com.rsw.auth.stream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dalms on 11/20/16.
+ *
+ * Local stand-in for a REST delegate service: reads the posted multipart body to its end, as fast as it comes,
+ * and answers with an empty result.
+ */
+class StubDelegateServer implements Closeable {
+
+    private static final byte[] RESULT = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    StubDelegateServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/file", this::handle);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/file";
+    }
+
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream body = exchange.getRequestBody()) {
+            int numRead;
+            while ((numRead = body.read(buffer)) > 0) {
+                bytesReceived.addAndGet(numRead);
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, RESULT.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(RESULT);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.rsw.auth.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/20/16.
+ *
+ * End to end time of one multipart upload through UploadController: the application runs with its own
+ * configuration, except that its two REST delegates point at local stub servers and dedup is off (every upload
+ * has the same content, which would otherwise be answered from the cache).  The body is generated as it is sent,
+ * so payloads larger than the heap work too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadPipelineBenchmark {
+
+    private static final String BOUNDARY = "----benchmark-boundary";
+    private static final int SEND_SIZE = 64 * 1024;
+
+    @Param({"65536", "16777216", "268435456"})
+    public long payloadBytes;
+
+    @Param({"blocking", "async"})
+    public String transport;
+
+    private StubDelegateServer green;
+    private StubDelegateServer blue;
+    private ConfigurableApplicationContext context;
+    private URL uploadUrl;
+    private final byte[] chunk = new byte[SEND_SIZE];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        green = new StubDelegateServer(16);
+        blue = new StubDelegateServer(16);
+        context = SpringApplication.run(StreamSplitterApplication.class,
+                "--server.port=0",
+                "--dedup.enabled=false",
+                "--delegate.services.green.url=" + green.getUrl(),
+                "--delegate.services.green.transport=" + transport,
+                "--delegate.services.blue.url=" + blue.getUrl(),
+                "--delegate.services.blue.transport=" + transport);
+        int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+        uploadUrl = new URL("http://127.0.0.1:" + port + "/upload");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        green.close();
+        blue.close();
+    }
+
+    @Benchmark
+    public int upload() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) uploadUrl.openConnection();
+        connection.setDoOutput(true);
+        connection.setInstanceFollowRedirects(false);
+        connection.setChunkedStreamingMode(SEND_SIZE);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"payload.bin\""
+                    + "\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (long remaining = payloadBytes; remaining > 0; remaining -= chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, remaining));
+            }
+            out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        // answered once every delegate is done with the file
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream()
+                : connection.getErrorStream()) {
+            if (in != null) {
+                while (in.read(chunk) > 0) {
+                    // discard
+                }
+            }
+        }
+        if (status != HttpURLConnection.HTTP_MOVED_TEMP) {
+            throw new IllegalStateException("Upload failed with " + status);
+        }
+        return status;
+    }
+}
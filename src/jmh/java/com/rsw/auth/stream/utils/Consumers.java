@@ -0,0 +1,50 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumer loops shared by the splitter benchmarks.
+ *
+ * Created by DAlms on 11/20/16.
+ */
+final class Consumers {
+
+    private static final int READ_SIZE = 64 * 1024;
+
+    private Consumers() {
+    }
+
+    /**
+     * Reads the stream to its end as fast as possible.
+     * @return the number of bytes read
+     */
+    static long drain(InputStream stream) throws IOException {
+        return drain(stream, 0);
+    }
+
+    /**
+     * Reads the stream to its end, pausing after every read like a consumer with a slow downstream.
+     * @return the number of bytes read
+     */
+    static long drain(InputStream stream, long pauseMicros) throws IOException {
+        byte[] buffer = new byte[READ_SIZE];
+        long total = 0;
+        int numRead;
+        try {
+            while ((numRead = stream.read(buffer, 0, buffer.length)) > 0) {
+                total += numRead;
+                if (pauseMicros > 0) {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(pauseMicros));
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,243 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUpload;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.UploadContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to take a binary file out of a multipart body, with {@link MultipartParser} against commons-fileupload's
+ * item stream: the parse alone, with the file data thrown away, and the parse feeding a splitter with one
+ * consumer, the parser through {@link StreamSplitter#offer} the way AsyncUpload does it and commons-fileupload as
+ * the input stream the splitter reads.  The body is random bytes held in memory, read in request buffer sized
+ * pieces.
+ *
+ * Created by DAlms on 11/23/16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+
+    private static final String BOUNDARY = "----benchmark-boundary-7MA4YWxkTrZu0gW";
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int RING_SLOTS = 4;
+
+    @Param({"1048576", "67108864"})
+    public int payloadBytes;
+
+    private byte[] body;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] file = new byte[payloadBytes];
+        new Random(25).nextBytes(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payloadBytes + 512);
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"payload.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(file);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        body = out.toByteArray();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long parser() throws IOException {
+        CountingHandler handler = new CountingHandler();
+        parse(new MultipartParser(BOUNDARY, handler), null);
+        return handler.bytes;
+    }
+
+    @Benchmark
+    public long commonsFileUpload() throws IOException, FileUploadException {
+        return Consumers.drain(openFile());
+    }
+
+    @Benchmark
+    public long parserToSplitter() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(CHUNK_SIZE, RING_SLOTS);
+        InputStream stream = splitter.addConsumer("consumer");
+        Future<Long> drained = executor.submit(() -> Consumers.drain(stream));
+        SplitterHandler handler = new SplitterHandler(splitter);
+        parse(new MultipartParser(BOUNDARY, handler), handler);
+        splitter.close();
+        return drained.get();
+    }
+
+    @Benchmark
+    public long commonsFileUploadToSplitter() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(openFile(), CHUNK_SIZE, RING_SLOTS);
+        InputStream stream = splitter.addConsumer("consumer");
+        Future<Long> drained = executor.submit(() -> Consumers.drain(stream));
+        splitter.readToEof();
+        return drained.get();
+    }
+
+    /**
+     * Feeds the body to the parser like AsyncUpload does, waiting for room in the splitter whenever it is full.
+     */
+    private void parse(MultipartParser parser, SplitterHandler splitterHandler) throws IOException {
+        InputStream input = new ByteArrayInputStream(body);
+        byte[] buffer = new byte[READ_SIZE];
+        int start = 0;
+        int end = 0;
+        while (!parser.isComplete()) {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int numRead = input.read(buffer, end, buffer.length - end);
+            if (numRead < 0) {
+                throw new IOException("Body ended before its closing boundary");
+            }
+            end += numRead;
+            start += parser.feed(buffer, start, end - start);
+            while (splitterHandler != null && splitterHandler.awaitWritable()) {
+                start += parser.feed(buffer, start, end - start);
+            }
+        }
+    }
+
+    private InputStream openFile() throws IOException, FileUploadException {
+        FileItemIterator items = new FileUpload().getItemIterator(new BodyContext());
+        while (items.hasNext()) {
+            FileItemStream item = items.next();
+            if (!item.isFormField()) {
+                return item.openStream();
+            }
+        }
+        throw new IOException("No file in the body");
+    }
+
+    private static class CountingHandler implements MultipartParser.Handler {
+
+        private long bytes;
+
+        @Override
+        public boolean partStarted(MultipartParser.Part part) {
+            return true;
+        }
+
+        @Override
+        public int partData(byte[] b, int off, int len) {
+            bytes += len;
+            return len;
+        }
+
+        @Override
+        public void partEnded() {
+        }
+    }
+
+    private static class SplitterHandler implements MultipartParser.Handler {
+
+        private final StreamSplitter splitter;
+        private final Semaphore writable = new Semaphore(0);
+        private boolean full;
+
+        SplitterHandler(StreamSplitter splitter) {
+            this.splitter = splitter;
+        }
+
+        @Override
+        public boolean partStarted(MultipartParser.Part part) {
+            return true;
+        }
+
+        @Override
+        public int partData(byte[] b, int off, int len) throws IOException {
+            int taken = splitter.offer(b, off, len);
+            full = taken < len;
+            return taken;
+        }
+
+        @Override
+        public void partEnded() {
+        }
+
+        /**
+         * @return true once a full splitter has room again, false if it was not full
+         */
+        boolean awaitWritable() throws IOException {
+            if (!full) {
+                return false;
+            }
+            full = false;
+            splitter.onWritable(writable::release);
+            try {
+                writable.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the splitter", ex);
+            }
+            return true;
+        }
+    }
+
+    private class BodyContext implements UploadContext {
+
+        @Override
+        public long contentLength() {
+            return body.length;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return StandardCharsets.ISO_8859_1.name();
+        }
+
+        @Override
+        public String getContentType() {
+            return "multipart/form-data; boundary=" + BOUNDARY;
+        }
+
+        @Override
+        @Deprecated
+        public int getContentLength() {
+            return body.length;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(body);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time until the fast consumers of a split are done while one consumer pauses after every read, under each way of
+ * dealing with it: blocking the split on it, detaching it, or spilling what it has not read yet to disk.  The
+ * slow consumer is cut off once the fast ones are through, so only their time counts.
+ *
+ * Created by DAlms on 11/20/16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SlowConsumerBenchmark {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int RING_SLOTS = 4;
+    private static final int FAST_CONSUMERS = 3;
+    private static final long DETACH_AFTER_MS = 1;
+
+    @Param({"block", "detach", "spill"})
+    public String policy;
+
+    @Param({"16777216"})
+    public long payloadBytes;
+
+    @Param({"2000"})
+    public long slowPauseMicros;
+
+    private ExecutorService executor;
+    private File spillDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executor = Executors.newFixedThreadPool(FAST_CONSUMERS + 1);
+        spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long split() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(new SyntheticInputStream(payloadBytes), CHUNK_SIZE, RING_SLOTS);
+        switch (policy) {
+            case "detach":
+                splitter.setSlowConsumerPolicy(SlowConsumerPolicies.detach(DETACH_AFTER_MS, TimeUnit.MILLISECONDS));
+                break;
+            case "spill":
+                // fast consumers spill the odd chunk too, which must not leave the slow one short
+                splitter.setSpillOptions(new SpillOptions(spillDirectory, 2 * payloadBytes));
+                break;
+            default:
+                splitter.setSlowConsumerPolicy(SlowConsumerPolicies.block());
+        }
+        List<Future<Long>> fast = new ArrayList<>();
+        for (int ix = 0; ix < FAST_CONSUMERS; ix++) {
+            InputStream stream = splitter.addConsumer("fast-" + ix);
+            fast.add(executor.submit(() -> Consumers.drain(stream)));
+        }
+        InputStream slowStream = splitter.addConsumer("slow");
+        Future<Long> slow = executor.submit(() -> Consumers.drain(slowStream, slowPauseMicros));
+
+        splitter.readToEof();
+        long total = 0;
+        for (Future<Long> future : fast) {
+            total += future.get();
+        }
+        // not part of what is measured, but must not hold up the next split
+        IOUtils.closeQuietly(slowStream);
+        try {
+            slow.get();
+        } catch (ExecutionException ex) {
+            // detached or cut off
+        }
+        return total;
+    }
+}
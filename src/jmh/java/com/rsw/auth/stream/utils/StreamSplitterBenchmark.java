@@ -0,0 +1,86 @@
+package com.rsw.auth.stream.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to split a synthetic payload to consumers that drain as fast as they can, over chunk sizes, consumer counts
+ * and payload sizes from a KB to a GB, with and without the buffer pool.  Run with the gc profiler (the jmh task
+ * does) for the allocation rate per split; divide the payload by the time for the throughput.
+ *
+ * Created by DAlms on 11/20/16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamSplitterBenchmark {
+
+    private static final int RING_SLOTS = 4;
+
+    @Param({"4096", "65536", "262144"})
+    public int chunkSize;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int consumers;
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long payloadBytes;
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private ExecutorService executor;
+    private BufferPool bufferPool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executor = Executors.newFixedThreadPool(consumers);
+        bufferPool = new BufferPool(1024, 4 * 1024 * 1024, 64L * 1024 * 1024, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long split() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(new SyntheticInputStream(payloadBytes), chunkSize, RING_SLOTS);
+        if (pooled) {
+            splitter.setBufferPool(bufferPool);
+        }
+        List<Future<Long>> drained = new ArrayList<>();
+        for (int ix = 0; ix < consumers; ix++) {
+            InputStream stream = splitter.addConsumer("consumer-" + ix);
+            drained.add(executor.submit(() -> Consumers.drain(stream)));
+        }
+        splitter.readToEof();
+        long total = 0;
+        for (Future<Long> future : drained) {
+            total += future.get();
+        }
+        return total;
+    }
+}
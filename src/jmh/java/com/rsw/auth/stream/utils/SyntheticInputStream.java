@@ -0,0 +1,37 @@
+package com.rsw.auth.stream.utils;
+
+import java.io.InputStream;
+
+/**
+ * Produces a fixed number of bytes without touching memory, so the producer side of a split costs next to nothing
+ * and the benchmarks measure the splitter rather than its input.
+ *
+ * Created by DAlms on 11/20/16.
+ */
+class SyntheticInputStream extends InputStream {
+
+    private long remaining;
+
+    SyntheticInputStream(long length) {
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() {
+        if (remaining <= 0) {
+            return -1;
+        }
+        remaining--;
+        return 0;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int numRead = (int) Math.min(len, remaining);
+        remaining -= numRead;
+        return numRead;
+    }
+}
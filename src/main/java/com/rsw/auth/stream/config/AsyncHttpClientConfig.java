@@ -0,0 +1,77 @@
+package com.rsw.auth.stream.config;
+
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/14/16.
+ *
+ * The non-blocking HTTP client of delegates with the async transport.  A few I/O reactor threads serve every call
+ * in flight, whatever their number.  Both beans are lazy, so the reactor only starts if a delegate uses it.
+ */
+@Configuration
+public class AsyncHttpClientConfig {
+
+    @Value("${http-async-client.io-threads:2}")
+    private int ioThreads;
+
+    @Value("${http-async-client.max-total:256}")
+    private int maxTotal;
+
+    @Value("${http-async-client.default-max-per-route:16}")
+    private int defaultMaxPerRoute;
+
+    @Value("${http-client.connection-ttl-ms:300000}")
+    private long connectionTtlMs;
+
+    @Value("${http-client.keep-alive-ms:30000}")
+    private long keepAliveMs;
+
+    @Bean
+    @Lazy
+    public PoolingNHttpClientConnectionManager asyncConnectionManager() throws IOReactorException {
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(reactorConfig), null,
+                RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+                        .build(),
+                null, null, connectionTtlMs, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(defaultMaxPerRoute);
+        return connectionManager;
+    }
+
+    @Bean
+    @Lazy
+    public CloseableHttpAsyncClient asyncHttpClient(PoolingNHttpClientConnectionManager asyncConnectionManager) {
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                            .getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? Math.min(keepAlive, keepAliveMs) : keepAliveMs;
+                })
+                .build();
+        client.start();
+        return client;
+    }
+}
@@ -0,0 +1,32 @@
+package com.rsw.auth.stream.config;
+
+import com.rsw.auth.stream.utils.BufferPool;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Created by dalms on 11/08/16.
+ *
+ * One buffer pool shared by every upload, so splitter buffers are recycled rather than allocated per request
+ */
+@Configuration
+public class BufferPoolConfig {
+
+    @Value("${buffer-pool.min-class-size:1024}")
+    private int minClassSize;
+
+    @Value("${buffer-pool.max-class-size:4194304}")
+    private int maxClassSize;
+
+    @Value("${buffer-pool.max-pooled-bytes:67108864}")
+    private long maxPooledBytes;
+
+    @Value("${buffer-pool.direct:false}")
+    private boolean direct;
+
+    @Bean
+    public BufferPool bufferPool() {
+        return new BufferPool(minClassSize, maxClassSize, maxPooledBytes, direct);
+    }
+}
@@ -0,0 +1,36 @@
+package com.rsw.auth.stream.config;
+
+import com.rsw.auth.stream.utils.ConsumerWatchdog;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/17/16.
+ *
+ * One watchdog thread enforcing the delegates' stall and duration limits over every upload.  The consumers it
+ * watches and those it timed out so far are published under splitter.watchdog.*
+ */
+@Configuration
+public class ConsumerWatchdogConfig {
+
+    @Value("${splitter.watchdog.tick-ms:100}")
+    private long tickMs;
+
+    @Bean
+    public ConsumerWatchdog consumerWatchdog() {
+        return new ConsumerWatchdog(tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Bean
+    public PublicMetrics consumerWatchdogMetrics(ConsumerWatchdog watchdog) {
+        return () -> Arrays.<Metric<?>>asList(
+                new Metric<>("splitter.watchdog.watched", watchdog.getWatched()),
+                new Metric<>("splitter.watchdog.timeouts", watchdog.getTimeouts()));
+    }
+}
@@ -0,0 +1,206 @@
+package com.rsw.auth.stream.config;
+
+import com.rsw.auth.stream.service.AbstractStreamDelegate;
+import com.rsw.auth.stream.service.AsyncRestStreamDelegate;
+import com.rsw.auth.stream.service.DelegateRegistry;
+import com.rsw.auth.stream.service.DelegateSettings;
+import com.rsw.auth.stream.service.InstanceBalancer;
+import com.rsw.auth.stream.service.PooledStreamDelegate;
+import com.rsw.auth.stream.service.RestStreamDelegate;
+import com.rsw.auth.stream.service.ScanEnginePool;
+import com.rsw.auth.stream.service.ScanStreamDelegate;
+import com.rsw.auth.stream.service.StreamDelegate;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/11/16.
+ *
+ * Registers a REST delegate for every entry under delegate.services, so adding a downstream service is a matter
+ * of configuration.  A delegate with the blocking transport runs on its own bounded thread pool (see
+ * {@link PooledStreamDelegate}), one with the async transport on the shared non-blocking client (see
+ * {@link AsyncRestStreamDelegate}); either way it gets max-connections on the route of each instance of its service
+ * in the connection pool.
+ * A delegate of type scan streams files to its scan engines instead (see {@link ScanStreamDelegate}), through a
+ * pool of max-connections per engine of its own.
+ *
+ * Queue depth, active threads, pool size, queue wait and rejections of every thread pool are published as actuator
+ * metrics under delegate.executor.(name).*, calls in flight and rejections of async delegates under
+ * delegate.calls.(name).*, the connection usage of every delegate under delegate.connections.(name).* and the
+ * latency percentiles of its calls under delegate.latency.(name).*; the calls in flight, calls, failures and
+ * moving average latency of each instance of a REST delegate under delegate.instances.(name).(host-port).* and
+ * its hedged calls under delegate.hedges.(name).*
+ *
+ * Delegates with retries wait out their backoff, and hedging delegates their hedge delay, on one shared scheduler
+ * thread; the calls themselves run like the first one did.
+ */
+@Configuration
+@EnableConfigurationProperties(DelegateProperties.class)
+public class DelegateConfig {
+
+    @Bean
+    public DelegateRegistry delegateRegistry(DelegateProperties properties, HttpClient httpClient,
+                                             InstrumentedConnectionManager connectionManager,
+                                             ObjectProvider<CloseableHttpAsyncClient> asyncHttpClient,
+                                             ObjectProvider<PoolingNHttpClientConnectionManager> asyncConnectionManager,
+                                             ScheduledExecutorService delegateScheduler) {
+        DelegateRegistry registry = new DelegateRegistry();
+        for (Map.Entry<String, DelegateSettings> entry : properties.getServices().entrySet()) {
+            String name = entry.getKey();
+            DelegateSettings settings = entry.getValue();
+            // a prefix is read straight from the splitter's input and cannot be replayed
+            Assert.isTrue(settings.getPrefixBytes() == 0
+                            || settings.getTransforms().isEmpty() && settings.getRetries() == 0,
+                    "Delegate " + name + " cannot transform or retry a prefix of the file");
+            if (settings.getType() == DelegateSettings.Type.SCAN) {
+                ScanEnginePool pool = new ScanEnginePool(settings.getEngines(), settings.getMaxConnections(),
+                        settings.getTimeoutMs());
+                registry.register(new ScanStreamDelegate(name, settings, pool));
+            } else if (settings.getTransport() == DelegateSettings.Transport.ASYNC) {
+                // transformed and replayed splitter streams only support blocking reads
+                Assert.isTrue(settings.getTransforms().isEmpty(),
+                        "Delegate " + name + " cannot transform its stream with the async transport");
+                Assert.isTrue(settings.getRetries() == 0,
+                        "Delegate " + name + " cannot retry with the async transport");
+                // a hedge is sent from a copy of the file, made while the blocking call reads it
+                Assert.isTrue(settings.getHedgeMaxBytes() == 0,
+                        "Delegate " + name + " cannot hedge with the async transport");
+                AsyncRestStreamDelegate delegate =
+                        new AsyncRestStreamDelegate(name, settings, asyncHttpClient.getObject());
+                for (InstanceBalancer.Instance instance : delegate.getBalancer().getInstances()) {
+                    asyncConnectionManager.getObject().setMaxPerRoute(instance.getRoute(),
+                            delegate.getMaxConnections());
+                }
+                registry.register(delegate);
+            } else {
+                RestStreamDelegate delegate = new RestStreamDelegate(name, settings, httpClient, delegateScheduler);
+                for (InstanceBalancer.Instance instance : delegate.getBalancer().getInstances()) {
+                    connectionManager.setMaxPerRoute(instance.getRoute(), delegate.getMaxConnections());
+                }
+                registry.register(delegate);
+            }
+        }
+        return registry;
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService delegateScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "delegate-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Bean
+    public PublicMetrics delegateMetrics(DelegateRegistry registry, InstrumentedConnectionManager connectionManager,
+                                         ObjectProvider<PoolingNHttpClientConnectionManager> asyncConnectionManager) {
+        return () -> {
+            Collection<Metric<?>> metrics = new ArrayList<>();
+            for (StreamDelegate delegate : registry.getDelegates()) {
+                if (delegate instanceof AbstractStreamDelegate) {
+                    PipelineMetricsConfig.addMetrics(metrics, "delegate.latency." + delegate.getName(),
+                            ((AbstractStreamDelegate) delegate).getLatencyMs(), "ms");
+                }
+                if (delegate instanceof PooledStreamDelegate) {
+                    addMetrics(metrics, "delegate.executor." + delegate.getName(),
+                            (PooledStreamDelegate) delegate);
+                }
+                if (delegate instanceof RestStreamDelegate) {
+                    RestStreamDelegate rest = (RestStreamDelegate) delegate;
+                    addMetrics(metrics, "delegate.connections." + delegate.getName(),
+                            rest.getBalancer(), connectionManager::getStats);
+                    addMetrics(metrics, "delegate.instances." + delegate.getName(), rest.getBalancer());
+                    metrics.add(new Metric<>("delegate.hedges." + delegate.getName() + ".started",
+                            rest.getHedges()));
+                    metrics.add(new Metric<>("delegate.hedges." + delegate.getName() + ".won",
+                            rest.getHedgesWon()));
+                }
+                if (delegate instanceof ScanStreamDelegate) {
+                    addMetrics(metrics, "delegate.connections." + delegate.getName(),
+                            ((ScanStreamDelegate) delegate).getPool().getStats());
+                }
+                if (delegate instanceof AsyncRestStreamDelegate) {
+                    AsyncRestStreamDelegate async = (AsyncRestStreamDelegate) delegate;
+                    metrics.add(new Metric<>("delegate.calls." + delegate.getName() + ".in-flight",
+                            async.getCallsInFlight()));
+                    metrics.add(new Metric<>("delegate.calls." + delegate.getName() + ".rejected",
+                            async.getRejected()));
+                    addMetrics(metrics, "delegate.connections." + delegate.getName(),
+                            async.getBalancer(), asyncConnectionManager.getObject()::getStats);
+                    addMetrics(metrics, "delegate.instances." + delegate.getName(), async.getBalancer());
+                }
+            }
+            return metrics;
+        };
+    }
+
+    private static void addMetrics(Collection<Metric<?>> metrics, String prefix, PooledStreamDelegate delegate) {
+        ThreadPoolExecutor pool = delegate.getExecutor().getThreadPoolExecutor();
+        DelegateExecutorStats stats = delegate.getExecutorStats();
+        metrics.add(new Metric<>(prefix + ".active", pool.getActiveCount()));
+        metrics.add(new Metric<>(prefix + ".pool.size", pool.getPoolSize()));
+        metrics.add(new Metric<>(prefix + ".queue.size", pool.getQueue().size()));
+        metrics.add(new Metric<>(prefix + ".queue.remaining", pool.getQueue().remainingCapacity()));
+        metrics.add(new Metric<>(prefix + ".started", stats.getStarted()));
+        metrics.add(new Metric<>(prefix + ".rejected", stats.getRejected()));
+        metrics.add(new Metric<>(prefix + ".wait.mean-ms", stats.getMeanWait(TimeUnit.MILLISECONDS)));
+        metrics.add(new Metric<>(prefix + ".wait.max-ms", stats.getMaxWait(TimeUnit.MILLISECONDS)));
+    }
+
+    /**
+     * Adds the connection usage summed over the routes of every instance.
+     */
+    private static void addMetrics(Collection<Metric<?>> metrics, String prefix, InstanceBalancer balancer,
+                                   Function<HttpRoute, PoolStats> statsOfRoute) {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        for (InstanceBalancer.Instance instance : balancer.getInstances()) {
+            PoolStats stats = statsOfRoute.apply(instance.getRoute());
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max += stats.getMax();
+        }
+        addMetrics(metrics, prefix, new PoolStats(leased, pending, available, max));
+    }
+
+    private static void addMetrics(Collection<Metric<?>> metrics, String prefix, InstanceBalancer balancer) {
+        for (InstanceBalancer.Instance instance : balancer.getInstances()) {
+            String instancePrefix = prefix + "."
+                    + instance.getRoute().getTargetHost().toHostString().replaceAll("[^A-Za-z0-9_-]+", "-");
+            metrics.add(new Metric<>(instancePrefix + ".outstanding", instance.getOutstanding()));
+            metrics.add(new Metric<>(instancePrefix + ".calls", instance.getCalls()));
+            metrics.add(new Metric<>(instancePrefix + ".failures", instance.getFailures()));
+            metrics.add(new Metric<>(instancePrefix + ".ewma-ms", instance.getEwma(TimeUnit.MILLISECONDS)));
+        }
+    }
+
+    private static void addMetrics(Collection<Metric<?>> metrics, String prefix, PoolStats stats) {
+        metrics.add(new Metric<>(prefix + ".leased", stats.getLeased()));
+        metrics.add(new Metric<>(prefix + ".available", stats.getAvailable()));
+        metrics.add(new Metric<>(prefix + ".pending", stats.getPending()));
+        metrics.add(new Metric<>(prefix + ".max", stats.getMax()));
+    }
+}
@@ -0,0 +1,65 @@
+package com.rsw.auth.stream.config;
+
+import org.springframework.core.task.TaskDecorator;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dalms on 11/11/16.
+ *
+ * Measures how long delegate calls wait in their executor's queue and counts the ones turned away.
+ * Plugged into a ThreadPoolTaskExecutor as both its task decorator and its rejection handler.
+ */
+public class DelegateExecutorStats implements TaskDecorator, RejectedExecutionHandler {
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    @Override
+    public Runnable decorate(Runnable runnable) {
+        long queued = System.nanoTime();
+        return () -> {
+            recordWait(System.nanoTime() - queued);
+            runnable.run();
+        };
+    }
+
+    /**
+     * Counts the rejection and fails the submission, which the caller sees as a TaskRejectedException.
+     */
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+        rejected.incrementAndGet();
+        throw new RejectedExecutionException("Delegate executor saturated: " + executor.getActiveCount()
+                + " active, " + executor.getQueue().size() + " queued");
+    }
+
+    public long getStarted() {
+        return started.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public double getMeanWait(TimeUnit unit) {
+        long count = started.get();
+        return count == 0 ? 0 : (double) unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS) / count;
+    }
+
+    public long getMaxWait(TimeUnit unit) {
+        return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private void recordWait(long nanos) {
+        started.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+}
@@ -0,0 +1,26 @@
+package com.rsw.auth.stream.config;
+
+import com.rsw.auth.stream.service.DelegateSettings;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by dalms on 11/12/16.
+ *
+ * The delegates to register at startup, keyed by name: delegate.services.(name).url and so on
+ */
+@ConfigurationProperties(prefix = "delegate")
+public class DelegateProperties {
+
+    private Map<String, DelegateSettings> services = new LinkedHashMap<>();
+
+    public Map<String, DelegateSettings> getServices() {
+        return services;
+    }
+
+    public void setServices(Map<String, DelegateSettings> services) {
+        this.services = services;
+    }
+}
@@ -0,0 +1,44 @@
+package com.rsw.auth.stream.config;
+
+import com.google.common.cache.CacheStats;
+import com.rsw.auth.stream.service.DelegateResultCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/15/16.
+ *
+ * One cache of delegate results shared by every upload; its size and hit rate are published under dedup.cache.*
+ */
+@Configuration
+public class DelegateResultCacheConfig {
+
+    @Value("${dedup.max-entries:10000}")
+    private long maxEntries;
+
+    @Value("${dedup.ttl-minutes:60}")
+    private long ttlMinutes;
+
+    @Bean
+    public DelegateResultCache delegateResultCache() {
+        return new DelegateResultCache(maxEntries, ttlMinutes, TimeUnit.MINUTES);
+    }
+
+    @Bean
+    public PublicMetrics delegateResultCacheMetrics(DelegateResultCache cache) {
+        return () -> {
+            CacheStats stats = cache.stats();
+            return Arrays.<Metric<?>>asList(
+                    new Metric<>("dedup.cache.size", cache.size()),
+                    new Metric<>("dedup.cache.hits", stats.hitCount()),
+                    new Metric<>("dedup.cache.misses", stats.missCount()),
+                    new Metric<>("dedup.cache.evictions", stats.evictionCount()));
+        };
+    }
+}
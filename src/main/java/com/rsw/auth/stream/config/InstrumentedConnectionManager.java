@@ -0,0 +1,81 @@
+package com.rsw.auth.stream.config;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dalms on 11/13/16.
+ *
+ * Pooling connection manager that measures how long requests wait to lease a connection and counts the ones that
+ * gave up waiting, which is where an undersized pool shows: a delegate waiting for a connection still holds its
+ * stream of the split, and with it the upload.
+ */
+public class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+    private final AtomicLong totalLeaseNanos = new AtomicLong();
+    private final AtomicLong maxLeaseNanos = new AtomicLong();
+
+    /**
+     * @param timeToLive how long a connection may be reused at most, 0 or less for no limit
+     */
+    public InstrumentedConnectionManager(long timeToLive, TimeUnit unit) {
+        super(timeToLive, unit);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+        ConnectionRequest request = super.requestConnection(route, state);
+        long requested = System.nanoTime();
+        return new ConnectionRequest() {
+            @Override
+            public HttpClientConnection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                try {
+                    HttpClientConnection connection = request.get(timeout, unit);
+                    recordLease(System.nanoTime() - requested);
+                    return connection;
+                } catch (ConnectionPoolTimeoutException ex) {
+                    leaseTimeouts.incrementAndGet();
+                    throw ex;
+                }
+            }
+
+            @Override
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    public long getLeases() {
+        return leases.get();
+    }
+
+    public long getLeaseTimeouts() {
+        return leaseTimeouts.get();
+    }
+
+    public double getMeanLeaseWait(TimeUnit unit) {
+        long count = leases.get();
+        return count == 0 ? 0 : (double) unit.convert(totalLeaseNanos.get(), TimeUnit.NANOSECONDS) / count;
+    }
+
+    public long getMaxLeaseWait(TimeUnit unit) {
+        return unit.convert(maxLeaseNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private void recordLease(long nanos) {
+        leases.incrementAndGet();
+        totalLeaseNanos.addAndGet(nanos);
+        maxLeaseNanos.accumulateAndGet(nanos, Math::max);
+    }
+}
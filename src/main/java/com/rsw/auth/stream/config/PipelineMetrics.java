@@ -0,0 +1,128 @@
+package com.rsw.auth.stream.config;
+
+import com.rsw.auth.stream.utils.ConsumerStats;
+import com.rsw.auth.stream.utils.Histogram;
+import com.rsw.auth.stream.utils.SplitterStats;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dalms on 11/19/16.
+ *
+ * Distributions over every file split so far: where the producer's time went, how full its ring was and how
+ * fast and how stalled each consumer was, by consumer name.  A file is recorded once, when it is done, so none of
+ * this touches the split itself.
+ */
+public class PipelineMetrics {
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Map<SplitterStats.Limit, AtomicLong> limitedBy = new EnumMap<>(SplitterStats.Limit.class);
+    private final Histogram readWaitMs = new Histogram();
+    private final Histogram writeBlockMs = new Histogram();
+    private final Histogram occupancyPct = new Histogram();
+    private final Histogram bytesPerSecond = new Histogram();
+    private final ConcurrentMap<String, ConsumerMetrics> consumers = new ConcurrentHashMap<>();
+
+    public PipelineMetrics() {
+        for (SplitterStats.Limit limit : SplitterStats.Limit.values()) {
+            limitedBy.put(limit, new AtomicLong());
+        }
+    }
+
+    public void record(SplitterStats splitter, List<ConsumerStats> consumerStats) {
+        files.incrementAndGet();
+        bytes.addAndGet(splitter.getBytesIn());
+        limitedBy.get(splitter.getLimitedBy()).incrementAndGet();
+        readWaitMs.record(splitter.getReadWait(TimeUnit.MILLISECONDS));
+        writeBlockMs.record(splitter.getWriteBlock(TimeUnit.MILLISECONDS));
+        occupancyPct.record(Math.round(100 * splitter.getMeanOccupancy() / splitter.getSlotCount()));
+        bytesPerSecond.record(splitter.getBytesPerSecond());
+        for (ConsumerStats stats : consumerStats) {
+            ConsumerMetrics consumer = consumers.computeIfAbsent(metricName(stats.getName()),
+                    name -> new ConsumerMetrics());
+            consumer.stallMs.record(stats.getStallTime(TimeUnit.MILLISECONDS));
+            consumer.bytesPerSecond.record(stats.getBytesPerSecond());
+        }
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return files whose split was mostly held up by the given side
+     */
+    public long getLimitedBy(SplitterStats.Limit limit) {
+        return limitedBy.get(limit).get();
+    }
+
+    /**
+     * @return per file, time the producer waited for the client
+     */
+    public Histogram getReadWaitMs() {
+        return readWaitMs;
+    }
+
+    /**
+     * @return per file, time the producer was blocked on a full ring
+     */
+    public Histogram getWriteBlockMs() {
+        return writeBlockMs;
+    }
+
+    /**
+     * @return per file, mean ring occupancy in percent of its slots
+     */
+    public Histogram getOccupancyPct() {
+        return occupancyPct;
+    }
+
+    /**
+     * @return per file, the rate the producer took in the file at
+     */
+    public Histogram getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return by consumer name, with characters that do not belong in a metric name replaced
+     */
+    public Map<String, ConsumerMetrics> getConsumers() {
+        return consumers;
+    }
+
+    private static String metricName(String consumer) {
+        return consumer.replaceAll("[^A-Za-z0-9_-]+", "-");
+    }
+
+    public static class ConsumerMetrics {
+
+        private final Histogram stallMs = new Histogram();
+        private final Histogram bytesPerSecond = new Histogram();
+
+        /**
+         * @return per file, time the consumer held up the producer
+         */
+        public Histogram getStallMs() {
+            return stallMs;
+        }
+
+        /**
+         * @return per file, the rate the consumer read it at
+         */
+        public Histogram getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+    }
+}
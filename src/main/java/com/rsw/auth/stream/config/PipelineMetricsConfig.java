@@ -0,0 +1,66 @@
+package com.rsw.auth.stream.config;
+
+import com.rsw.auth.stream.utils.Histogram;
+import com.rsw.auth.stream.utils.SplitterStats;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Created by dalms on 11/19/16.
+ *
+ * Splitter distributions over every upload, published under splitter.* as percentiles: the producer's wait for
+ * the client (read-wait) and for the consumers (write-block), ring occupancy and throughput, and each consumer's
+ * stall time and read rate under splitter.consumer.(name).*
+ */
+@Configuration
+public class PipelineMetricsConfig {
+
+    static final double[] PERCENTILES = {50, 95, 99};
+
+    @Bean
+    public PipelineMetrics pipelineMetrics() {
+        return new PipelineMetrics();
+    }
+
+    @Bean
+    public PublicMetrics pipelineMetricsPublisher(PipelineMetrics pipeline) {
+        return () -> {
+            Collection<Metric<?>> metrics = new ArrayList<>();
+            metrics.add(new Metric<>("splitter.files", pipeline.getFiles()));
+            metrics.add(new Metric<>("splitter.bytes", pipeline.getBytes()));
+            for (SplitterStats.Limit limit : SplitterStats.Limit.values()) {
+                metrics.add(new Metric<>("splitter.limited-by." + limit.name().toLowerCase(Locale.ROOT),
+                        pipeline.getLimitedBy(limit)));
+            }
+            addMetrics(metrics, "splitter.read-wait", pipeline.getReadWaitMs(), "ms");
+            addMetrics(metrics, "splitter.write-block", pipeline.getWriteBlockMs(), "ms");
+            addMetrics(metrics, "splitter.occupancy", pipeline.getOccupancyPct(), "pct");
+            addMetrics(metrics, "splitter.throughput", pipeline.getBytesPerSecond(), "bps");
+            for (Map.Entry<String, PipelineMetrics.ConsumerMetrics> entry : pipeline.getConsumers().entrySet()) {
+                String prefix = "splitter.consumer." + entry.getKey();
+                addMetrics(metrics, prefix + ".stall", entry.getValue().getStallMs(), "ms");
+                addMetrics(metrics, prefix + ".throughput", entry.getValue().getBytesPerSecond(), "bps");
+            }
+            return metrics;
+        };
+    }
+
+    /**
+     * Adds the count, the percentiles and the max of a histogram, e.g. prefix.p99-ms
+     */
+    static void addMetrics(Collection<Metric<?>> metrics, String prefix, Histogram histogram, String unit) {
+        metrics.add(new Metric<>(prefix + ".count", histogram.getCount()));
+        for (double percentile : PERCENTILES) {
+            metrics.add(new Metric<>(prefix + ".p" + (int) percentile + "-" + unit,
+                    histogram.getPercentile(percentile)));
+        }
+        metrics.add(new Metric<>(prefix + ".max-" + unit, histogram.getMax()));
+    }
+}
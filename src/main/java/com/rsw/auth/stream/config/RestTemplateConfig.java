@@ -1,42 +1,91 @@
 package com.rsw.auth.stream.config;
 
-import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
-import org.springframework.scheduling.annotation.EnableAsync;
-import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by dalms on 10/26/16.
+ *
+ * The HttpClient shared by every delegate.  Its connection pool is sized by http-client.*,
+ * delegates size their own route on top (see {@link DelegateConfig}).  Connections are reused for at most
+ * connection-ttl-ms and for no longer than the server's keep-alive (keep-alive-ms when it gives none), expired and
+ * idle ones are evicted in the background, and connections idle for a while are validated before being leased
+ * again, so a delegate does not stream into a socket the server has already dropped.
+ *
+ * Pool usage and lease waits are published as actuator metrics under http.pool.*
  */
 @Configuration
-@EnableAsync
 public class RestTemplateConfig {
 
+    @Value("${http-client.max-total:64}")
+    private int maxTotal;
+
+    @Value("${http-client.default-max-per-route:16}")
+    private int defaultMaxPerRoute;
+
+    @Value("${http-client.connection-ttl-ms:300000}")
+    private long connectionTtlMs;
+
+    @Value("${http-client.keep-alive-ms:30000}")
+    private long keepAliveMs;
+
+    @Value("${http-client.idle-timeout-ms:30000}")
+    private long idleTimeoutMs;
+
+    @Value("${http-client.validate-after-inactivity-ms:2000}")
+    private int validateAfterInactivityMs;
+
     @Bean
-    public RestTemplate restTemplate(HttpComponentsClientHttpRequestFactory clientHttpRequestFactory) {
-        RestTemplate template = new RestTemplate();
-        template.setRequestFactory(clientHttpRequestFactory);
+    public InstrumentedConnectionManager connectionManager() {
+        InstrumentedConnectionManager connectionManager =
+                new InstrumentedConnectionManager(connectionTtlMs, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(defaultMaxPerRoute);
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityMs);
+        return connectionManager;
+    }
 
-        return template;
+    @Bean
+    public CloseableHttpClient httpClient(InstrumentedConnectionManager connectionManager) {
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                            .getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? Math.min(keepAlive, keepAliveMs) : keepAliveMs;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
     }
 
     @Bean
-    public HttpComponentsClientHttpRequestFactory clientHttpRequestFactory() {
-        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
-
-        factory.setReadTimeout(10000);
-        factory.setConnectTimeout(10000);
-        // setting this to false is how we ensure the RestTemplate carries the stream through without fully uploading
-        factory.setBufferRequestBody(false);
-
-        HttpClientBuilder builder = HttpClientBuilder.create()
-                .setMaxConnTotal(10)
-                .setMaxConnPerRoute(10);
-        HttpClient client = builder.build();
-        factory.setHttpClient(client);
-        return factory;
+    public PublicMetrics httpPoolMetrics(InstrumentedConnectionManager connectionManager) {
+        return () -> {
+            Collection<Metric<?>> metrics = new ArrayList<>();
+            PoolStats stats = connectionManager.getTotalStats();
+            metrics.add(new Metric<>("http.pool.leased", stats.getLeased()));
+            metrics.add(new Metric<>("http.pool.available", stats.getAvailable()));
+            metrics.add(new Metric<>("http.pool.pending", stats.getPending()));
+            metrics.add(new Metric<>("http.pool.max", stats.getMax()));
+            metrics.add(new Metric<>("http.pool.lease.count", connectionManager.getLeases()));
+            metrics.add(new Metric<>("http.pool.lease.timeouts", connectionManager.getLeaseTimeouts()));
+            metrics.add(new Metric<>("http.pool.lease.wait.mean-ms",
+                    connectionManager.getMeanLeaseWait(TimeUnit.MILLISECONDS)));
+            metrics.add(new Metric<>("http.pool.lease.wait.max-ms",
+                    connectionManager.getMaxLeaseWait(TimeUnit.MILLISECONDS)));
+            return metrics;
+        };
     }
 }
@@ -0,0 +1,48 @@
+package com.rsw.auth.stream.config;
+
+import com.rsw.auth.stream.service.UploadAdmission;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+
+/**
+ * Created by dalms on 11/21/16.
+ *
+ * One admission budget of buffer memory over every upload (see {@link UploadAdmission}); what is reserved and
+ * how many uploads were admitted, queued and rejected is published under upload.admission.*
+ */
+@Configuration
+public class UploadAdmissionConfig {
+
+    @Value("${upload.admission.budget-bytes:0}")
+    private long budgetBytes;
+
+    @Value("${upload.admission.max-queued:0}")
+    private int maxQueued;
+
+    @Value("${upload.admission.queue-timeout-ms:10000}")
+    private long queueTimeoutMs;
+
+    @Value("${upload.admission.retry-after-seconds:5}")
+    private long retryAfterSeconds;
+
+    @Bean
+    public UploadAdmission uploadAdmission() {
+        return new UploadAdmission(budgetBytes, maxQueued, queueTimeoutMs, retryAfterSeconds);
+    }
+
+    @Bean
+    public PublicMetrics uploadAdmissionMetrics(UploadAdmission admission) {
+        return () -> Arrays.<Metric<?>>asList(
+                new Metric<>("upload.admission.budget-bytes", admission.getBudgetBytes()),
+                new Metric<>("upload.admission.reserved-bytes", admission.getReservedBytes()),
+                new Metric<>("upload.admission.waiting", admission.getWaiting()),
+                new Metric<>("upload.admission.admitted", admission.getAdmitted()),
+                new Metric<>("upload.admission.queued", admission.getQueued()),
+                new Metric<>("upload.admission.rejected", admission.getRejected()));
+    }
+}
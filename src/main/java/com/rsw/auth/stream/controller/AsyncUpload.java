@@ -0,0 +1,282 @@
+package com.rsw.auth.stream.controller;
+
+import com.google.common.base.Stopwatch;
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.rsw.auth.stream.utils.MultipartParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Created by dalms on 11/10/16.
+ *
+ * Drives one multipart upload from non-blocking (Servlet 3.1) reads of the request body, so no thread is held while
+ * the client is slow to send or the delegates are slow to take the data.
+ *
+ * Reading happens in short pumps, run by the container whenever data is available or by the splitter of the
+ * current file once it has room again; a pump reads and parses until the request has nothing to offer right now,
+ * the splitter is full, or the next file has to wait for a free slot (up to max-parallel-parts files at a time).
+ * Pumps never overlap, a pump requested while another is running simply makes that one go round again.
+ *
+ * A client error, a timeout or a malformed body cancels the upload's cancellation context, which fails the
+ * splitters and aborts the delegate calls still in flight; a cancellation from elsewhere (a failed delegate) stops
+ * the reading in turn, so the rest of a doomed upload is not read for nothing.
+ */
+class AsyncUpload implements ReadListener, MultipartParser.Handler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncUpload.class);
+
+    static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+
+    private final HttpServletRequest request;
+    private final CancellationContext cancellation;
+    private final Runnable onCancel;
+    private final DeferredResult<String> result;
+    private final BiFunction<MultipartParser.Part, Runnable, PartUpload> partStarter;
+    private final MultipartParser parser;
+    private final Semaphore partPermits;
+    private final List<PartUpload> parts = new CopyOnWriteArrayList<>();
+    private final byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+    private final AtomicInteger pumps = new AtomicInteger();
+    // the parsing of the request plus every file still in flight
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicBoolean parseDone = new AtomicBoolean();
+    private final Stopwatch timer = Stopwatch.createStarted();
+
+    private volatile Throwable failure;
+    private volatile boolean waitingForPermit;
+    private volatile boolean sawFile;
+    private ServletInputStream input;
+    private AsyncContext asyncContext;
+    private PartUpload current;
+    private int start;
+    private int end;
+    private boolean paused;
+
+    /**
+     * @param partStarter starts the splitter and delegates of a file, given its headers and what to run once the
+     *                    delegates are done with it; returns null if no delegate wants the file
+     */
+    AsyncUpload(HttpServletRequest request, String boundary, int maxParallelParts, DeferredResult<String> result,
+                CancellationContext cancellation, BiFunction<MultipartParser.Part, Runnable, PartUpload> partStarter) {
+        this.request = request;
+        this.cancellation = cancellation;
+        this.result = result;
+        this.partStarter = partStarter;
+        this.parser = new MultipartParser(boundary, this);
+        this.partPermits = new Semaphore(maxParallelParts);
+        this.onCancel = () -> {
+            failure = cancellation.getCause();
+            pump();
+        };
+        cancellation.onCancel(onCancel);
+    }
+
+    /**
+     * Starts reading; the request must be in async mode by now.
+     */
+    void start() throws IOException {
+        asyncContext = request.getAsyncContext();
+        input = request.getInputStream();
+        input.setReadListener(this);
+    }
+
+    /**
+     * Gives up on the rest of the request once its deferred result timed out.
+     */
+    void timeout() {
+        cancellation.cancel(new TimeoutException("Upload timed out after " + timer.elapsed(TimeUnit.MILLISECONDS)
+                + " ms"));
+    }
+
+    @Override
+    public void onDataAvailable() {
+        pump();
+    }
+
+    @Override
+    public void onAllDataRead() {
+        pump();
+    }
+
+    @Override
+    public void onError(Throwable ex) {
+        cancellation.cancel(ex);
+    }
+
+    @Override
+    public boolean partStarted(MultipartParser.Part part) {
+        if (part.isFormField()) {
+            current = null;
+            return true;
+        }
+        // advertise first, so a file finishing right after a failed tryAcquire resumes us
+        waitingForPermit = true;
+        if (!partPermits.tryAcquire()) {
+            paused = true;
+            return false;
+        }
+        waitingForPermit = false;
+        sawFile = true;
+        pending.incrementAndGet();
+        current = partStarter.apply(part, this::partDone);
+        if (current == null) {
+            // skipped, its data is dropped like that of a form field
+            partDone();
+        } else {
+            parts.add(current);
+        }
+        return true;
+    }
+
+    @Override
+    public int partData(byte[] b, int off, int len) {
+        if (current == null) {
+            // form fields are not split
+            return len;
+        }
+        try {
+            int taken = current.getSplitter().offer(b, off, len);
+            if (taken < len) {
+                paused = true;
+                current.getSplitter().onWritable(this::resume);
+            }
+            return taken;
+        } catch (IOException ex) {
+            // the split failed, the delegates have been told; skip the rest of this file
+            LOG.error("Split of file {} failed, skipping the rest of it", current.getName(), ex);
+            current.splitFailed(ex);
+            current.release();
+            current = null;
+            return len;
+        }
+    }
+
+    @Override
+    public void partEnded() {
+        if (current != null) {
+            current.endInput();
+            current.release();
+            current = null;
+        }
+    }
+
+    private void resume() {
+        if (!parseDone.get()) {
+            asyncContext.start(this::pump);
+        }
+    }
+
+    private void pump() {
+        if (pumps.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            try {
+                read();
+            } catch (IOException | RuntimeException ex) {
+                failure = ex;
+            }
+            if (failure != null && !parseDone.get()) {
+                abandon(failure);
+            }
+        } while (pumps.decrementAndGet() != 0);
+    }
+
+    private void read() throws IOException {
+        while (failure == null && !parseDone.get()) {
+            paused = false;
+            if (start < end) {
+                start += parser.feed(buffer, start, end - start);
+                if (parser.isComplete()) {
+                    endOfParse();
+                    return;
+                }
+                if (paused) {
+                    return;
+                }
+            }
+            if (start == end) {
+                start = 0;
+                end = 0;
+            } else if (end == buffer.length) {
+                if (start == 0) {
+                    throw new IOException("Multipart headers do not fit the upload buffer");
+                }
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (input.isFinished()) {
+                throw new IOException("Upload ended before the closing multipart boundary");
+            }
+            if (!input.isReady()) {
+                // the container calls onDataAvailable once there is more
+                return;
+            }
+            int numRead = input.read(buffer, end, buffer.length - end);
+            if (numRead > 0) {
+                end += numRead;
+            }
+        }
+    }
+
+    private void abandon(Throwable cause) {
+        if (cancellation.cancel(cause)) {
+            LOG.error("Problem parsing multipart file upload request", cause);
+        } else {
+            LOG.warn("Upload cancelled, skipping the rest of it: {}", cancellation.getCause().toString());
+        }
+        if (current != null) {
+            current.getSplitter().abort(new IOException("Upload failed", cause));
+            current.release();
+            current = null;
+        }
+        endOfParse();
+    }
+
+    private void endOfParse() {
+        if (parseDone.compareAndSet(false, true) && pending.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    private void partDone() {
+        partPermits.release();
+        if (waitingForPermit) {
+            resume();
+        }
+        if (pending.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        cancellation.remove(onCancel);
+        for (PartUpload part : parts) {
+            part.logResults();
+        }
+        timer.stop();
+        LOG.info("Overall delegate and upload time for {} file(s) was {} ms.", parts.size(),
+                timer.elapsed(TimeUnit.MILLISECONDS));
+        if (!sawFile && failure == null) {
+            result.setErrorResult(new IllegalArgumentException("No Stream on upload"));
+        } else {
+            result.setResult(UploadController.UPLOAD_VIEW);
+        }
+    }
+}
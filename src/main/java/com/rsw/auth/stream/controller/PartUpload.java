@@ -0,0 +1,403 @@
+package com.rsw.auth.stream.controller;
+
+import com.google.common.io.BaseEncoding;
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.service.DelegateResultCache;
+import com.rsw.auth.stream.service.StreamDelegate;
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.rsw.auth.stream.utils.ConsumerTimeoutException;
+import com.rsw.auth.stream.utils.StreamSplitter;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by dalms on 11/10/16.
+ *
+ * One file of an upload on its way through its splitter and the delegates
+ *
+ * With a result cache the splitter digests the file on the way.  Delegates that finish are cached under that
+ * digest, prefix delegates that finish before the file is read in full as soon as it is known.  Once the file has
+ * been read in full, delegates still busy with it are checked against the cache: with cancelInFlight those that
+ * already have a result for the same content are cut off and their cached result used instead, otherwise they run
+ * to the end like any other.
+ *
+ * A result its delegate says settles the file (see {@link StreamDelegate#stopsOthers}), such as a threat verdict
+ * of a fail-fast virus scan, cancels the other delegates still busy with the file, cached or not.  A delegate sent
+ * only a prefix of the file answers as soon as it has read that, so its rejection of the file cuts off the others
+ * while they are still taking it in.
+ *
+ * The file shares the cancellation context of its upload: once the upload is cancelled the delegates still busy
+ * with the file are cancelled too.  With cancelOnDelegateError a failing delegate, or a failure feeding the
+ * splitter, cancels the whole upload in turn.
+ *
+ * Every delegate call has a cancellation context of its own, a child of the upload's, so that one delegate can be
+ * cut off without the others: when its splitter stream runs past its limits (see the consumer limits of
+ * {@link StreamDelegate}) or the whole upload runs out of time, the call is aborted and reported as timed out
+ * rather than failed.  A timed out delegate does not cancel the upload, whatever cancelOnDelegateError says.
+ *
+ * A delegate with retries reads the file as a replayable splitter consumer: when its call fails, it is sent the
+ * file again from the splitter's journal after a backoff, while the other delegates and the upload go on.  Only
+ * once it is out of retries does its failure count, e.g. for cancelOnDelegateError.  Delegates that were cut off
+ * (cancelled, timed out, settled or cached) are not retried.  Every delegate acknowledges the journal once it is
+ * done with the file, so the splitter can drop it.
+ */
+class PartUpload {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartUpload.class);
+
+    private final String name;
+    private final StreamSplitter splitter;
+    private final Runnable onDone;
+    // whoever feeds the splitter plus every started delegate
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final Map<String, Future<DelegateResult>> delegateExecs = new ConcurrentHashMap<>();
+    private final Map<String, InputStream> delegateStreams = new ConcurrentHashMap<>();
+    private final Map<String, CancellationContext> delegateCalls = new ConcurrentHashMap<>();
+    private final Map<String, DelegateResult> cachedResults = new ConcurrentHashMap<>();
+    // results of delegates that finished before the digest was known
+    private final Map<String, DelegateResult> uncachedResults = new ConcurrentHashMap<>();
+    private final Set<String> cancelled = ConcurrentHashMap.newKeySet();
+    private final Set<String> timedOut = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> retried = new ConcurrentHashMap<>();
+    private volatile String settledBy;
+    private CancellationContext cancellation;
+    private boolean cancelOnDelegateError;
+    private Runnable cancelAll;
+    private DelegateResultCache resultCache;
+    private boolean cancelInFlight;
+    private String expectedDigest;
+    private ScheduledExecutorService retryScheduler;
+
+    PartUpload(String name, StreamSplitter splitter, Runnable onDone) {
+        this.name = name;
+        this.splitter = splitter;
+        this.onDone = onDone;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    StreamSplitter getSplitter() {
+        return splitter;
+    }
+
+    /**
+     * Caches the results of this file's delegates; the splitter must digest its input.
+     * @param expectedDigest the digest the client sent along with the file, checked once the file is read
+     */
+    void setResultCache(DelegateResultCache resultCache, boolean cancelInFlight, String expectedDigest) {
+        this.resultCache = resultCache;
+        this.cancelInFlight = cancelInFlight;
+        this.expectedDigest = expectedDigest;
+    }
+
+    /**
+     * Ties the file to the cancellation context of its upload, before any delegate starts.
+     * @param cancelOnDelegateError a delegate failure cancels the upload, rather than just failing that delegate
+     */
+    void setCancellation(CancellationContext cancellation, boolean cancelOnDelegateError) {
+        this.cancellation = cancellation;
+        this.cancelOnDelegateError = cancelOnDelegateError;
+        this.cancelAll = () -> {
+            for (Map.Entry<String, Future<DelegateResult>> entry : delegateExecs.entrySet()) {
+                if (!entry.getValue().isDone() && !cachedResults.containsKey(entry.getKey())) {
+                    // the upload's own deadline counts as a timeout of whoever was still at it
+                    (cancellation.getCause() instanceof TimeoutException ? timedOut : cancelled).add(entry.getKey());
+                    cancel(entry.getKey(), cancellation.getCause());
+                }
+            }
+        };
+        cancellation.onCancel(cancelAll);
+    }
+
+    /**
+     * Lets delegates added as replayable consumers of the splitter retry, waiting out their backoff on the given
+     * scheduler.
+     */
+    void setRetryScheduler(ScheduledExecutorService retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    void addCachedResult(StreamDelegate delegate, DelegateResult result) {
+        cachedResults.put(delegate.getName(), result);
+        if (delegate.stopsOthers(result)) {
+            cancelOthers(delegate.getName(), result);
+        }
+    }
+
+    /**
+     * @param call the cancellation context the delegate was sent the file with, a child of the upload's
+     */
+    void addDelegateExec(StreamDelegate delegate, InputStream stream, CancellationContext call,
+                         ListenableFuture<DelegateResult> exec) {
+        pending.incrementAndGet();
+        track(delegate, stream, call, exec);
+    }
+
+    /**
+     * Cuts off a delegate whose splitter stream ran past its limits; its stream already fails, the call itself
+     * may be stuck on the delegate's socket.  Runs on the splitter's watchdog thread.
+     */
+    void consumerTimedOut(ConsumerTimeoutException ex) {
+        Future<DelegateResult> exec = delegateExecs.get(ex.getConsumer());
+        if (exec != null && !exec.isDone() && !cachedResults.containsKey(ex.getConsumer())) {
+            timedOut.add(ex.getConsumer());
+            cancel(ex.getConsumer(), ex);
+        }
+    }
+
+    /**
+     * @return true once some delegate's result settled the file, there is no point starting more delegates
+     */
+    boolean isSettled() {
+        return settledBy != null;
+    }
+
+    /**
+     * Ends the splitter's input once the whole file is read, and settles the delegates still busy with it against
+     * the result cache.
+     */
+    void endInput() {
+        splitter.close();
+        String digest = getDigest();
+        if (digest == null) {
+            return;
+        }
+        for (Map.Entry<String, DelegateResult> entry : uncachedResults.entrySet()) {
+            if (uncachedResults.remove(entry.getKey(), entry.getValue())) {
+                resultCache.put(digest, entry.getKey(), entry.getValue());
+            }
+        }
+        if (expectedDigest != null && !expectedDigest.equals(digest)) {
+            LOG.warn("File {} does not match the digest {} it was sent with, any cached results used for it "
+                    + "belong to other content", name, expectedDigest);
+        }
+        if (!cancelInFlight) {
+            return;
+        }
+        for (Map.Entry<String, Future<DelegateResult>> entry : delegateExecs.entrySet()) {
+            DelegateResult cached = resultCache.get(digest, entry.getKey());
+            if (cached != null && !entry.getValue().isDone()) {
+                LOG.info("{} service already processed the content of file {}, using its cached result",
+                        entry.getKey(), name);
+                cachedResults.put(entry.getKey(), cached);
+                cancel(entry.getKey(), new CancellationException("Cached result used instead"));
+            }
+        }
+    }
+
+    /**
+     * Fails the delegates still reading the file when feeding the splitter failed; the splitter recycles its
+     * buffers right away instead of waiting for its input to end.
+     */
+    void splitFailed(IOException ex) {
+        splitter.abort(ex);
+        if (cancelOnDelegateError) {
+            cancellation.cancel(ex);
+        }
+    }
+
+    /**
+     * Drops the feeding side's reference; the part is done once the delegates are done too.
+     */
+    void release() {
+        if (pending.decrementAndGet() == 0) {
+            if (cancelAll != null) {
+                cancellation.remove(cancelAll);
+            }
+            onDone.run();
+        }
+    }
+
+    /**
+     * Logs the outcome of every delegate, waiting for them if necessary.
+     */
+    void logResults() {
+        for (String delegate : cachedResults.keySet()) {
+            LOG.info("{} service result for file {} was taken from the cache", delegate, name);
+        }
+        for (String delegate : timedOut) {
+            LOG.warn("{} service processing of file {} timed out", delegate, name);
+        }
+        for (String delegate : cancelled) {
+            if (settledBy != null) {
+                LOG.info("{} service processing of file {} was cancelled after the result of {}", delegate, name,
+                        settledBy);
+            } else {
+                LOG.info("{} service processing of file {} was cancelled with the upload", delegate, name);
+            }
+        }
+        for (Map.Entry<String, Future<DelegateResult>> entry : delegateExecs.entrySet()) {
+            if (cachedResults.containsKey(entry.getKey()) || cancelled.contains(entry.getKey())
+                    || timedOut.contains(entry.getKey())) {
+                continue;
+            }
+            try {
+                // wait (if necessary) for the delegate's thread to complete (Future.get() blocks)
+                DelegateResult result = entry.getValue().get();
+                if (retried.containsKey(entry.getKey())) {
+                    LOG.info("{} service processing of file {} is complete after {} retries", entry.getKey(), name,
+                            retried.get(entry.getKey()));
+                } else {
+                    LOG.info("{} service processing of file {} is complete", entry.getKey(), name);
+                }
+            } catch (Exception ex) {
+                LOG.error("Exception during file streaming to {}!", entry.getKey(), ex);
+            }
+        }
+        LOG.info("Splitter of file {}: {}", name, splitter.getStats());
+        LOG.info("Consumers of file {}: {}", name, splitter.getConsumerStats());
+        LOG.debug("Final chunk size for file {}: {}", name, splitter.getChunkSize());
+    }
+
+    private void track(StreamDelegate delegate, InputStream stream, CancellationContext call,
+                       ListenableFuture<DelegateResult> exec) {
+        String name = delegate.getName();
+        delegateStreams.put(name, stream);
+        delegateCalls.put(name, call);
+        delegateExecs.put(name, exec);
+        exec.addCallback(result -> {
+            call.detach();
+            splitter.acknowledge(name);
+            cacheResult(name, result);
+            if (delegate.stopsOthers(result)) {
+                cancelOthers(name, result);
+            }
+            release();
+        }, ex -> {
+            call.detach();
+            boolean cutOff = ex instanceof CancellationException || cancelled.contains(name)
+                    || timedOut.contains(name) || cachedResults.containsKey(name);
+            if (!cutOff && retry(delegate, ex)) {
+                return;
+            }
+            failed(name, ex, cutOff);
+        });
+    }
+
+    /**
+     * Schedules another call of a failed delegate, unless it is out of retries or the file is done with.
+     * @return false if the delegate is not retried
+     */
+    private boolean retry(StreamDelegate delegate, Throwable failure) {
+        String name = delegate.getName();
+        int attempt = retried.getOrDefault(name, 0) + 1;
+        if (retryScheduler == null || attempt > delegate.getRetries() || !splitter.isReplayable(name)
+                || cancellation.isCancelled() || isSettled()) {
+            return false;
+        }
+        retried.put(name, attempt);
+        // the first retry waits the backoff, each further one twice as long as the one before
+        long backoffMs = delegate.getRetryBackoffMs() << Math.min(attempt - 1, 16);
+        LOG.warn("{} service processing of file {} failed, retry {} of {} in {} ms", name, this.name, attempt,
+                delegate.getRetries(), backoffMs, failure);
+        retryScheduler.schedule(() -> resend(delegate, failure), backoffMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void resend(StreamDelegate delegate, Throwable failure) {
+        String name = delegate.getName();
+        if (cancellation.isCancelled() || isSettled()) {
+            // cut off along with the others while waiting
+            (cancellation.getCause() instanceof TimeoutException ? timedOut : cancelled).add(name);
+            failed(name, new CancellationException("File done with before " + name + " was retried"), true);
+            return;
+        }
+        InputStream stream;
+        try {
+            stream = splitter.replay(name);
+        } catch (IOException ex) {
+            LOG.warn("{} service cannot be retried on file {}: {}", name, this.name, ex.getMessage());
+            failed(name, failure, false);
+            return;
+        }
+        CancellationContext call = cancellation.newChild();
+        ListenableFuture<DelegateResult> exec;
+        try {
+            exec = delegate.send(stream, this.name, call);
+        } catch (TaskRejectedException ex) {
+            LOG.warn("{} delegate is saturated, file {} is not sent to it again", name, this.name, ex);
+            call.detach();
+            IOUtils.closeQuietly(stream);
+            failed(name, failure, false);
+            return;
+        }
+        track(delegate, stream, call, exec);
+    }
+
+    /**
+     * Settles a delegate that failed for good.
+     * @param cutOff the delegate was stopped on purpose, which does not cancel the upload
+     */
+    private void failed(String name, Throwable failure, boolean cutOff) {
+        splitter.acknowledge(name);
+        if (cancelOnDelegateError && !cutOff) {
+            cancellation.cancel(failure);
+        }
+        release();
+    }
+
+    private void cancelOthers(String delegate, DelegateResult result) {
+        settledBy = delegate;
+        if (result.isRejected()) {
+            LOG.warn("{} service rejected file {} ({}), cancelling the other delegates", delegate, name,
+                    result.getReason());
+        } else {
+            LOG.warn("{} service result settles file {}, cancelling the other delegates", delegate, name);
+        }
+        for (Map.Entry<String, Future<DelegateResult>> entry : delegateExecs.entrySet()) {
+            if (!entry.getKey().equals(delegate) && !entry.getValue().isDone()
+                    && !cachedResults.containsKey(entry.getKey())) {
+                cancelled.add(entry.getKey());
+                cancel(entry.getKey(), new CancellationException("File settled by " + delegate));
+            }
+        }
+    }
+
+    private void cancel(String delegate, Throwable cause) {
+        // cancel first, so that the delegate failing on its closed stream is not taken for a delegate error
+        delegateExecs.get(delegate).cancel(true);
+        // Important to unblock the splitter and the delegate!
+        IOUtils.closeQuietly(delegateStreams.get(delegate));
+        // and whatever else the call is blocked on
+        delegateCalls.get(delegate).cancel(cause);
+    }
+
+    private void cacheResult(String delegate, DelegateResult result) {
+        if (resultCache == null) {
+            return;
+        }
+        String digest = getDigest();
+        if (digest == null) {
+            // a prefix delegate finishes before the file is read in full; endInput caches it once the digest is
+            // known, unless the digest turned up between the two checks
+            uncachedResults.put(delegate, result);
+            digest = getDigest();
+            if (digest == null || !uncachedResults.remove(delegate, result)) {
+                return;
+            }
+        }
+        resultCache.put(digest, delegate, result);
+    }
+
+    private String getDigest() {
+        byte[] digest = splitter.getDigest();
+        return digest != null ? BaseEncoding.base16().lowerCase().encode(digest) : null;
+    }
+}
@@ -1,28 +1,48 @@
 package com.rsw.auth.stream.controller;
 
-import com.google.common.base.Stopwatch;
-import com.rsw.auth.stream.domain.GreenResult;
-import com.rsw.auth.stream.domain.BlueResult;
-import com.rsw.auth.stream.service.BlueDelegateService;
-import com.rsw.auth.stream.service.GreenDelegateService;
+import com.rsw.auth.stream.config.PipelineMetrics;
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.service.DelegateRegistry;
+import com.rsw.auth.stream.service.DelegateResultCache;
+import com.rsw.auth.stream.service.StreamDelegate;
+import com.rsw.auth.stream.service.UploadAdmission;
+import com.rsw.auth.stream.service.UploadRejectedException;
+import com.rsw.auth.stream.utils.BufferPool;
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.rsw.auth.stream.utils.ChunkSizing;
+import com.rsw.auth.stream.utils.ConsumerWatchdog;
+import com.rsw.auth.stream.utils.MultipartParser;
+import com.rsw.auth.stream.utils.ReplayOptions;
+import com.rsw.auth.stream.utils.SlowConsumerPolicies;
+import com.rsw.auth.stream.utils.SlowConsumerPolicy;
+import com.rsw.auth.stream.utils.SpillOptions;
 import com.rsw.auth.stream.utils.StreamSplitter;
-import org.apache.commons.fileupload.FileItemIterator;
-import org.apache.commons.fileupload.FileItemStream;
-import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptorAdapter;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by dalms on 10/21/16.
@@ -31,96 +51,287 @@ import java.util.concurrent.TimeUnit;
  * The consumers of the stream run on separate threads and in this case are actually REST calls to delegate
  * services.  The REST delegates pass the stream on through without buffering the entire contents based on how
  * the RestTemplate is configured
+ *
+ * Each file of an upload is split to the delegates that want it; see {@link #uploadFile} for how an upload runs,
+ * {@link #startPart} for what a file goes through and {@link #uploadReservation} for how uploads are admitted.
  */
 @Controller
 public class UploadController {
 
     private static final Logger LOG = LoggerFactory.getLogger(UploadController.class);
 
-    private static final int STREAM_SPLITTER_BUF_SIZE = 4096;
+    private static final int STREAM_SPLITTER_RING_SLOTS = 4;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String CLIENT_DIGEST_HEADER = "X-Content-SHA256";
+    static final String UPLOAD_VIEW = "redirect:/upload";
 
     @Autowired
-    private GreenDelegateService greenDelegateService;
+    private DelegateRegistry delegateRegistry;
 
     @Autowired
-    private BlueDelegateService blueDelegateService;
+    private BufferPool bufferPool;
 
+    @Autowired
+    private DelegateResultCache resultCache;
 
-    @RequestMapping(value = "/upload", method = RequestMethod.GET)
-    public String home() {
-        return "/";
-    }
+    @Autowired
+    private ConsumerWatchdog consumerWatchdog;
 
-    @RequestMapping(value = "/upload", method = RequestMethod.POST, consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
-    public String uploadFile(HttpServletRequest request) throws IOException {
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
 
-        Upload upload = null;
-        try {
-            upload = parseMultipart(request);
-        } catch (IOException | FileUploadException ex) {
-            LOG.error("Problem parsing multipart file upload request", ex);
-        }
+    @Autowired
+    private UploadAdmission admission;
 
-        if (upload != null) {
-            StreamSplitter splitter = new StreamSplitter(upload.inputStream, STREAM_SPLITTER_BUF_SIZE);
+    @Value("${dedup.enabled:false}")
+    private boolean dedupEnabled;
 
-            try {
-                LOG.info("Receiving file {} for green and blue processing...", upload.name);
-                Stopwatch timer = Stopwatch.createStarted();
+    @Value("${dedup.cancel-in-flight:false}")
+    private boolean cancelInFlight;
 
-                // async invocation
-                Future<GreenResult> greenExec = greenDelegateService.performGreen(splitter.getStreamA(), upload.name);
+    @Value("${dedup.trust-client-digest:false}")
+    private boolean trustClientDigest;
 
-                // async invocation
-                Future<BlueResult> blueExec = blueDelegateService.performBlue(splitter.getStreamB(), upload.name);
+    @Value("${upload.max-parallel-parts:4}")
+    private int maxParallelParts;
 
-                // Read the entire input stream, feeding StreamA and StreamB threads
-                // See the note in StreamSplitter regarding write blocking and exception handling
+    @Value("${upload.async-timeout-ms:600000}")
+    private long asyncTimeoutMs;
 
-                splitter.readToEof();
+    @Value("${upload.cancel-on-delegate-error:false}")
+    private boolean cancelOnDelegateError;
 
-                // wait for green thread to complete (Future.get() blocks)
-                GreenResult greenResult = greenExec.get();
-                LOG.info("Green service processing of file {} is complete", upload.name);
+    @Value("${splitter.chunk.size:4096}")
+    private int chunkSize;
 
-                // wait (if necesssary) for blue thread to complete
-                BlueResult blueResult = blueExec.get();
-                LOG.info("Blue service processing of file {} is complete", upload.name);
+    @Value("${splitter.chunk.adaptive:false}")
+    private boolean adaptiveChunks;
 
-                timer.stop();
-                LOG.info("Overall delegate and upload time was {} ms.", timer.elapsed(TimeUnit.MILLISECONDS));
+    @Value("${splitter.chunk.min-size:4096}")
+    private int minChunkSize;
 
-            } catch(Exception ex) {
-                LOG.error("Exception during file streaming!", ex);
-            }
+    @Value("${splitter.chunk.max-size:262144}")
+    private int maxChunkSize;
+
+    @Value("${splitter.slow-consumer.policy:block}")
+    private String slowConsumerPolicy;
+
+    @Value("${splitter.slow-consumer.timeout-ms:0}")
+    private long slowConsumerTimeoutMs;
+
+    @Value("${splitter.spill.enabled:false}")
+    private boolean spillEnabled;
+
+    @Value("${splitter.spill.directory:${java.io.tmpdir}}")
+    private File spillDirectory;
+
+    @Value("${splitter.spill.max-bytes-per-upload:268435456}")
+    private long spillMaxBytes;
+
+    @Value("${splitter.replay.memory-bytes:4194304}")
+    private long replayMemoryBytes;
+
+    @Value("${splitter.replay.directory:${java.io.tmpdir}}")
+    private File replayDirectory;
+
+    @Value("${splitter.replay.max-bytes-per-file:1073741824}")
+    private long replayMaxBytes;
+
+    @Autowired
+    private ScheduledExecutorService delegateScheduler;
+
+
+    @RequestMapping(value = "/upload", method = RequestMethod.GET)
+    public String home() {
+        return "/";
+    }
+
+    /**
+     * Every file of a multipart upload gets its own splitter and delegate calls.  The request stream can only be read
+     * in order, but a file is done as far as the request is concerned once its splitter has taken it to the end, so
+     * the next file starts while the delegates are still busy with the previous ones (up to upload.max-parallel-parts
+     * files at a time).  How far the request runs ahead of a slow delegate is bounded by the splitter's ring and,
+     * with spilling enabled, its spill quota.
+     *
+     * The request thread only sets things up: the body is read with non-blocking servlet reads (see
+     * {@link AsyncUpload}) and the redirect is sent through a DeferredResult once every delegate is done, so slow
+     * clients and slow delegates do not tie up the servlet thread pool.  Nothing is read before the upload is
+     * admitted, see {@link #uploadReservation}.
+     *
+     * An upload's splitters and delegate calls share one {@link CancellationContext}.  A client that goes away, a
+     * timeout or a malformed body cancels it, which stops the reading, fails the splitters and aborts the delegate
+     * calls in flight; with upload.cancel-on-delegate-error a failing delegate cancels the upload the same way.
+     * upload.async-timeout-ms is the budget of the whole upload.
+     */
+    @RequestMapping(value = "/upload", method = RequestMethod.POST, consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
+    public DeferredResult<String> uploadFile(HttpServletRequest request) {
+
+        String boundary = MultipartParser.getBoundary(request.getContentType());
+        if (boundary == null) {
+            throw new IllegalArgumentException("No Stream on upload");
         }
-        return "redirect:/upload";
+        DeferredResult<String> result = new DeferredResult<>(asyncTimeoutMs, UPLOAD_VIEW);
+        CancellationContext cancellation = new CancellationContext();
+        AsyncUpload upload = new AsyncUpload(request, boundary, maxParallelParts, result, cancellation,
+                (file, onDone) -> startPart(file, cancellation, onDone));
+        result.onTimeout(upload::timeout);
+
+        // the body can only be read without blocking once the request is in async mode, which Spring switches on
+        // after this method returns the deferred result; the upload starts once that is done and it is admitted,
+        // whichever comes last
+        AtomicInteger startGate = new AtomicInteger(2);
+        Runnable start = () -> {
+            if (startGate.decrementAndGet() == 0) {
+                try {
+                    upload.start();
+                } catch (IOException ex) {
+                    result.setErrorResult(ex);
+                }
+            }
+        };
+        UploadAdmission.Ticket ticket = admission.admit(uploadReservation(), start, result::setErrorResult);
+        result.onCompletion(ticket::release);
+        WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(AsyncUpload.class.getName(),
+                new DeferredResultProcessingInterceptorAdapter() {
+                    @Override
+                    public <T> void preProcess(NativeWebRequest webRequest, DeferredResult<T> deferredResult) {
+                        start.run();
+                    }
+                });
+        return result;
     }
 
-    private Upload parseMultipart(HttpServletRequest request) throws IOException, FileUploadException {
-        ServletFileUpload fileUpload = new ServletFileUpload();
-        FileItemIterator itemIterator = fileUpload.getItemIterator(request);
-        InputStream stream;
-        while(itemIterator.hasNext()) {
-            FileItemStream item = itemIterator.next();
-            stream = item.openStream();
+    @ExceptionHandler(UploadRejectedException.class)
+    public ResponseEntity<String> uploadRejected(UploadRejectedException ex) {
+        LOG.warn("Upload rejected: {}", ex.getMessage());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(ex.getMessage());
+    }
 
-            if(!item.isFormField()){
-                return new Upload(stream, item.getName());
+    /**
+     * Starts the delegates that want the file; the upload then feeds the file to them through the returned part's
+     * splitter as it arrives.  The delegates come from the {@link DelegateRegistry}: a file is only split to the
+     * enabled delegates that want its content type, and a file no delegate wants is skipped.  A delegate whose
+     * executor is saturated is skipped and dropped from the splitter, which goes on without it whatever the slow
+     * consumer policy says about streams closed early.
+     *
+     * With dedup enabled each file is digested (SHA-256) while it is split and delegate results are cached under the
+     * digest (see {@link PartUpload}).  The digest is only known once the whole file has passed, so by default only
+     * later uploads of the same content benefit: delegates with a cached result are cut off when the file ends, with
+     * dedup.cancel-in-flight.  Clients that can be trusted may also send the digest up front in an X-Content-SHA256
+     * part header (hex), which skips delegates with a cached result before they start.
+     *
+     * Each delegate may have a max-stall and a max-duration of its own (delegate.services.(name).max-stall-ms and
+     * max-duration-ms).  The limits are enforced by the shared {@link ConsumerWatchdog} on the splitter streams,
+     * without a thread per upload, and a delegate past them has its call aborted through a cancellation context of
+     * its own, so a few stuck delegates free their threads instead of piling up.  Timed out delegates are logged
+     * apart from failed ones.
+     *
+     * A delegate with retries (delegate.services.(name).retries) that fails halfway through the file is sent it
+     * again from byte 0, out of a replay journal the splitter keeps for it (splitter.replay.*), rather than failing
+     * the upload and having the client send everything again.  The other delegates go on meanwhile.
+     * @return null if no delegate wants the file
+     */
+    private PartUpload startPart(MultipartParser.Part file, CancellationContext cancellation, Runnable onDone) {
+        String name = file.getFileName();
+        List<StreamDelegate> delegates = delegateRegistry.getDelegatesFor(file.getContentType());
+        if (delegates.isEmpty()) {
+            LOG.info("No delegate takes file {} of type {}, skipping it", name, file.getContentType());
+            return null;
+        }
+        StreamSplitter splitter = newSplitter();
+        splitter.setCancellation(cancellation);
+        boolean replay = delegates.stream().anyMatch(delegate -> delegate.getRetries() > 0);
+        if (replay) {
+            splitter.setReplayOptions(new ReplayOptions(replayMemoryBytes, replayDirectory, replayMaxBytes));
+        }
+        PartUpload part = new PartUpload(name, splitter, () -> {
+            // the file is done with once its delegates are
+            pipelineMetrics.record(splitter.getStats(), splitter.getConsumerStats());
+            onDone.run();
+        });
+        part.setCancellation(cancellation, cancelOnDelegateError);
+        part.setRetryScheduler(delegateScheduler);
+        splitter.onConsumerTimeout(part::consumerTimedOut);
+        String clientDigest = null;
+        if (dedupEnabled) {
+            splitter.setDigestAlgorithm(DIGEST_ALGORITHM);
+            if (trustClientDigest && file.getHeader(CLIENT_DIGEST_HEADER) != null) {
+                clientDigest = file.getHeader(CLIENT_DIGEST_HEADER).trim().toLowerCase(Locale.ROOT);
+            }
+            part.setResultCache(resultCache, cancelInFlight, clientDigest);
+        }
+        LOG.info("Receiving file {} for processing by {} delegate(s)...", name, delegates.size());
+        for (StreamDelegate delegate : delegates) {
+            DelegateResult cached = clientDigest != null ? resultCache.get(clientDigest, delegate.getName()) : null;
+            if (cached != null) {
+                part.addCachedResult(delegate, cached);
+                continue;
+            }
+            if (part.isSettled()) {
+                // a cached result already decided the file, e.g. a known threat
+                continue;
+            }
+            InputStream stream = delegate.getPrefixBytes() > 0
+                    ? splitter.addPrefixConsumer(delegate.getName(), delegate.getPrefixBytes(),
+                            delegate.getConsumerLimits())
+                    : splitter.addConsumer(delegate.getName(), delegate.getConsumerLimits(),
+                            delegate.getTransforms(), delegate.getRetries() > 0);
+            CancellationContext call = cancellation.newChild();
+            try {
+                // async invocation
+                part.addDelegateExec(delegate, stream, call, delegate.send(stream, name, call));
+            } catch (TaskRejectedException ex) {
+                LOG.warn("{} delegate is saturated, file {} is not sent to it", delegate.getName(), name, ex);
+                call.detach();
+                splitter.removeConsumer(delegate.getName());
             }
         }
 
-        throw new IllegalArgumentException("No Stream on upload");
+        // The upload feeds the delegates' streams as the request body comes in
+        // See the note in StreamSplitter regarding write blocking and exception handling
+        return part;
     }
 
-    private static class Upload {
-        private InputStream inputStream;
-        private String name;
+    private StreamSplitter newSplitter() {
+        StreamSplitter splitter = new StreamSplitter(chunkSize, STREAM_SPLITTER_RING_SLOTS);
+        splitter.setBufferPool(bufferPool);
+        splitter.setWatchdog(consumerWatchdog);
+        if (adaptiveChunks) {
+            splitter.setChunkSizing(new ChunkSizing(minChunkSize, maxChunkSize));
+        }
+        splitter.setSlowConsumerPolicy(getSlowConsumerPolicy());
+        if (spillEnabled) {
+            splitter.setSpillOptions(new SpillOptions(spillDirectory, spillMaxBytes));
+        }
+        return splitter;
+    }
 
-        public Upload(InputStream inputStream, String name) {
-            this.inputStream = inputStream;
-            this.name = name;
+    /**
+     * Before reading anything an upload reserves this much from the global {@link UploadAdmission} budget.  Past the
+     * budget it waits for memory in a bounded queue, without a thread, and once that is full or the wait too long it
+     * is answered with 429 and a Retry-After.
+     * @return the most buffer memory one upload can hold: the ring of every file in flight, which may grow to the
+     *         max chunk size, the rings of the delegates' transform stages, the heap part of its replay journal if
+     *         a delegate retries, and the request buffer
+     */
+    private long uploadReservation() {
+        long ring = (long) STREAM_SPLITTER_RING_SLOTS * (adaptiveChunks ? maxChunkSize : chunkSize);
+        long stageRing = (long) STREAM_SPLITTER_RING_SLOTS * chunkSize;
+        long stages = 0;
+        long journal = 0;
+        for (StreamDelegate delegate : delegateRegistry.getDelegates()) {
+            stages += delegate.getTransforms().size();
+            if (delegate.getRetries() > 0) {
+                journal = replayMemoryBytes;
+            }
         }
+        return maxParallelParts * (ring + stages * stageRing + journal) + AsyncUpload.UPLOAD_BUFFER_SIZE;
+    }
+
+    private SlowConsumerPolicy getSlowConsumerPolicy() {
+        return SlowConsumerPolicies.forName(slowConsumerPolicy, slowConsumerTimeoutMs);
     }
 
 }
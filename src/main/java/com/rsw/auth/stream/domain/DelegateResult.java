@@ -0,0 +1,33 @@
+package com.rsw.auth.stream.domain;
+
+/**
+ * Created by DAlms on 10/31/16.
+ * whatever fields suit the need
+ *
+ * A delegate that checks the file rather than just taking it, such as a file type check on its first bytes, may
+ * reject it; with fail-fast that settles the file and the other delegates are cut off.
+ */
+public class DelegateResult {
+
+    private boolean rejected;
+    private String reason;
+
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    public void setRejected(boolean rejected) {
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return why the file was rejected, for the logs
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+}
@@ -1,8 +0,0 @@
-package com.rsw.auth.stream.domain;
-
-/**
- * Created by DAlms on 10/31/16.
- * whatever fields suit the need
- */
-public class GreenResult {
-}
@@ -0,0 +1,58 @@
+package com.rsw.auth.stream.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by dalms on 11/15/16.
+ *
+ * Verdict of the virus scan delegate on a file
+ */
+public class ScanResult extends DelegateResult {
+
+    public enum Verdict {
+        CLEAN,
+        INFECTED,
+        // the engine could not look at the file (too large, unreadable container...)
+        UNSCANNABLE
+    }
+
+    private Verdict verdict;
+    private List<String> threats = new ArrayList<>();
+
+    public ScanResult() {
+    }
+
+    public ScanResult(Verdict verdict, List<String> threats) {
+        this.verdict = verdict;
+        this.threats = threats;
+    }
+
+    public Verdict getVerdict() {
+        return verdict;
+    }
+
+    public void setVerdict(Verdict verdict) {
+        this.verdict = verdict;
+    }
+
+    /**
+     * @return names of the threats found, empty unless infected
+     */
+    public List<String> getThreats() {
+        return threats;
+    }
+
+    public void setThreats(List<String> threats) {
+        this.threats = threats;
+    }
+
+    public boolean isInfected() {
+        return verdict == Verdict.INFECTED;
+    }
+
+    @Override
+    public String toString() {
+        return isInfected() ? verdict + " " + threats : String.valueOf(verdict);
+    }
+}
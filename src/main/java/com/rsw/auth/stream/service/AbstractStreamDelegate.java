@@ -0,0 +1,143 @@
+package com.rsw.auth.stream.service;
+
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.utils.ConsumerLimits;
+import com.rsw.auth.stream.utils.Histogram;
+import com.rsw.auth.stream.utils.StreamTransform;
+import com.rsw.auth.stream.utils.StreamTransforms;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/12/16.
+ *
+ * Name, enabled flag, content type filter, time limits, stream transforms, prefix and retries of a configured
+ * delegate, and the latency of its calls.  With fail-fast a rejecting result settles the file.
+ */
+public abstract class AbstractStreamDelegate implements StreamDelegate {
+
+    private final String name;
+    private final List<MediaType> contentTypes = new ArrayList<>();
+    private final ConsumerLimits consumerLimits;
+    private final List<StreamTransform> transforms = new ArrayList<>();
+    private final Histogram latencyMs = new Histogram();
+    private final int retries;
+    private final long retryBackoffMs;
+    private final long prefixBytes;
+    private final boolean failFast;
+    private volatile boolean enabled;
+
+    protected AbstractStreamDelegate(String name, DelegateSettings settings) {
+        Assert.hasText(name);
+        this.name = name;
+        this.enabled = settings.isEnabled();
+        for (String contentType : settings.getContentTypes()) {
+            contentTypes.add(MediaType.parseMediaType(contentType));
+        }
+        this.consumerLimits = new ConsumerLimits(settings.getMaxStallMs(), settings.getMaxDurationMs(),
+                TimeUnit.MILLISECONDS);
+        for (String transform : settings.getTransforms()) {
+            transforms.add(StreamTransforms.forName(transform));
+        }
+        Assert.isTrue(settings.getRetries() >= 0);
+        Assert.isTrue(settings.getRetryBackoffMs() >= 0);
+        this.retries = settings.getRetries();
+        this.retryBackoffMs = settings.getRetryBackoffMs();
+        Assert.isTrue(settings.getPrefixBytes() >= 0);
+        this.prefixBytes = settings.getPrefixBytes();
+        this.failFast = settings.isFailFast();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public ConsumerLimits getConsumerLimits() {
+        return consumerLimits;
+    }
+
+    @Override
+    public List<StreamTransform> getTransforms() {
+        return Collections.unmodifiableList(transforms);
+    }
+
+    @Override
+    public int getRetries() {
+        return retries;
+    }
+
+    @Override
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    @Override
+    public long getPrefixBytes() {
+        return prefixBytes;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    @Override
+    public boolean accepts(String contentType) {
+        if (contentTypes.isEmpty()) {
+            return true;
+        }
+        MediaType type;
+        try {
+            type = contentType != null ? MediaType.parseMediaType(contentType) : MediaType.APPLICATION_OCTET_STREAM;
+        } catch (InvalidMediaTypeException ex) {
+            type = MediaType.APPLICATION_OCTET_STREAM;
+        }
+        for (MediaType range : contentTypes) {
+            if (range.includes(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true for a rejecting result with fail-fast on
+     */
+    @Override
+    public boolean stopsOthers(DelegateResult result) {
+        return failFast && result != null && result.isRejected();
+    }
+
+    /**
+     * @return milliseconds from the start of each successful call, after any queueing, until its result was in
+     */
+    public Histogram getLatencyMs() {
+        return latencyMs;
+    }
+
+    protected void recordLatency(long nanos) {
+        latencyMs.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Stops taking files and lets the ones already taken finish.
+     */
+    public void shutdown() {
+    }
+}
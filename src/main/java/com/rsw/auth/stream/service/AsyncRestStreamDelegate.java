@@ -0,0 +1,178 @@
+package com.rsw.auth.stream.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Stopwatch;
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.rsw.auth.stream.utils.NonBlockingInput;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dalms on 11/14/16.
+ *
+ * Delegate which posts the file like {@link RestStreamDelegate}, but over a non-blocking HTTP client: the request
+ * body is produced from the splitter consumer whenever both the consumer has data and the socket has room (see
+ * {@link MultipartStreamProducer}), so a call in flight holds no thread and the number of threads no longer grows
+ * with the number of uploads.
+ *
+ * Up to max-connections calls run at once, queue-capacity more may wait for a connection of the pool, and further
+ * files are rejected like those of a saturated thread pool.
+ *
+ * Cancelling the upload, or the future of a call, cancels the exchange, which closes its connection.
+ *
+ * Each call goes to the instance of the service its {@link InstanceBalancer} picks; calls are not hedged.
+ */
+public class AsyncRestStreamDelegate extends AbstractStreamDelegate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncRestStreamDelegate.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final InstanceBalancer balancer;
+    private final int maxConnections;
+    private final CloseableHttpAsyncClient httpClient;
+    private final RequestConfig requestConfig;
+    private final int maxCalls;
+    private final Semaphore callPermits;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param httpClient started client, shared by all non-blocking delegates
+     */
+    public AsyncRestStreamDelegate(String name, DelegateSettings settings, CloseableHttpAsyncClient httpClient) {
+        super(name, settings);
+        Assert.isTrue(settings.getMaxConnections() > 0, "A delegate needs at least one connection");
+        this.balancer = InstanceBalancer.of(name, settings);
+        this.maxConnections = settings.getMaxConnections();
+        this.httpClient = httpClient;
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(settings.getTimeoutMs())
+                .setSocketTimeout(settings.getTimeoutMs())
+                .setConnectionRequestTimeout(settings.getLeaseTimeoutMs())
+                .build();
+        this.maxCalls = settings.getMaxConnections() + settings.getQueueCapacity();
+        this.callPermits = new Semaphore(maxCalls);
+    }
+
+    @Override
+    public ListenableFuture<DelegateResult> send(InputStream fileInputStream, String fileName,
+                                                 CancellationContext cancellation) {
+        Assert.isInstanceOf(NonBlockingInput.class, fileInputStream);
+        if (!callPermits.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new TaskRejectedException("Delegate " + getName() + " has " + maxCalls + " calls in flight");
+        }
+        SettableListenableFuture<DelegateResult> result = new SettableListenableFuture<>();
+        InstanceBalancer.Instance instance = balancer.acquire(null);
+        HttpPost post = new HttpPost(instance.getUrl());
+        post.setConfig(requestConfig);
+        post.setEntity(new MultipartStreamProducer(fileInputStream, fileName));
+
+        LOG.info(" :: sending file {} to {} service at {}...", fileName, getName(), instance);
+        Stopwatch timer = Stopwatch.createStarted();
+        Future<HttpResponse> call = httpClient.execute(
+                new BasicAsyncRequestProducer(instance.getRoute().getTargetHost(), post),
+                new BasicAsyncResponseConsumer(), new FutureCallback<HttpResponse>() {
+                    @Override
+                    public void completed(HttpResponse response) {
+                        recordLatency(timer.elapsed(TimeUnit.NANOSECONDS));
+                        LOG.info(" :: {} service completed in {} ms.", getName(),
+                                timer.elapsed(TimeUnit.MILLISECONDS));
+                        try {
+                            result.set(readResult(response));
+                        } catch (IOException ex) {
+                            failed(ex);
+                            return;
+                        }
+                        balancer.release(instance, timer.elapsed(TimeUnit.NANOSECONDS), false);
+                        done(fileInputStream);
+                    }
+
+                    @Override
+                    public void failed(Exception ex) {
+                        LOG.error("Error invoking {} delegate service at {}", getName(), instance, ex);
+                        result.setException(ex);
+                        balancer.release(instance, timer.elapsed(TimeUnit.NANOSECONDS), true);
+                        done(fileInputStream);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        result.cancel(false);
+                        // an aborted call says nothing about the instance
+                        balancer.release(instance, timer.elapsed(TimeUnit.NANOSECONDS), false);
+                        done(fileInputStream);
+                    }
+                });
+        Runnable abort = () -> call.cancel(true);
+        cancellation.onCancel(abort);
+        result.addCallback(value -> cancellation.remove(abort), ex -> {
+            cancellation.remove(abort);
+            if (result.isCancelled()) {
+                // the caller gave up on this call alone
+                call.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    public InstanceBalancer getBalancer() {
+        return balancer;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return calls started and not yet done
+     */
+    public int getCallsInFlight() {
+        return maxCalls - callPermits.availablePermits();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void done(InputStream fileInputStream) {
+        // Important to notify and unblock the splitter!
+        IOUtils.closeQuietly(fileInputStream);
+        callPermits.release();
+    }
+
+    private DelegateResult readResult(HttpResponse response) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status < 200 || status >= 300) {
+            EntityUtils.consumeQuietly(entity);
+            throw new IOException(getName() + " service answered " + response.getStatusLine());
+        }
+        byte[] body = entity != null ? EntityUtils.toByteArray(entity) : null;
+        return body != null && body.length > 0 ? MAPPER.readValue(body, DelegateResult.class) : null;
+    }
+}
@@ -0,0 +1,84 @@
+package com.rsw.auth.stream.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Created by dalms on 11/12/16.
+ *
+ * The delegates uploads are split to.  Delegates can be registered and removed at runtime; an upload picks its
+ * delegates when a file starts, so a change applies from the next file on.
+ */
+public class DelegateRegistry implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DelegateRegistry.class);
+
+    private final Map<String, StreamDelegate> delegates = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds the delegate, replacing (and shutting down) one registered under the same name.
+     */
+    public void register(StreamDelegate delegate) {
+        Assert.notNull(delegate);
+        StreamDelegate replaced = delegates.put(delegate.getName(), delegate);
+        LOG.info("Registered delegate {}", delegate.getName());
+        if (replaced != null && replaced != delegate) {
+            shutdown(replaced);
+        }
+    }
+
+    /**
+     * Removes the delegate; files it has already taken are finished.
+     * @return the removed delegate, null if there was none of that name
+     */
+    public StreamDelegate unregister(String name) {
+        StreamDelegate removed = delegates.remove(name);
+        if (removed != null) {
+            LOG.info("Unregistered delegate {}", name);
+            shutdown(removed);
+        }
+        return removed;
+    }
+
+    public StreamDelegate getDelegate(String name) {
+        return delegates.get(name);
+    }
+
+    public Collection<StreamDelegate> getDelegates() {
+        return delegates.values();
+    }
+
+    /**
+     * @return the enabled delegates that want files of the given content type
+     */
+    public List<StreamDelegate> getDelegatesFor(String contentType) {
+        List<StreamDelegate> selected = new ArrayList<>();
+        for (StreamDelegate delegate : delegates.values()) {
+            if (delegate.isEnabled() && delegate.accepts(contentType)) {
+                selected.add(delegate);
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public void destroy() {
+        for (StreamDelegate delegate : delegates.values()) {
+            shutdown(delegate);
+        }
+    }
+
+    private static void shutdown(StreamDelegate delegate) {
+        if (delegate instanceof AbstractStreamDelegate) {
+            ((AbstractStreamDelegate) delegate).shutdown();
+        }
+    }
+}
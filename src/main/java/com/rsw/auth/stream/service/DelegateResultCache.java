@@ -0,0 +1,55 @@
+package com.rsw.auth.stream.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.rsw.auth.stream.domain.DelegateResult;
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/15/16.
+ *
+ * Results of delegates keyed by the digest of the file they processed, so a file that is uploaded again does not
+ * have to go through the same delegate twice.  Bounded in size (least recently used digests go first) and in age.
+ * A delegate that answered without a body is remembered with an empty result.
+ */
+public class DelegateResultCache {
+
+    private final Cache<String, Map<String, DelegateResult>> cache;
+
+    public DelegateResultCache(long maxDigests, long timeToLive, TimeUnit unit) {
+        Assert.isTrue(maxDigests > 0);
+        Assert.isTrue(timeToLive > 0);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxDigests)
+                .expireAfterWrite(timeToLive, unit)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param digest lower case hex digest of the file
+     * @return the delegate's result for that file, null if there is none
+     */
+    public DelegateResult get(String digest, String delegate) {
+        Map<String, DelegateResult> results = cache.getIfPresent(digest);
+        return results != null ? results.get(delegate) : null;
+    }
+
+    public void put(String digest, String delegate, DelegateResult result) {
+        Map<String, DelegateResult> results = cache.asMap().computeIfAbsent(digest, key -> new ConcurrentHashMap<>());
+        results.put(delegate, result != null ? result : new DelegateResult());
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,263 @@
+package com.rsw.auth.stream.service;
+
+import com.symantec.scanengine.api.Policy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by dalms on 11/12/16.
+ *
+ * Configuration of one delegate, bound from delegate.services.(name).*
+ */
+public class DelegateSettings {
+
+    /**
+     * How a delegate's calls are made: on threads of its own pool that block on the splitter and the socket, or
+     * over the non-blocking HTTP client without a thread per call.
+     */
+    public enum Transport { BLOCKING, ASYNC }
+
+    /**
+     * What the delegate does with a file: post it to a REST service, or stream it to scan engines over ICAP.
+     */
+    public enum Type { REST, SCAN }
+
+    private Type type = Type.REST;
+    private String url;
+    // instances of the service, instead of the one url, and how calls are spread over them
+    private List<String> urls = new ArrayList<>();
+    private InstanceBalancer.Strategy balancer = InstanceBalancer.Strategy.LEAST_OUTSTANDING;
+    private Transport transport = Transport.BLOCKING;
+    private boolean enabled = true;
+    private int timeoutMs = 10000;
+    // calls running at the same time (blocking transport), further ones queue up to queueCapacity and are rejected
+    // beyond that
+    private int threads = 8;
+    private int queueCapacity = 16;
+    // connections to the delegate's host, defaults to threads as every running call holds one for its whole upload
+    private Integer maxConnections;
+    // how long a call waits for a connection of the pool before it fails
+    private int leaseTimeoutMs = 5000;
+    // media ranges such as image/* the delegate wants, empty for every file
+    private List<String> contentTypes = new ArrayList<>();
+    // scan delegates: host:port of the scan engines and what they do with infected files
+    private List<String> engines = new ArrayList<>();
+    private Policy scanPolicy = Policy.SCAN;
+    // whether a rejecting result, or a threat verdict of a scan delegate, cancels the other delegates still busy
+    // with the file
+    private boolean failFast;
+    // bytes at the start of the file the delegate is sent, for checks that only need its header; 0 for the whole
+    // file
+    private long prefixBytes;
+    // how long the delegate may leave data it has been given unread, and may take over a whole file, before it is
+    // timed out; 0 for no limit
+    private long maxStallMs;
+    private long maxDurationMs;
+    // transforms applied to the file on its way to the delegate, in order, e.g. gzip:6 or range:0-1048576 (see
+    // StreamTransforms.forName); blocking transport only
+    private List<String> transforms = new ArrayList<>();
+    // how many times a failed call is made again with the file replayed from the splitter's journal, the first
+    // retry after retry-backoff-ms and every further one after twice as long as the one before; blocking transport
+    // only
+    private int retries;
+    private long retryBackoffMs = 500;
+    // files of up to hedge-max-bytes whose call has not been answered after the hedge-percentile latency of the
+    // delegate's calls (at least hedge-min-delay-ms) are sent to a second instance as well, the first answer wins;
+    // 0 for no hedging, blocking transport only
+    private long hedgeMaxBytes;
+    private double hedgePercentile = 95;
+    private long hedgeMinDelayMs = 20;
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    public void setUrls(List<String> urls) {
+        this.urls = urls;
+    }
+
+    public InstanceBalancer.Strategy getBalancer() {
+        return balancer;
+    }
+
+    public void setBalancer(InstanceBalancer.Strategy balancer) {
+        this.balancer = balancer;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public void setTimeoutMs(int timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections != null ? maxConnections : threads;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getLeaseTimeoutMs() {
+        return leaseTimeoutMs;
+    }
+
+    public void setLeaseTimeoutMs(int leaseTimeoutMs) {
+        this.leaseTimeoutMs = leaseTimeoutMs;
+    }
+
+    public List<String> getContentTypes() {
+        return contentTypes;
+    }
+
+    public void setContentTypes(List<String> contentTypes) {
+        this.contentTypes = contentTypes;
+    }
+
+    public List<String> getEngines() {
+        return engines;
+    }
+
+    public void setEngines(List<String> engines) {
+        this.engines = engines;
+    }
+
+    public Policy getScanPolicy() {
+        return scanPolicy;
+    }
+
+    public void setScanPolicy(Policy scanPolicy) {
+        this.scanPolicy = scanPolicy;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public long getPrefixBytes() {
+        return prefixBytes;
+    }
+
+    public void setPrefixBytes(long prefixBytes) {
+        this.prefixBytes = prefixBytes;
+    }
+
+    public long getMaxStallMs() {
+        return maxStallMs;
+    }
+
+    public void setMaxStallMs(long maxStallMs) {
+        this.maxStallMs = maxStallMs;
+    }
+
+    public long getMaxDurationMs() {
+        return maxDurationMs;
+    }
+
+    public void setMaxDurationMs(long maxDurationMs) {
+        this.maxDurationMs = maxDurationMs;
+    }
+
+    public List<String> getTransforms() {
+        return transforms;
+    }
+
+    public void setTransforms(List<String> transforms) {
+        this.transforms = transforms;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    public void setRetryBackoffMs(long retryBackoffMs) {
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    public long getHedgeMaxBytes() {
+        return hedgeMaxBytes;
+    }
+
+    public void setHedgeMaxBytes(long hedgeMaxBytes) {
+        this.hedgeMaxBytes = hedgeMaxBytes;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public long getHedgeMinDelayMs() {
+        return hedgeMinDelayMs;
+    }
+
+    public void setHedgeMinDelayMs(long hedgeMinDelayMs) {
+        this.hedgeMinDelayMs = hedgeMinDelayMs;
+    }
+}
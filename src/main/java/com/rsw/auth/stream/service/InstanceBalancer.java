@@ -0,0 +1,180 @@
+package com.rsw.auth.stream.service;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.springframework.util.Assert;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/22/16.
+ *
+ * Spreads the calls of a REST delegate over the instances of its service, so one slow instance no longer sets the
+ * latency of every upload.
+ *
+ * With least-outstanding a call goes to the instance with the fewest calls in flight.  With ewma it goes to the
+ * one whose moving average latency, times its calls in flight plus one, is lowest: an instance that has been slow
+ * lately gets fewer calls than its share even while it is not busy.  A failed call counts as taking at least the
+ * failure penalty (the delegate's timeout), so an instance that fails fast does not attract the traffic.  Ties go
+ * round robin, which is also how instances without a latency yet get their first calls.
+ */
+public class InstanceBalancer {
+
+    public enum Strategy { LEAST_OUTSTANDING, EWMA }
+
+    // weight of the latest call in the moving average
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final List<Instance> instances = new ArrayList<>();
+    private final Strategy strategy;
+    private final long failurePenaltyNanos;
+    // guarded by this
+    private int next;
+
+    /**
+     * @param urls every instance of the service
+     * @param failurePenaltyMs the least latency a failed call counts with
+     */
+    public InstanceBalancer(List<String> urls, Strategy strategy, long failurePenaltyMs) {
+        Assert.notEmpty(urls, "No instance configured");
+        Assert.notNull(strategy);
+        for (String url : urls) {
+            instances.add(new Instance(url));
+        }
+        this.strategy = strategy;
+        this.failurePenaltyNanos = TimeUnit.MILLISECONDS.toNanos(failurePenaltyMs);
+    }
+
+    /**
+     * @return a balancer over the urls of a delegate's settings, or its one url if it has none
+     */
+    static InstanceBalancer of(String delegate, DelegateSettings settings) {
+        List<String> urls = settings.getUrls();
+        if (urls.isEmpty()) {
+            Assert.hasText(settings.getUrl(), "Delegate " + delegate + " has no url");
+            urls = Collections.singletonList(settings.getUrl());
+        }
+        return new InstanceBalancer(urls, settings.getBalancer(), settings.getTimeoutMs());
+    }
+
+    public List<Instance> getInstances() {
+        return Collections.unmodifiableList(instances);
+    }
+
+    /**
+     * Picks the instance for a call, which counts as in flight until {@link #release}.
+     * @param avoid an instance not to pick unless it is the only one, e.g. the one a hedged call went to; may be
+     *              null
+     */
+    public synchronized Instance acquire(Instance avoid) {
+        Instance best = null;
+        double bestScore = 0;
+        for (int i = 0; i < instances.size(); i++) {
+            Instance instance = instances.get((next + i) % instances.size());
+            if (instance == avoid && instances.size() > 1) {
+                continue;
+            }
+            double score = strategy == Strategy.EWMA
+                    ? instance.ewmaNanos * (instance.outstanding + 1) : instance.outstanding;
+            if (best == null || score < bestScore) {
+                best = instance;
+                bestScore = score;
+            }
+        }
+        next = (next + 1) % instances.size();
+        best.outstanding++;
+        best.calls++;
+        return best;
+    }
+
+    /**
+     * Ends a call started with {@link #acquire}.
+     */
+    public synchronized void release(Instance instance, long nanos, boolean failed) {
+        instance.outstanding--;
+        if (failed) {
+            instance.failures++;
+            nanos = Math.max(nanos, failurePenaltyNanos);
+        }
+        instance.ewmaNanos = instance.latencyKnown ? instance.ewmaNanos + EWMA_ALPHA * (nanos - instance.ewmaNanos)
+                : nanos;
+        instance.latencyKnown = true;
+    }
+
+    /**
+     * @return the connection pool route of calls to the given url; a url without a port gets its scheme's default
+     * one, as the client's route planner does, or the pool would never see the route
+     */
+    static HttpRoute routeFor(String url) {
+        URI uri = URI.create(url);
+        HttpHost host = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        try {
+            host = new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host),
+                    host.getSchemeName());
+        } catch (UnsupportedSchemeException ex) {
+            throw new IllegalArgumentException("Unsupported scheme in " + url, ex);
+        }
+        return new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+    }
+
+    /**
+     * One instance of the service.
+     */
+    public static class Instance {
+
+        private final String url;
+        private final HttpRoute route;
+        // written under the balancer's lock, read without it for metrics
+        private volatile int outstanding;
+        private volatile long calls;
+        private volatile long failures;
+        private volatile double ewmaNanos;
+        private boolean latencyKnown;
+
+        Instance(String url) {
+            this.url = url;
+            this.route = routeFor(url);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public HttpRoute getRoute() {
+            return route;
+        }
+
+        /**
+         * @return calls in flight
+         */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the moving average latency of its calls, 0 before the first one ended
+         */
+        public long getEwma(TimeUnit unit) {
+            return unit.convert((long) ewmaNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+}
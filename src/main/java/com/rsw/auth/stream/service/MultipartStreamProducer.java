@@ -0,0 +1,130 @@
+package com.rsw.auth.stream.service;
+
+import com.rsw.auth.stream.utils.NonBlockingInput;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * Created by dalms on 11/14/16.
+ *
+ * Request body of a non-blocking delegate call: the same multipart form (fileName and inputStream fields) the
+ * RestTemplate sends, with the file streamed from a splitter consumer as the I/O reactor asks for content.
+ *
+ * When the consumer has nothing to read the producer suspends output and asks the consumer to call back once it
+ * has, so no thread waits on a slow upload; and when the socket is full the unwritten rest is simply kept until the
+ * reactor asks again, so a slow delegate holds up the splitter like any other consumer.
+ *
+ * Code that only knows blocking entities can still {@link #writeTo} or read {@link #getContent}, which block on the
+ * consumer instead.  Whichever way the body goes out, it goes out once.
+ */
+class MultipartStreamProducer extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final InputStream input;
+    private final NonBlockingInput nonBlockingInput;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private final byte[] preamble;
+    private final byte[] trailer;
+    private ByteBuffer pending;
+    private boolean ended;
+
+    MultipartStreamProducer(InputStream input, String fileName) {
+        this.input = input;
+        this.nonBlockingInput = (NonBlockingInput) input;
+        String boundary = UUID.randomUUID().toString();
+        String quotedName = fileName.replace("\\", "\\\\").replace("\"", "\\\"");
+        String head = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"fileName\"\r\n"
+                + "Content-Type: text/plain;charset=UTF-8\r\n\r\n"
+                + fileName + "\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"inputStream\"; filename=\"" + quotedName + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n";
+        this.preamble = head.getBytes(StandardCharsets.UTF_8);
+        this.pending = ByteBuffer.wrap(preamble);
+        this.trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        setContentType("multipart/form-data; boundary=" + boundary);
+        setChunked(true);
+    }
+
+    @Override
+    public synchronized void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+        while (true) {
+            if (pending.hasRemaining()) {
+                encoder.write(pending);
+                if (pending.hasRemaining()) {
+                    // the channel is full, the reactor asks again once it can take more
+                    return;
+                }
+            }
+            if (ended) {
+                encoder.complete();
+                return;
+            }
+            int numRead = nonBlockingInput.readNow(chunk, 0, chunk.length);
+            if (numRead < 0) {
+                ended = true;
+                pending = ByteBuffer.wrap(trailer);
+            } else if (numRead == 0) {
+                ioctrl.suspendOutput();
+                // runs right away if data came in since readNow
+                nonBlockingInput.onReadable(ioctrl::requestOutput);
+                return;
+            } else {
+                pending = ByteBuffer.wrap(chunk, 0, numRead);
+            }
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * @return the whole body, read from the consumer as the caller reads it
+     */
+    @Override
+    public synchronized InputStream getContent() {
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(new ByteArrayInputStream(preamble),
+                input, new ByteArrayInputStream(trailer))));
+    }
+
+    @Override
+    public synchronized void writeTo(OutputStream outstream) throws IOException {
+        outstream.write(preamble);
+        IOUtils.copy(input, outstream);
+        outstream.write(trailer);
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(input);
+    }
+}
@@ -0,0 +1,79 @@
+package com.rsw.auth.stream.service;
+
+import com.rsw.auth.stream.config.DelegateExecutorStats;
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.utils.CancellationContext;
+import org.apache.commons.io.IOUtils;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Created by dalms on 11/12/16.
+ *
+ * Base of delegates that process a file on a bounded thread pool of their own, so a slow delegate can only exhaust
+ * its own threads and queue while the others keep flowing.  A file that finds the pool saturated is rejected right
+ * away rather than queued without bounds.
+ */
+public abstract class PooledStreamDelegate extends AbstractStreamDelegate {
+
+    private final DelegateExecutorStats executorStats = new DelegateExecutorStats();
+    private final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+
+    protected PooledStreamDelegate(String name, DelegateSettings settings) {
+        super(name, settings);
+        Assert.isTrue(settings.getThreads() > 0, "A delegate needs at least one thread");
+        Assert.isTrue(settings.getQueueCapacity() >= 0);
+        executor.setThreadNamePrefix(name + "-");
+        executor.setCorePoolSize(settings.getThreads());
+        executor.setMaxPoolSize(settings.getThreads());
+        executor.setQueueCapacity(settings.getQueueCapacity());
+        executor.setTaskDecorator(executorStats);
+        executor.setRejectedExecutionHandler(executorStats);
+        executor.initialize();
+    }
+
+    @Override
+    public ListenableFuture<DelegateResult> send(InputStream fileInputStream, String fileName,
+                                                 CancellationContext cancellation) {
+        return executor.submitListenable(() -> {
+            try {
+                if (cancellation.isCancelled()) {
+                    // cancelled while queued
+                    throw new CancellationException("Upload cancelled before " + getName() + " started");
+                }
+                long start = System.nanoTime();
+                DelegateResult result = process(fileInputStream, fileName, cancellation);
+                recordLatency(System.nanoTime() - start);
+                return result;
+            } finally {
+                // Important to notify and unblock the splitter!
+                IOUtils.closeQuietly(fileInputStream);
+            }
+        });
+    }
+
+    public ThreadPoolTaskExecutor getExecutor() {
+        return executor;
+    }
+
+    public DelegateExecutorStats getExecutorStats() {
+        return executorStats;
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Processes one file on a thread of the delegate's pool; the stream is closed afterwards.
+     * @param cancellation of the upload; interrupting the thread does not end blocking socket I/O, so a call
+     *                     has to register its own way out
+     */
+    protected abstract DelegateResult process(InputStream fileInputStream, String fileName,
+                                              CancellationContext cancellation) throws Exception;
+}
@@ -0,0 +1,423 @@
+package com.rsw.auth.stream.service;
+
+import com.google.common.base.Stopwatch;
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.rsw.auth.stream.utils.StreamTransform;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.Assert;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dalms on 11/12/16.
+ *
+ * Generic delegate which posts the file to a remote service as multipart form data, streaming it through without
+ * buffering the entire contents
+ *
+ * A delegate with encoding transforms, such as gzip, gets the file part with a matching Content-Encoding.
+ *
+ * A cancelled upload aborts the HTTP request in flight, which ends a blocked write of the body or read of the
+ * answer at once rather than after the socket timeout.
+ *
+ * A delegate may post to several instances of its service, picked per call by its {@link InstanceBalancer}.  With
+ * hedging on, the delegate keeps a copy of files up to hedge-max-bytes as it sends them; a call that has sent the
+ * whole file and is still waiting for its answer after the hedge delay, the hedge-percentile of the delegate's
+ * latency so far, is sent once more to another instance, from that copy.  Whichever answers first is the result
+ * and the other call is aborted; so a hedge costs a second call for at most the slowest few percent of small
+ * files, and spares them the slow instance.  Hedging waits for enough calls to know the delegate's latency.
+ *
+ * Hedges run on a pool of their own with as many threads as the delegate's, and no queue: a call never hedges
+ * more than once, so there is always a thread for its hedge, which never waits behind the calls it hedges.  A call
+ * that fails waits for its hedge no longer than the hedge's own timeouts, and not at all once it is cancelled.
+ */
+public class RestStreamDelegate extends PooledStreamDelegate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RestStreamDelegate.class);
+
+    // calls to know the latency of before hedging on it
+    private static final int HEDGE_MIN_CALLS = 20;
+
+    private final InstanceBalancer balancer;
+    private final int maxConnections;
+    private final RestTemplate restTemplate;
+    // Content-Encoding of the file part, null when the delegate gets the file as uploaded
+    private final String contentEncoding;
+    // the request of the call running on this thread, so a cancellation can abort it
+    private final ThreadLocal<Call> currentCall = new ThreadLocal<>();
+    private final long hedgeMaxBytes;
+    private final double hedgePercentile;
+    private final long hedgeMinDelayMs;
+    private final ScheduledExecutorService scheduler;
+    // null without hedging
+    private final ThreadPoolTaskExecutor hedgeExecutor;
+    // the longest a hedge's call can take: waiting for a connection, connecting and waiting for the answer
+    private final long hedgeTimeoutMs;
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * @param httpClient shared by all delegates; the delegate applies its own timeouts on top
+     */
+    public RestStreamDelegate(String name, DelegateSettings settings, HttpClient httpClient) {
+        this(name, settings, httpClient, null);
+    }
+
+    /**
+     * @param scheduler times the hedges, may be null without hedging
+     */
+    public RestStreamDelegate(String name, DelegateSettings settings, HttpClient httpClient,
+                              ScheduledExecutorService scheduler) {
+        super(name, settings);
+        this.balancer = InstanceBalancer.of(name, settings);
+        this.maxConnections = settings.getMaxConnections();
+        Assert.isTrue(settings.getHedgeMaxBytes() >= 0);
+        Assert.isTrue(settings.getHedgePercentile() > 0 && settings.getHedgePercentile() <= 100);
+        Assert.isTrue(scheduler != null || settings.getHedgeMaxBytes() == 0,
+                "Delegate " + name + " needs a scheduler to hedge");
+        this.hedgeMaxBytes = settings.getHedgeMaxBytes();
+        this.hedgePercentile = settings.getHedgePercentile();
+        this.hedgeMinDelayMs = settings.getHedgeMinDelayMs();
+        this.scheduler = scheduler;
+        this.hedgeTimeoutMs = settings.getLeaseTimeoutMs() + 2L * settings.getTimeoutMs();
+        if (hedgeMaxBytes > 0) {
+            hedgeExecutor = new ThreadPoolTaskExecutor();
+            hedgeExecutor.setThreadNamePrefix(name + "-hedge-");
+            hedgeExecutor.setCorePoolSize(settings.getThreads());
+            hedgeExecutor.setMaxPoolSize(settings.getThreads());
+            hedgeExecutor.setQueueCapacity(0);
+            // hedges are the exception, their threads need not stay around
+            hedgeExecutor.setAllowCoreThreadTimeOut(true);
+            hedgeExecutor.initialize();
+        } else {
+            hedgeExecutor = null;
+        }
+
+        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(httpClient) {
+            @Override
+            protected void postProcessHttpRequest(HttpUriRequest request) {
+                Call call = currentCall.get();
+                if (call != null) {
+                    call.setRequest(request);
+                }
+            }
+        };
+        factory.setReadTimeout(settings.getTimeoutMs());
+        factory.setConnectTimeout(settings.getTimeoutMs());
+        factory.setConnectionRequestTimeout(settings.getLeaseTimeoutMs());
+        // setting this to false is how we ensure the RestTemplate carries the stream through without fully uploading
+        factory.setBufferRequestBody(false);
+        this.restTemplate = new RestTemplate(factory);
+        this.contentEncoding = contentEncodingOf(getTransforms());
+    }
+
+    public InstanceBalancer getBalancer() {
+        return balancer;
+    }
+
+    /**
+     * @return the connections the pool should allow on the route of each instance
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return calls sent to a second instance so far
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return hedged calls whose second instance answered first
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdown();
+        }
+    }
+
+    @Override
+    protected DelegateResult process(InputStream fileInputStream, String fileName,
+                                     CancellationContext cancellation) throws Exception {
+        long hedgeDelayMs = getHedgeDelayMs();
+        InstanceBalancer.Instance instance = balancer.acquire(null);
+        if (hedgeDelayMs < 0) {
+            return post(instance, fileInputStream, fileName, cancellation);
+        }
+        return hedged(instance, fileInputStream, fileName, cancellation, hedgeDelayMs);
+    }
+
+    /**
+     * @return how long a call waits for its answer before it is hedged, -1 not to hedge it
+     */
+    private long getHedgeDelayMs() {
+        if (hedgeMaxBytes == 0 || balancer.getInstances().size() < 2
+                || getLatencyMs().getCount() < HEDGE_MIN_CALLS) {
+            return -1;
+        }
+        return Math.max(hedgeMinDelayMs, getLatencyMs().getPercentile(hedgePercentile));
+    }
+
+    /**
+     * Makes the call on this thread, and a hedge on another once the file is sent in full and the delay is up.
+     */
+    private DelegateResult hedged(InstanceBalancer.Instance instance, InputStream fileInputStream, String fileName,
+                                  CancellationContext cancellation, long delayMs) throws Exception {
+        CancellationContext primaryCall = cancellation.newChild();
+        CancellationContext hedgeCall = cancellation.newChild();
+        CompletableFuture<DelegateResult> hedgeResult = new CompletableFuture<>();
+        AtomicBoolean hedged = new AtomicBoolean();
+        Capture capture = new Capture(fileInputStream, hedgeMaxBytes);
+        // the hedge starts once the file is captured and the delay is up, whichever comes last
+        AtomicInteger hedgeGate = new AtomicInteger(2);
+        Runnable hedge = () -> {
+            if (hedgeGate.decrementAndGet() != 0 || hedgeCall.isCancelled()) {
+                return;
+            }
+            // before the hedge can answer and abort the call
+            hedged.set(true);
+            try {
+                hedgeExecutor.execute(() -> {
+                    try {
+                        hedgeResult.complete(post(balancer.acquire(instance),
+                                new ByteArrayInputStream(capture.getBytes()), fileName, hedgeCall));
+                    } catch (Exception ex) {
+                        hedgeResult.completeExceptionally(ex);
+                    }
+                });
+                hedges.incrementAndGet();
+                LOG.info(" :: {} service has not answered for file {} after {} ms, hedging", getName(), fileName,
+                        delayMs);
+            } catch (TaskRejectedException ex) {
+                hedged.set(false);
+                LOG.debug("No thread to hedge file {} to {} service on", fileName, getName());
+            }
+        };
+        capture.onEnd(hedge);
+        ScheduledFuture<?> timer = scheduler.schedule(hedge, delayMs, TimeUnit.MILLISECONDS);
+        hedgeResult.thenRun(() -> primaryCall.cancel(new CancellationException("Hedge answered first")));
+        // so a call waiting for its hedge gives up once it is cancelled
+        hedgeCall.onCancel(() -> hedgeResult.completeExceptionally(
+                new CancellationException("Hedge of file " + fileName + " cancelled")));
+        try {
+            return post(instance, capture, fileName, primaryCall);
+        } catch (Exception ex) {
+            if (!hedged.get() || cancellation.isCancelled()) {
+                throw ex;
+            }
+            try {
+                DelegateResult result = hedgeResult.get(hedgeTimeoutMs, TimeUnit.MILLISECONDS);
+                hedgesWon.incrementAndGet();
+                return result;
+            } catch (ExecutionException hedgeEx) {
+                ex.addSuppressed(hedgeEx.getCause());
+                throw ex;
+            } catch (CancellationException | TimeoutException hedgeEx) {
+                ex.addSuppressed(hedgeEx);
+                throw ex;
+            }
+        } finally {
+            timer.cancel(false);
+            // whichever call is still running lost
+            hedgeCall.cancel(new CancellationException("Answered by another instance"));
+            primaryCall.cancel(new CancellationException("Answered by another instance"));
+        }
+    }
+
+    /**
+     * Posts the file to one instance on this thread, and gives the instance back.
+     */
+    private DelegateResult post(InstanceBalancer.Instance instance, InputStream fileInputStream,
+                                final String fileName, CancellationContext cancellation) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        Call call = new Call(cancellation);
+        currentCall.set(call);
+        cancellation.onCancel(call);
+        try {
+            InputStreamResource contentsAsResource = new InputStreamResource(fileInputStream) {
+                @Override
+                public String getFilename() {
+                    return fileName;
+                }
+
+                @Override
+                public long contentLength() throws IOException {
+                    // Need to read the whole stream to get the length.
+                    return -1;
+                }
+            };
+
+            MultiValueMap<String, Object> fields = new LinkedMultiValueMap<>();
+            if (contentEncoding != null) {
+                HttpHeaders partHeaders = new HttpHeaders();
+                partHeaders.set(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+                fields.add("inputStream", new HttpEntity<>(contentsAsResource, partHeaders));
+            } else {
+                fields.add("inputStream", contentsAsResource);
+            }
+            fields.add("fileName", fileName);
+
+            LOG.info(" :: sending file {} to {} service at {}...", fileName, getName(), instance);
+            Stopwatch timer = Stopwatch.createStarted();
+
+            ResponseEntity<DelegateResult> result = restTemplate.exchange(instance.getUrl(), HttpMethod.POST,
+                    new HttpEntity<MultiValueMap<String, Object>>(fields), DelegateResult.class);
+            timer.stop();
+            LOG.info(" :: {} service completed in {} ms.", getName(), timer.elapsed(TimeUnit.MILLISECONDS));
+            failed = false;
+            return result.getBody();
+        } catch (Exception e) {
+            if (cancellation.isCancelled()) {
+                LOG.debug("Call of {} delegate service at {} aborted", getName(), instance, e);
+            } else {
+                LOG.error("Error invoking {} delegate service at {}", getName(), instance, e);
+            }
+            throw e;
+        } finally {
+            cancellation.remove(call);
+            currentCall.remove();
+            // an aborted call says nothing about the instance
+            balancer.release(instance, System.nanoTime() - start, failed && !cancellation.isCancelled());
+        }
+    }
+
+    /**
+     * @return the codings in the order they were applied, as Content-Encoding lists them; null for none
+     */
+    static String contentEncodingOf(List<StreamTransform> transforms) {
+        List<String> codings = new ArrayList<>();
+        for (StreamTransform transform : transforms) {
+            if (transform.getContentEncoding() != null) {
+                codings.add(transform.getContentEncoding());
+            }
+        }
+        return codings.isEmpty() ? null : String.join(", ", codings);
+    }
+
+    /**
+     * Keeps a copy of what the call reads for a hedge, as long as the file fits; tells once it has read it all.
+     */
+    private static class Capture extends FilterInputStream {
+
+        private final long maxBytes;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private volatile byte[] bytes;
+        private Runnable onEnd;
+
+        Capture(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        void onEnd(Runnable onEnd) {
+            this.onEnd = onEnd;
+        }
+
+        /**
+         * @return the whole file, once it was read to its end
+         */
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int numRead = read(single, 0, 1);
+            return numRead < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int numRead = in.read(b, off, len);
+            if (copy == null) {
+                return numRead;
+            }
+            if (numRead < 0) {
+                bytes = copy.toByteArray();
+                copy = null;
+                onEnd.run();
+            } else if (copy.size() + numRead > maxBytes) {
+                // too big to be worth a hedge
+                copy = null;
+            } else {
+                copy.write(b, off, numRead);
+            }
+            return numRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes would be missing from the copy
+            copy = null;
+            return super.skip(n);
+        }
+    }
+
+    /**
+     * Aborts the request of one call on cancellation, including one created after the cancellation.
+     */
+    private static class Call implements Runnable {
+
+        private final CancellationContext cancellation;
+        private volatile HttpUriRequest request;
+
+        Call(CancellationContext cancellation) {
+            this.cancellation = cancellation;
+        }
+
+        void setRequest(HttpUriRequest request) {
+            this.request = request;
+            if (cancellation.isCancelled()) {
+                request.abort();
+            }
+        }
+
+        @Override
+        public void run() {
+            HttpUriRequest current = request;
+            if (current != null) {
+                current.abort();
+            }
+        }
+    }
+}
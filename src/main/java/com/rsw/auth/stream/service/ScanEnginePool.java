@@ -0,0 +1,144 @@
+package com.rsw.auth.stream.service;
+
+import com.symantec.scanengine.api.ScanEngine;
+import com.symantec.scanengine.api.ScanException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.pool.PoolStats;
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dalms on 11/15/16.
+ *
+ * Bounded set of connections to one or more scan engines.
+ *
+ * The scan engine API opens a socket of its own for every scan request and closes it when the request is done, so
+ * there is nothing to keep open between scans; what the pool does is hand out leases, each good for one scan
+ * connection to one engine, so that no more than maxPerEngine scans hit any engine at a time.  A lease goes to the
+ * engine with the fewest scans running; when every engine is at its limit the caller waits up to the lease timeout,
+ * like it would for a connection of the HTTP client pool.
+ */
+public class ScanEnginePool {
+
+    public static final int DEFAULT_ICAP_PORT = 1344;
+
+    private final List<Engine> engines = new ArrayList<>();
+    private final Semaphore permits;
+    private final int maxPerEngine;
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+
+    /**
+     * @param addresses host:port of every engine, the port defaults to the ICAP port
+     * @param timeoutMs connect and read/write timeout of a scan connection
+     */
+    public ScanEnginePool(List<String> addresses, int maxPerEngine, int timeoutMs) {
+        Assert.notEmpty(addresses, "No scan engine configured");
+        Assert.isTrue(maxPerEngine > 0, "A scan engine needs at least one connection");
+        this.maxPerEngine = maxPerEngine;
+        for (String address : addresses) {
+            URI uri = URI.create("icap://" + address);
+            Assert.hasText(uri.getHost(), "Invalid scan engine " + address);
+            int port = uri.getPort() != -1 ? uri.getPort() : DEFAULT_ICAP_PORT;
+            try {
+                ScanEngine engine = ScanEngine.createScanEngine(Collections.singletonList(
+                        new ScanEngine.ScanEngineInfo(uri.getHost(), port)), timeoutMs, timeoutMs);
+                engines.add(new Engine(uri.getHost() + ":" + port, engine));
+            } catch (ScanException ex) {
+                throw new IllegalArgumentException("Invalid scan engine " + address + ": " + ex.getMessage(), ex);
+            }
+        }
+        this.permits = new Semaphore(engines.size() * maxPerEngine, true);
+    }
+
+    /**
+     * Waits for a connection to a scan engine.
+     * @throws ConnectionPoolTimeoutException if every engine is still at its limit after the timeout
+     */
+    public Lease lease(long timeout, TimeUnit unit) throws InterruptedException, ConnectionPoolTimeoutException {
+        if (!permits.tryAcquire(timeout, unit)) {
+            leaseTimeouts.incrementAndGet();
+            throw new ConnectionPoolTimeoutException("Timeout waiting for a scan engine connection");
+        }
+        return new Lease(leastLeased());
+    }
+
+    /**
+     * @return leased and available connections over all engines, and the callers waiting for one
+     */
+    public PoolStats getStats() {
+        int available = permits.availablePermits();
+        int max = engines.size() * maxPerEngine;
+        return new PoolStats(max - available, permits.getQueueLength(), available, max);
+    }
+
+    public long getLeaseTimeouts() {
+        return leaseTimeouts.get();
+    }
+
+    private synchronized Engine leastLeased() {
+        // a permit guarantees at least one engine is below its limit
+        Engine least = engines.get(0);
+        for (Engine engine : engines) {
+            if (engine.leased < least.leased) {
+                least = engine;
+            }
+        }
+        least.leased++;
+        return least;
+    }
+
+    private synchronized void release(Engine engine) {
+        engine.leased--;
+    }
+
+    private static class Engine {
+
+        private final String address;
+        private final ScanEngine api;
+        // guarded by the pool
+        private int leased;
+
+        Engine(String address, ScanEngine api) {
+            this.address = address;
+            this.api = api;
+        }
+    }
+
+    /**
+     * The right to one scan connection, given back on close.
+     */
+    public class Lease implements Closeable {
+
+        private final Engine engine;
+        private boolean closed;
+
+        private Lease(Engine engine) {
+            this.engine = engine;
+        }
+
+        public ScanEngine getEngine() {
+            return engine.api;
+        }
+
+        public String getAddress() {
+            return engine.address;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(engine);
+                permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.rsw.auth.stream.service;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.domain.ScanResult;
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.symantec.scanengine.api.Policy;
+import com.symantec.scanengine.api.Result;
+import com.symantec.scanengine.api.ScanException;
+import com.symantec.scanengine.api.StreamScanRequest;
+import com.symantec.scanengine.api.ThreatInfoEx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/15/16.
+ *
+ * Delegate which streams the file to a virus scan engine over ICAP (the bundled SymJavaAPI stream scan API), chunk
+ * by chunk as its splitter stream delivers it, so the scan runs alongside the other delegates instead of after them.
+ * The verdict only comes once the engine has seen the whole file.
+ *
+ * With fail-fast, an infected verdict cancels the other delegates still busy with the file.  A cancelled upload
+ * aborts the scan request, closing its connection to the engine.
+ */
+public class ScanStreamDelegate extends PooledStreamDelegate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScanStreamDelegate.class);
+
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+
+    private final ScanEnginePool pool;
+    private final Policy policy;
+    private final int leaseTimeoutMs;
+
+    /**
+     * @param pool connections to the scan engines, used by this delegate only
+     */
+    public ScanStreamDelegate(String name, DelegateSettings settings, ScanEnginePool pool) {
+        super(name, settings);
+        Assert.notNull(pool);
+        this.pool = pool;
+        this.policy = settings.getScanPolicy();
+        this.leaseTimeoutMs = settings.getLeaseTimeoutMs();
+    }
+
+    public ScanEnginePool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return true for a threat verdict, or a rejecting result, with fail-fast on
+     */
+    @Override
+    public boolean stopsOthers(DelegateResult result) {
+        return super.stopsOthers(result)
+                || isFailFast() && result instanceof ScanResult && ((ScanResult) result).isInfected();
+    }
+
+    @Override
+    protected DelegateResult process(InputStream fileInputStream, String fileName,
+                                     CancellationContext cancellation) throws Exception {
+        try (ScanEnginePool.Lease lease = pool.lease(leaseTimeoutMs, TimeUnit.MILLISECONDS)) {
+            LOG.info(" :: scanning file {} on {}...", fileName, lease.getAddress());
+            Stopwatch timer = Stopwatch.createStarted();
+            // repaired content is not wanted, the verdict is all that counts
+            StreamScanRequest request = lease.getEngine().createStreamScanRequest(fileName, null,
+                    ByteStreams.nullOutputStream(), policy);
+            Runnable abort = () -> abortQuietly(request);
+            cancellation.onCancel(abort);
+            ScanResult result;
+            try {
+                result = scan(request, fileInputStream);
+            } catch (Exception ex) {
+                abortQuietly(request);
+                throw ex;
+            } finally {
+                cancellation.remove(abort);
+            }
+            timer.stop();
+            LOG.info(" :: {} scan of file {} completed in {} ms: {}", getName(), fileName,
+                    timer.elapsed(TimeUnit.MILLISECONDS), result);
+            return result;
+        } catch (Exception e) {
+            LOG.error("Error invoking {} scan delegate", getName(), e);
+            throw e;
+        }
+    }
+
+    private static ScanResult scan(StreamScanRequest request, InputStream fileInputStream)
+            throws IOException, ScanException {
+        byte[] buffer = new byte[SEND_BUFFER_SIZE];
+        boolean sent = false;
+        int numRead;
+        while ((numRead = fileInputStream.read(buffer)) != -1) {
+            if (numRead > 0) {
+                // the request connects on the first send
+                request.send(buffer, 0, numRead);
+                sent = true;
+            }
+        }
+        if (!sent) {
+            // the API cannot finish a request that never connected; nothing to infect either
+            return new ScanResult(ScanResult.Verdict.CLEAN, Collections.<String>emptyList());
+        }
+        return toScanResult(request.finish());
+    }
+
+    private static ScanResult toScanResult(Result result) throws IOException {
+        switch (result.getStatus()) {
+            case CLEAN:
+                return new ScanResult(ScanResult.Verdict.CLEAN, Collections.<String>emptyList());
+            case INFECTED_REPLACED:
+            case INFECTED_UNREPAIRED:
+                List<String> threats = new ArrayList<>();
+                if (result.getThreatInfo() != null) {
+                    for (ThreatInfoEx threat : result.getThreatInfo()) {
+                        threats.add(threat.getViolationName());
+                    }
+                }
+                return new ScanResult(ScanResult.Verdict.INFECTED, threats);
+            case FILE_SIZE_TOO_LARGE:
+            case FILE_ACCESS_FAILED:
+                return new ScanResult(ScanResult.Verdict.UNSCANNABLE, Collections.<String>emptyList());
+            default:
+                // engine trouble rather than a verdict on the content, so it must not be cached
+                throw new IOException("Scan engine failed with " + result.getStatus());
+        }
+    }
+
+    private static void abortQuietly(StreamScanRequest request) {
+        try {
+            request.abort();
+        } catch (Exception ex) {
+            LOG.debug("Could not abort scan request", ex);
+        }
+    }
+}
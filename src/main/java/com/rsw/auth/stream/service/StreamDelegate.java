@@ -0,0 +1,76 @@
+package com.rsw.auth.stream.service;
+
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.rsw.auth.stream.utils.ConsumerLimits;
+import com.rsw.auth.stream.utils.StreamTransform;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Created by dalms on 11/12/16.
+ *
+ * A downstream consumer of uploaded files.  Each one reads its own stream of the split, on threads of its own.
+ */
+public interface StreamDelegate {
+
+    /**
+     * @return the name the delegate is registered (and its splitter consumer is known) under
+     */
+    String getName();
+
+    /**
+     * @return false to leave the delegate registered but stop sending it files
+     */
+    boolean isEnabled();
+
+    /**
+     * @param contentType the content type of the file, null if the client did not send one
+     * @return true if files of this type are sent to the delegate
+     */
+    boolean accepts(String contentType);
+
+    /**
+     * @return how long the delegate may stall its splitter stream and take over a file before it is timed out
+     */
+    ConsumerLimits getConsumerLimits();
+
+    /**
+     * @return the transforms the delegate's splitter stream goes through, in order, such as compression; empty for
+     *         the file as uploaded
+     */
+    List<StreamTransform> getTransforms();
+
+    /**
+     * @return how many bytes at the start of the file the delegate is sent, for a delegate that only checks its
+     *         header or sniffs its type; 0 for the whole file
+     */
+    long getPrefixBytes();
+
+    /**
+     * @return how many times a failed call is made again, with the file replayed from its start; 0 for none
+     */
+    int getRetries();
+
+    /**
+     * @return how long to wait before the first retry, every further one waits twice as long as the one before
+     */
+    long getRetryBackoffMs();
+
+    /**
+     * Starts processing the file asynchronously; the delegate closes the stream once it is done with it.
+     * @param cancellation of the upload; once cancelled the delegate aborts its call in flight, whatever it is
+     *                     waiting for
+     * @throws org.springframework.core.task.TaskRejectedException if the delegate is too busy to take the file,
+     *         the stream is left for the caller to close
+     */
+    ListenableFuture<DelegateResult> send(InputStream fileInputStream, String fileName,
+                                          CancellationContext cancellation);
+
+    /**
+     * @return true if the result settles the file for good, so the other delegates still busy with it are cancelled
+     */
+    boolean stopsOthers(DelegateResult result);
+}
@@ -0,0 +1,205 @@
+package com.rsw.auth.stream.service;
+
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Created by dalms on 11/21/16.
+ *
+ * Admission control for uploads against a global budget of buffer memory.  Each upload reserves what its
+ * splitters and delegate streams may hold at most before it reads a byte, and hands it back once it is done.
+ * An upload that does not fit waits in a bounded FIFO queue until enough is handed back, for at most the queue
+ * timeout; one that finds the queue full, or times out in it, is rejected so the client can come back later,
+ * rather than every upload running and the heap thrashing under a burst.
+ *
+ * An upload asking for more than the whole budget is admitted once it would run alone.  Waiting uploads hold no
+ * thread: they are started on the thread that freed the memory for them, and timed out by one daemon thread of
+ * the admission's own.  A budget of 0 admits every upload right away.
+ */
+public class UploadAdmission implements Closeable {
+
+    private enum State { QUEUED, ADMITTED, DONE }
+
+    private final long budgetBytes;
+    private final int maxQueued;
+    private final long queueTimeoutMs;
+    private final long retryAfterSeconds;
+    private final ScheduledExecutorService scheduler;
+    private final Deque<Ticket> queue = new ArrayDeque<>();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private long reservedBytes;
+
+    /**
+     * @param retryAfterSeconds what rejected clients are told to wait
+     */
+    public UploadAdmission(long budgetBytes, int maxQueued, long queueTimeoutMs, long retryAfterSeconds) {
+        Assert.isTrue(budgetBytes >= 0);
+        Assert.isTrue(maxQueued >= 0);
+        Assert.isTrue(queueTimeoutMs > 0);
+        this.budgetBytes = budgetBytes;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-admission");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reserves memory for an upload, or queues it until it fits.
+     * @param onAdmitted starts the upload; runs right away if it fits, otherwise later on whichever thread freed
+     *                   the memory, so it must not block
+     * @param onRejected fails an upload that timed out in the queue, on the admission's thread
+     * @return the upload's ticket, to be released once the upload is done or abandoned, whether admitted or not
+     * @throws UploadRejectedException if the upload does not fit and the queue is full
+     */
+    public Ticket admit(long bytes, Runnable onAdmitted, Consumer<UploadRejectedException> onRejected) {
+        Assert.isTrue(bytes >= 0);
+        Assert.notNull(onAdmitted);
+        Assert.notNull(onRejected);
+        Ticket ticket = new Ticket(budgetBytes > 0 ? Math.min(bytes, budgetBytes) : 0, onAdmitted, onRejected);
+        synchronized (this) {
+            if (queue.isEmpty() && fits(ticket)) {
+                reserve(ticket);
+            } else if (queue.size() < maxQueued) {
+                queue.addLast(ticket);
+                queued.incrementAndGet();
+                ticket.timeout = scheduler.schedule(() -> timeOut(ticket), queueTimeoutMs, TimeUnit.MILLISECONDS);
+                return ticket;
+            } else {
+                rejected.incrementAndGet();
+                throw new UploadRejectedException("Upload needs " + bytes + " bytes of buffer memory, "
+                        + reservedBytes + " of " + budgetBytes + " are reserved and " + queue.size()
+                        + " uploads are waiting", retryAfterSeconds);
+            }
+        }
+        onAdmitted.run();
+        return ticket;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @return uploads waiting for memory right now
+     */
+    public synchronized int getWaiting() {
+        return queue.size();
+    }
+
+    /**
+     * @return uploads admitted so far, right away or after waiting
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return uploads that had to wait so far, admitted in the end or not
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return uploads turned away so far, with the queue full or after waiting too long
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private boolean fits(Ticket ticket) {
+        return budgetBytes == 0 || reservedBytes + ticket.bytes <= budgetBytes;
+    }
+
+    private void reserve(Ticket ticket) {
+        reservedBytes += ticket.bytes;
+        ticket.state = State.ADMITTED;
+        admitted.incrementAndGet();
+    }
+
+    private void timeOut(Ticket ticket) {
+        synchronized (this) {
+            if (ticket.state != State.QUEUED || !queue.remove(ticket)) {
+                return;
+            }
+            ticket.state = State.DONE;
+            rejected.incrementAndGet();
+        }
+        ticket.onRejected.accept(new UploadRejectedException("Upload waited " + queueTimeoutMs
+                + " ms for buffer memory", retryAfterSeconds));
+    }
+
+    private void release(Ticket ticket) {
+        List<Ticket> started = new ArrayList<>();
+        synchronized (this) {
+            if (ticket.state == State.ADMITTED) {
+                reservedBytes -= ticket.bytes;
+            } else if (ticket.state == State.QUEUED) {
+                queue.remove(ticket);
+                ticket.timeout.cancel(false);
+            }
+            ticket.state = State.DONE;
+            // first come, first served: a big upload at the head is not overtaken by smaller ones behind it
+            while (!queue.isEmpty() && fits(queue.peekFirst())) {
+                Ticket next = queue.removeFirst();
+                next.timeout.cancel(false);
+                reserve(next);
+                started.add(next);
+            }
+        }
+        for (Ticket next : started) {
+            next.onAdmitted.run();
+        }
+    }
+
+    /**
+     * One upload's claim on the budget.
+     */
+    public class Ticket {
+
+        private final long bytes;
+        private final Runnable onAdmitted;
+        private final Consumer<UploadRejectedException> onRejected;
+        private State state = State.QUEUED;
+        private ScheduledFuture<?> timeout;
+
+        private Ticket(long bytes, Runnable onAdmitted, Consumer<UploadRejectedException> onRejected) {
+            this.bytes = bytes;
+            this.onAdmitted = onAdmitted;
+            this.onRejected = onRejected;
+        }
+
+        /**
+         * Hands the memory back, or leaves the queue; may be called more than once.
+         */
+        public void release() {
+            UploadAdmission.this.release(this);
+        }
+    }
+}
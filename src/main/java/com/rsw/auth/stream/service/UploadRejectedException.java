@@ -0,0 +1,24 @@
+package com.rsw.auth.stream.service;
+
+/**
+ * Created by dalms on 11/21/16.
+ *
+ * An upload turned away by {@link UploadAdmission} because the server is out of buffer memory for it; answered
+ * with 429 Too Many Requests and a Retry-After.
+ */
+public class UploadRejectedException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public UploadRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return how long the client should wait before trying again
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,240 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of byte arrays and ByteBuffers shared by all splitters, so a busy server does not allocate
+ * fresh buffers for every upload.
+ *
+ * Sizes are rounded up to the next power of two between the minimum and maximum class size; bigger requests are
+ * served by plain allocation and never retained.  ByteBuffers come from the heap or, for a pool created off-heap,
+ * from direct memory.  The bytes kept idle in the pool never exceed the configured cap: a buffer released while
+ * the pool is full is simply left to the garbage collector.
+ *
+ * Callers must only use as many bytes of an array or buffer as they asked for, the rest belongs to the size class.
+ *
+ * Created by DAlms on 11/08/16.
+ */
+public class BufferPool {
+
+    private final int minClassSize;
+    private final int maxClassSize;
+    private final long maxPooledBytes;
+    private final boolean direct;
+    private final Deque<byte[]>[] arrays;
+    private final Deque<ByteBuffer>[] buffers;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final AtomicLong peakOutstandingBytes = new AtomicLong();
+
+    /**
+     * @param minClassSize smallest size class, rounded up to a power of two
+     * @param maxClassSize largest size class, rounded up to a power of two
+     * @param maxPooledBytes cap on the bytes kept idle in the pool
+     * @param direct whether ByteBuffers are allocated off-heap
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minClassSize, int maxClassSize, long maxPooledBytes, boolean direct) {
+        Assert.isTrue(minClassSize > 0 && minClassSize <= maxClassSize);
+        Assert.isTrue(maxClassSize <= 1 << 30);
+        Assert.isTrue(maxPooledBytes >= 0);
+        this.minClassSize = roundUp(minClassSize);
+        this.maxClassSize = roundUp(maxClassSize);
+        this.maxPooledBytes = maxPooledBytes;
+        this.direct = direct;
+        int classes = classIndex(this.maxClassSize) + 1;
+        arrays = new Deque[classes];
+        buffers = new Deque[classes];
+        for (int ix = 0; ix < classes; ix++) {
+            arrays[ix] = new ConcurrentLinkedDeque<>();
+            buffers[ix] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * @return an array of at least {@code size} bytes
+     */
+    public byte[] acquireArray(int size) {
+        Assert.isTrue(size > 0);
+        if (size > maxClassSize) {
+            onAcquire(size, false);
+            return new byte[size];
+        }
+        int classIndex = classIndex(roundUp(Math.max(size, minClassSize)));
+        byte[] array = arrays[classIndex].pollFirst();
+        if (array != null) {
+            pooledBytes.addAndGet(-array.length);
+            onAcquire(array.length, true);
+            return array;
+        }
+        onAcquire(classSize(classIndex), false);
+        return new byte[classSize(classIndex)];
+    }
+
+    public void releaseArray(byte[] array) {
+        Assert.notNull(array);
+        onRelease(array.length);
+        if (isClassSize(array.length) && reservePooled(array.length)) {
+            arrays[classIndex(array.length)].offerFirst(array);
+        }
+    }
+
+    /**
+     * @return a cleared buffer with a capacity of at least {@code size} bytes and its limit set to {@code size}
+     */
+    public ByteBuffer acquireBuffer(int size) {
+        Assert.isTrue(size > 0);
+        ByteBuffer buffer = null;
+        if (size <= maxClassSize) {
+            int classIndex = classIndex(roundUp(Math.max(size, minClassSize)));
+            buffer = buffers[classIndex].pollFirst();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+                onAcquire(buffer.capacity(), true);
+            } else {
+                buffer = allocate(classSize(classIndex));
+                onAcquire(buffer.capacity(), false);
+            }
+        } else {
+            buffer = allocate(size);
+            onAcquire(size, false);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public void releaseBuffer(ByteBuffer buffer) {
+        Assert.notNull(buffer);
+        onRelease(buffer.capacity());
+        if (buffer.isDirect() == direct && !buffer.isReadOnly() && isClassSize(buffer.capacity())
+                && reservePooled(buffer.capacity())) {
+            buffers[classIndex(buffer.capacity())].offerFirst(buffer);
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(acquired.get(), hits.get(), outstanding.get(), outstandingBytes.get(),
+                peakOutstandingBytes.get(), pooledBytes.get(), maxPooledBytes);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void onAcquire(int bytes, boolean hit) {
+        acquired.incrementAndGet();
+        if (hit) {
+            hits.incrementAndGet();
+        }
+        outstanding.incrementAndGet();
+        peakOutstandingBytes.accumulateAndGet(outstandingBytes.addAndGet(bytes), Math::max);
+    }
+
+    private void onRelease(int bytes) {
+        outstanding.decrementAndGet();
+        outstandingBytes.addAndGet(-bytes);
+    }
+
+    private boolean reservePooled(int bytes) {
+        if (pooledBytes.addAndGet(bytes) > maxPooledBytes) {
+            pooledBytes.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isClassSize(int size) {
+        return size >= minClassSize && size <= maxClassSize && Integer.bitCount(size) == 1;
+    }
+
+    private int classIndex(int classSize) {
+        return Integer.numberOfTrailingZeros(classSize) - Integer.numberOfTrailingZeros(minClassSize);
+    }
+
+    private int classSize(int classIndex) {
+        return minClassSize << classIndex;
+    }
+
+    private static int roundUp(int size) {
+        int highest = Integer.highestOneBit(size);
+        return highest == size ? size : highest << 1;
+    }
+
+    /**
+     * Snapshot of the pool's usage.
+     */
+    public static class Stats {
+
+        private final long acquired;
+        private final long hits;
+        private final long outstanding;
+        private final long outstandingBytes;
+        private final long peakOutstandingBytes;
+        private final long pooledBytes;
+        private final long maxPooledBytes;
+
+        Stats(long acquired, long hits, long outstanding, long outstandingBytes, long peakOutstandingBytes,
+              long pooledBytes, long maxPooledBytes) {
+            this.acquired = acquired;
+            this.hits = hits;
+            this.outstanding = outstanding;
+            this.outstandingBytes = outstandingBytes;
+            this.peakOutstandingBytes = peakOutstandingBytes;
+            this.pooledBytes = pooledBytes;
+            this.maxPooledBytes = maxPooledBytes;
+        }
+
+        public long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * @return share of acquisitions served from the pool, 0 before the first one
+         */
+        public double getHitRate() {
+            return acquired == 0 ? 0 : (double) hits / acquired;
+        }
+
+        /**
+         * @return arrays and buffers handed out and not released yet
+         */
+        public long getOutstanding() {
+            return outstanding;
+        }
+
+        public long getOutstandingBytes() {
+            return outstandingBytes;
+        }
+
+        public long getPeakOutstandingBytes() {
+            return peakOutstandingBytes;
+        }
+
+        /**
+         * @return bytes kept idle in the pool
+         */
+        public long getPooledBytes() {
+            return pooledBytes;
+        }
+
+        public long getMaxPooledBytes() {
+            return maxPooledBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hit rate %.2f, %d outstanding (%d bytes, peak %d), %d of %d bytes pooled",
+                    getHitRate(), outstanding, outstandingBytes, peakOutstandingBytes, pooledBytes, maxPooledBytes);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.rsw.auth.stream.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared fate of everything working on one upload: the producer feeding the splitters, the splitters and the
+ * delegate calls.  Whoever runs into an error that dooms the upload (a failed delegate, a client that went away,
+ * a deadline) cancels the context, and every party that registered a callback stops right away instead of finding
+ * out when it next touches a closed pipe.
+ *
+ * Only the first cancellation counts.  A callback registered after it runs right away, on the registering thread;
+ * every callback runs exactly once, unless it is removed first.  Callbacks must not block, they run on the thread
+ * of whoever cancelled.
+ *
+ * Created by DAlms on 11/16/16.
+ */
+public class CancellationContext {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CancellationContext.class);
+
+    private final AtomicReference<Throwable> cause = new AtomicReference<>();
+    private final Set<Runnable> callbacks = ConcurrentHashMap.newKeySet();
+    // set on children only: the parent and the callback it cancels this context with
+    private final CancellationContext parent;
+    private final Runnable propagate;
+
+    public CancellationContext() {
+        this(null);
+    }
+
+    private CancellationContext(CancellationContext parent) {
+        this.parent = parent;
+        this.propagate = parent != null ? () -> cancel(parent.getCause()) : null;
+    }
+
+    /**
+     * @return false if the context was already cancelled, the earlier cause stands
+     */
+    public boolean cancel(Throwable cause) {
+        Assert.notNull(cause);
+        if (!this.cause.compareAndSet(null, cause)) {
+            return false;
+        }
+        for (Runnable callback : callbacks) {
+            run(callback);
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cause.get() != null;
+    }
+
+    /**
+     * @return what the context was cancelled for, null if it was not
+     */
+    public Throwable getCause() {
+        return cause.get();
+    }
+
+    /**
+     * Runs the callback once the context is cancelled, right away if it is already.
+     */
+    public void onCancel(Runnable callback) {
+        Assert.notNull(callback);
+        callbacks.add(callback);
+        if (isCancelled()) {
+            run(callback);
+        }
+    }
+
+    /**
+     * @return a context that is cancelled along with this one but can also be cancelled on its own, e.g. for one
+     *         delegate call that ran out of time while the rest of the upload goes on; {@link #detach} it once the
+     *         work it stands for is over
+     */
+    public CancellationContext newChild() {
+        CancellationContext child = new CancellationContext(this);
+        onCancel(child.propagate);
+        // a cancelled child no longer needs to hear from its parent
+        child.onCancel(child::detach);
+        return child;
+    }
+
+    /**
+     * Stops a child from being cancelled along with its parent, which then no longer holds on to it; e.g. once the
+     * delegate call it was made for is done.  Does nothing on a context that is not a child.
+     */
+    public void detach() {
+        if (parent != null) {
+            parent.remove(propagate);
+        }
+    }
+
+    /**
+     * Drops a callback that is no longer needed, e.g. once the work it would stop is done.
+     */
+    public void remove(Runnable callback) {
+        callbacks.remove(callback);
+    }
+
+    private void run(Runnable callback) {
+        // removing first makes sure a callback racing with cancel() runs only once
+        if (callbacks.remove(callback)) {
+            try {
+                callback.run();
+            } catch (RuntimeException ex) {
+                LOG.warn("Cancellation callback failed", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Channel based variant of {@link StreamSplitter} that never copies a chunk on behalf of a consumer.
+ *
+ * The input is read into a fixed set of direct buffers, borrowed from a {@link BufferPool} if one is given, once
+ * reading starts.  Every consumer receives the same buffer as a read-only duplicate
+ * ({@link ByteBuffer#asReadOnlyBuffer()}) wrapped in a {@link Chunk}, and the buffer goes back to the free list once
+ * every consumer has released its view.  A consumer that hands the view straight to another channel
+ * ({@link Chunk#writeTo}) therefore moves the data without it ever touching a Java byte[].
+ * Consumers that prefer the plain channel contract can {@link Consumer#read(ByteBuffer)}, which costs one copy.
+ *
+ * Like the ring of the stream splitter, the free list is the backpressure: when every buffer is held by some
+ * consumer the read loop waits for one to be released.  A consumer closed before end of input is simply dropped.
+ * Pooled buffers are returned to the pool after the read loop has finished and the last view is released.
+ *
+ * Created by DAlms on 11/07/16.
+ */
+public class ChannelSplitter {
+
+    private static final int DEFAULT_BUFFER_COUNT = 8;
+
+    private final ReadableByteChannel input;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final int bufferSize;
+    private final int bufferCount;
+    private final BufferPool bufferPool;
+    private final List<Consumer> consumers = new ArrayList<>();
+    private final AtomicBoolean recycled = new AtomicBoolean();
+    private volatile boolean started;
+    private volatile boolean finished;
+
+    public ChannelSplitter(ReadableByteChannel input, int bufferSize) {
+        this(input, bufferSize, DEFAULT_BUFFER_COUNT);
+    }
+
+    public ChannelSplitter(ReadableByteChannel input, int bufferSize, int bufferCount) {
+        this(input, bufferSize, bufferCount, null);
+    }
+
+    /**
+     * @param bufferPool where the buffers are borrowed from, null to allocate direct buffers for this splitter only
+     */
+    public ChannelSplitter(ReadableByteChannel input, int bufferSize, int bufferCount, BufferPool bufferPool) {
+        Assert.notNull(input);
+        Assert.isTrue(bufferSize > 0);
+        Assert.isTrue(bufferCount > 0);
+        this.input = input;
+        this.bufferSize = bufferSize;
+        this.bufferCount = bufferCount;
+        this.bufferPool = bufferPool;
+        this.freeBuffers = new LinkedBlockingQueue<>(bufferCount);
+    }
+
+    /**
+     * Registers a new consumer; must be called before reading starts.
+     */
+    public synchronized Consumer addConsumer(String name) {
+        Assert.hasText(name);
+        Assert.state(!started, "Consumers must be added before the splitter starts reading");
+        for (Consumer consumer : consumers) {
+            Assert.isTrue(!consumer.name.equals(name), "Duplicate consumer name " + name);
+        }
+        Consumer consumer = new Consumer(name);
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    /**
+     * Reads the input to its end, handing each chunk to every open consumer.
+     */
+    public void readToEof() throws IOException {
+        List<Consumer> targets;
+        synchronized (this) {
+            Assert.state(!started, "The splitter has already read its input");
+            started = true;
+            targets = new ArrayList<>(consumers);
+        }
+        // borrowed only now, so a splitter that is dropped without reading holds nothing of the pool
+        for (int ix = 0; ix < bufferCount; ix++) {
+            freeBuffers.add(bufferPool != null ? bufferPool.acquireBuffer(bufferSize)
+                    : ByteBuffer.allocateDirect(bufferSize));
+        }
+        IOException failure = null;
+        try {
+            while (true) {
+                ByteBuffer buffer = takeFreeBuffer();
+                buffer.clear();
+                buffer.limit(bufferSize);
+                int numRead = input.read(buffer);
+                if (numRead < 0) {
+                    freeBuffers.add(buffer);
+                    break;
+                }
+                buffer.flip();
+                dispatch(buffer, targets);
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            input.close();
+            for (Consumer consumer : targets) {
+                consumer.end(failure);
+            }
+            finished = true;
+            recycleIfDone();
+        }
+    }
+
+    /**
+     * @return buffers currently not held by any consumer
+     */
+    public int getFreeBufferCount() {
+        return freeBuffers.size();
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    private void dispatch(ByteBuffer buffer, List<Consumer> targets) {
+        if (!buffer.hasRemaining()) {
+            freeBuffers.add(buffer);
+            return;
+        }
+        SharedBuffer shared = new SharedBuffer(buffer);
+        for (Consumer consumer : targets) {
+            if (!consumer.closed.get()) {
+                shared.retain();
+                consumer.queue.add(new Chunk(shared));
+                if (consumer.closed.get()) {
+                    // lost the race with close(), make sure the view does not pin the buffer
+                    consumer.drain();
+                }
+            }
+        }
+        // drops the read loop's own reference, recycling the buffer right away if nobody took it
+        shared.release();
+    }
+
+    private void freeBuffer(ByteBuffer buffer) {
+        freeBuffers.add(buffer);
+        recycleIfDone();
+    }
+
+    /**
+     * Returns the buffers to the pool once the read loop is over and no view is left.
+     */
+    private void recycleIfDone() {
+        if (bufferPool != null && finished && freeBuffers.size() == bufferCount
+                && recycled.compareAndSet(false, true)) {
+            ByteBuffer buffer;
+            while ((buffer = freeBuffers.poll()) != null) {
+                bufferPool.releaseBuffer(buffer);
+            }
+        }
+    }
+
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+        }
+    }
+
+    /**
+     * A pooled buffer and the number of consumers still holding a view of it.
+     */
+    private class SharedBuffer {
+
+        private final ByteBuffer buffer;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        SharedBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                freeBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * One consumer's read-only view of a chunk.  Must be released once the consumer is done with it.
+     */
+    public static class Chunk {
+
+        private static final Chunk END = new Chunk(null);
+
+        private final ChannelSplitter.SharedBuffer shared;
+        private final ByteBuffer view;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Chunk(ChannelSplitter.SharedBuffer shared) {
+            this.shared = shared;
+            this.view = shared != null ? shared.buffer.asReadOnlyBuffer() : null;
+        }
+
+        /**
+         * @return this consumer's own read-only view; its position and limit can be moved freely
+         */
+        public ByteBuffer buffer() {
+            return view;
+        }
+
+        /**
+         * Writes the rest of the view to the target channel and releases the chunk.
+         */
+        public void writeTo(WritableByteChannel target) throws IOException {
+            try {
+                while (view.hasRemaining()) {
+                    target.write(view);
+                }
+            } finally {
+                release();
+            }
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                shared.release();
+            }
+        }
+    }
+
+    /**
+     * One consumer of the split input.  {@link #next()} hands out chunks without copying, {@link #read(ByteBuffer)}
+     * copies into the caller's buffer; use one or the other.
+     */
+    public class Consumer implements ReadableByteChannel {
+
+        private final String name;
+        private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile IOException failure;
+        private Chunk current;
+        private boolean eof;
+
+        private Consumer(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Waits for the next chunk.
+         * @return the chunk, which the caller must release, or null at end of input
+         */
+        public Chunk next() throws IOException {
+            if (closed.get()) {
+                throw new ClosedChannelException();
+            }
+            if (eof) {
+                return null;
+            }
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            if (chunk == Chunk.END) {
+                eof = true;
+                if (failure != null) {
+                    throw new IOException("Split aborted", failure);
+                }
+                return null;
+            }
+            return chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (current == null || !current.view.hasRemaining()) {
+                if (current != null) {
+                    current.release();
+                }
+                current = next();
+                if (current == null) {
+                    return -1;
+                }
+            }
+            int count = Math.min(dst.remaining(), current.view.remaining());
+            ByteBuffer slice = current.view.duplicate();
+            slice.limit(slice.position() + count);
+            dst.put(slice);
+            current.view.position(current.view.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed.get();
+        }
+
+        /**
+         * Releases everything this consumer still holds; the read loop stops handing it chunks.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                if (current != null) {
+                    current.release();
+                    current = null;
+                }
+                drain();
+            }
+        }
+
+        private void end(IOException cause) {
+            failure = cause;
+            queue.add(Chunk.END);
+            if (closed.get()) {
+                // closed while the read loop was dispatching, release whatever slipped in after close()
+                drain();
+            }
+        }
+
+        private void drain() {
+            Chunk chunk;
+            while ((chunk = queue.poll()) != null) {
+                if (chunk != Chunk.END) {
+                    chunk.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.rsw.auth.stream.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Producer side bookkeeping of an adaptive {@link StreamSplitter}; only ever touched by the read loop.
+ *
+ * Over each sample it measures how full the reads come back, the time spent reading the input and the time spent
+ * waiting for consumers to free a slot, and how often consumers ran dry and had to park.  From that it decides:
+ *   - reads mostly less than half full: the input delivers smaller pieces than we ask for, so shrink to the
+ *     average read and stop holding memory that is never filled
+ *   - reads (nearly) full and the producer waits less than it reads, or the consumers keep running dry: the
+ *     input has more ready than we take, so double the chunk to halve the reads, copies and wakeups per byte
+ *   - otherwise the consumers set the pace and a bigger chunk would only sit in the ring, so keep the size
+ *
+ * Created by DAlms on 11/09/16.
+ */
+class ChunkSizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkSizer.class);
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final int sampleChunks;
+    private int chunkSize;
+
+    private int chunks;
+    private int fullReads;
+    private long bytes;
+    private long readNanos;
+    private long waitNanos;
+    private long consumerWaitsAtStart;
+    private int resizes;
+
+    ChunkSizer(ChunkSizing sizing, int initialChunkSize) {
+        this.minChunkSize = sizing.getMinChunkSize();
+        this.maxChunkSize = sizing.getMaxChunkSize();
+        this.sampleChunks = sizing.getSampleChunks();
+        this.chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, initialChunkSize));
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return how often the size changed so far
+     */
+    int getResizes() {
+        return resizes;
+    }
+
+    /**
+     * Records the time the producer waited for a free slot.
+     */
+    void onClaim(long nanos) {
+        waitNanos += nanos;
+    }
+
+    /**
+     * Records one read of the input and, at the end of a sample, picks the size of the next chunks.
+     * @param consumerWaits the ring's running count of consumers that parked for lack of data
+     */
+    void onRead(int numRead, long nanos, long consumerWaits) {
+        chunks++;
+        bytes += numRead;
+        readNanos += nanos;
+        if (numRead == chunkSize) {
+            fullReads++;
+        }
+        if (chunks < sampleChunks) {
+            return;
+        }
+        int nextSize = decide(consumerWaits - consumerWaitsAtStart);
+        if (nextSize != chunkSize) {
+            LOG.debug("Chunk size {} -> {} (fill {}%, read {} us, waited {} us)", chunkSize, nextSize,
+                    bytes * 100 / ((long) chunks * chunkSize), readNanos / 1000, waitNanos / 1000);
+            chunkSize = nextSize;
+            resizes++;
+        }
+        chunks = 0;
+        fullReads = 0;
+        bytes = 0;
+        readNanos = 0;
+        waitNanos = 0;
+        consumerWaitsAtStart = consumerWaits;
+    }
+
+    private int decide(long consumerWaits) {
+        long averageRead = bytes / chunks;
+        if (averageRead * 2 < chunkSize) {
+            return Math.max(minChunkSize, roundUp(averageRead));
+        }
+        // consumers running dry about once a chunk means the producer sets the pace, whatever it waited for
+        boolean consumersKeepUp = waitNanos <= readNanos || consumerWaits >= chunks;
+        if (fullReads * 4 >= chunks * 3 && consumersKeepUp) {
+            return (int) Math.min(maxChunkSize, (long) chunkSize * 2);
+        }
+        return chunkSize;
+    }
+
+    private static int roundUp(long size) {
+        int rounded = Integer.highestOneBit((int) Math.max(1, size));
+        return rounded == size ? rounded : rounded << 1;
+    }
+}
@@ -0,0 +1,49 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+/**
+ * Limits for a {@link StreamSplitter} that adapts its chunk size to the upload instead of reading fixed chunks.
+ *
+ * The splitter starts at its configured buffer size, clamped to these limits, and reconsiders the size every
+ * {@code sampleChunks} chunks: it doubles while the input fills every read and the consumers keep up, and drops
+ * to the size the input actually delivers when reads come back mostly empty.  The ring never holds more than
+ * {@code maxChunkSize} bytes per slot, so the memory of an upload stays bounded by the slot count times the maximum.
+ *
+ * Created by DAlms on 11/09/16.
+ */
+public class ChunkSizing {
+
+    private static final int DEFAULT_SAMPLE_CHUNKS = 16;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final int sampleChunks;
+
+    public ChunkSizing(int minChunkSize, int maxChunkSize) {
+        this(minChunkSize, maxChunkSize, DEFAULT_SAMPLE_CHUNKS);
+    }
+
+    /**
+     * @param sampleChunks number of chunks read between two decisions
+     */
+    public ChunkSizing(int minChunkSize, int maxChunkSize, int sampleChunks) {
+        Assert.isTrue(minChunkSize > 0 && minChunkSize <= maxChunkSize);
+        Assert.isTrue(sampleChunks > 0);
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.sampleChunks = sampleChunks;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public int getSampleChunks() {
+        return sampleChunks;
+    }
+}
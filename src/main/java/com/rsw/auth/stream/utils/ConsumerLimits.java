@@ -0,0 +1,64 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time limits of one {@link StreamSplitter} consumer, enforced by a {@link ConsumerWatchdog}.
+ *
+ * The stall limit is how long the consumer may leave data it has been given unread; a consumer waiting for the
+ * producer is not stalled.  The duration limit is how long it may take over the whole input, counted from the
+ * start of the split.  Either limit may be zero for none.
+ *
+ * Created by DAlms on 11/17/16.
+ */
+public class ConsumerLimits {
+
+    public static final ConsumerLimits NONE = new ConsumerLimits(0, 0, TimeUnit.MILLISECONDS);
+
+    private final long maxStallNanos;
+    private final long maxDurationNanos;
+
+    public ConsumerLimits(long maxStall, long maxDuration, TimeUnit unit) {
+        Assert.isTrue(maxStall >= 0);
+        Assert.isTrue(maxDuration >= 0);
+        this.maxStallNanos = unit.toNanos(maxStall);
+        this.maxDurationNanos = unit.toNanos(maxDuration);
+    }
+
+    public long getMaxStall(TimeUnit unit) {
+        return unit.convert(maxStallNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxDuration(TimeUnit unit) {
+        return unit.convert(maxDurationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return true if neither limit is set
+     */
+    public boolean isNone() {
+        return maxStallNanos == 0 && maxDurationNanos == 0;
+    }
+
+    /**
+     * @return limits no stricter than either, a limit of zero (none) winning over any other
+     */
+    static ConsumerLimits loosest(ConsumerLimits one, ConsumerLimits other) {
+        return new ConsumerLimits(loosest(one.maxStallNanos, other.maxStallNanos),
+                loosest(one.maxDurationNanos, other.maxDurationNanos), TimeUnit.NANOSECONDS);
+    }
+
+    private static long loosest(long one, long other) {
+        return one == 0 || other == 0 ? 0 : Math.max(one, other);
+    }
+
+    long getMaxStallNanos() {
+        return maxStallNanos;
+    }
+
+    long getMaxDurationNanos() {
+        return maxDurationNanos;
+    }
+}
@@ -0,0 +1,25 @@
+package com.rsw.auth.stream.utils;
+
+import java.io.IOException;
+
+/**
+ * Raised when a consumer held up a {@link StreamSplitter} longer than its {@link SlowConsumerPolicy} allows,
+ * both by the read loop (policy FAIL) and by the consumer's own stream (policy DETACH).
+ *
+ * Created by DAlms on 11/04/16.
+ */
+public class ConsumerStalledException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String consumer;
+
+    public ConsumerStalledException(String consumer, String message) {
+        super(message);
+        this.consumer = consumer;
+    }
+
+    public String getConsumer() {
+        return consumer;
+    }
+}
@@ -0,0 +1,94 @@
+package com.rsw.auth.stream.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time snapshot of one {@link StreamSplitter} consumer.
+ *
+ * Created by DAlms on 11/04/16.
+ */
+public class ConsumerStats {
+
+    public enum State {
+        /** still reading */
+        ACTIVE,
+        /** read through to end of input */
+        COMPLETED,
+        /** closed by its reader */
+        CLOSED,
+        /** read as much of the input as it wanted, a prefix consumer that reached its limit or closed before */
+        DONE_EARLY,
+        /** dropped by the slow consumer policy */
+        DETACHED,
+        /** ran past its own limits, see {@link ConsumerLimits} */
+        TIMED_OUT,
+        /** the whole split was aborted */
+        FAILED
+    }
+
+    private final String name;
+    private final State state;
+    private final long bytesRead;
+    private final long stallNanos;
+    private final long spilledBytes;
+    private final long activeNanos;
+
+    /**
+     * @param activeNanos from the start of the split until the consumer was done, or until now if it is not
+     */
+    public ConsumerStats(String name, State state, long bytesRead, long stallNanos, long spilledBytes,
+                         long activeNanos) {
+        this.name = name;
+        this.state = state;
+        this.bytesRead = bytesRead;
+        this.stallNanos = stallNanos;
+        this.spilledBytes = spilledBytes;
+        this.activeNanos = activeNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return total time the read loop spent waiting on this consumer to release ring space
+     */
+    public long getStallTime(TimeUnit unit) {
+        return unit.convert(stallNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return bytes that went through this consumer's spill file because it fell behind the ring
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return time from the start of the split until the consumer was done, or until now if it is not
+     */
+    public long getActiveTime(TimeUnit unit) {
+        return unit.convert(activeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the consumer's read rate over its active time, 0 before the split started
+     */
+    public long getBytesPerSecond() {
+        return activeNanos > 0 ? (long) (bytesRead * 1e9 / activeNanos) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + state + ", " + bytesRead + " bytes at " + getBytesPerSecond() / 1024 + " KiB/s, stalled "
+                + getStallTime(TimeUnit.MILLISECONDS) + " ms, spilled " + spilledBytes + " bytes]";
+    }
+}
@@ -0,0 +1,25 @@
+package com.rsw.auth.stream.utils;
+
+import java.io.IOException;
+
+/**
+ * Raised by the stream of a consumer that ran past its {@link ConsumerLimits}, and handed to the splitter's
+ * timeout listener (see {@link StreamSplitter#onConsumerTimeout}).
+ *
+ * Created by DAlms on 11/17/16.
+ */
+public class ConsumerTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String consumer;
+
+    public ConsumerTimeoutException(String consumer, String message) {
+        super(message);
+        this.consumer = consumer;
+    }
+
+    public String getConsumer() {
+        return consumer;
+    }
+}
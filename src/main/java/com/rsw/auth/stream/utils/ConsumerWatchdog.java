@@ -0,0 +1,145 @@
+package com.rsw.auth.stream.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enforces the {@link ConsumerLimits} of the consumers of every splitter it is given to, on one thread of its own
+ * that checks them all at a fixed tick.  Neither the producer nor the consumers wait on it, and a stuck consumer
+ * costs an entry in a set rather than a thread.
+ *
+ * A consumer past a limit is timed out: it no longer holds ring slots, so the producer goes on without it, its
+ * stream fails with a {@link ConsumerTimeoutException}, and the splitter's timeout listener is told, which is the
+ * place to abort whatever the consumer is blocked on outside the splitter.  Limits are only as precise as the tick.
+ *
+ * Created by DAlms on 11/17/16.
+ */
+public class ConsumerWatchdog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConsumerWatchdog.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public ConsumerWatchdog(long tick, TimeUnit unit) {
+        Assert.isTrue(tick > 0);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "consumer-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, tick, tick, unit);
+    }
+
+    /**
+     * @return consumers currently watched, over all splitters
+     */
+    public int getWatched() {
+        return watches.size();
+    }
+
+    /**
+     * @return consumers timed out so far
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        watches.clear();
+    }
+
+    /**
+     * Starts the clock of a consumer whose split just started.
+     */
+    void watch(RingBuffer ring, RingBuffer.Cursor cursor, ConsumerLimits limits) {
+        if (!limits.isNone()) {
+            watches.add(new Watch(ring, cursor, limits, System.nanoTime()));
+        }
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for (Iterator<Watch> it = watches.iterator(); it.hasNext(); ) {
+            Watch watch = it.next();
+            try {
+                if (!watch.cursor.holdsSlots() || watch.check(now)) {
+                    it.remove();
+                }
+            } catch (RuntimeException ex) {
+                // the scheduler would drop the task for good
+                LOG.warn("Could not check consumer {}", watch.cursor.getName(), ex);
+            }
+        }
+    }
+
+    private class Watch {
+
+        private final RingBuffer ring;
+        private final RingBuffer.Cursor cursor;
+        private final ConsumerLimits limits;
+        private final long started;
+        private long lastBytesRead;
+        private long stallStart;
+
+        Watch(RingBuffer ring, RingBuffer.Cursor cursor, ConsumerLimits limits, long started) {
+            this.ring = ring;
+            this.cursor = cursor;
+            this.limits = limits;
+            this.started = started;
+            this.lastBytesRead = cursor.getBytesRead();
+            this.stallStart = started;
+        }
+
+        /**
+         * @return true once the consumer has been timed out
+         */
+        boolean check(long now) {
+            long maxDuration = limits.getMaxDurationNanos();
+            if (maxDuration > 0 && now - started >= maxDuration) {
+                return timeOut("Consumer " + cursor.getName() + " ran for " + millis(now - started)
+                        + " ms, past its limit of " + millis(maxDuration) + " ms");
+            }
+            long bytesRead = cursor.getBytesRead();
+            if (bytesRead != lastBytesRead || !cursor.hasPending()) {
+                // reading, or waiting for the producer, which is not the consumer's fault
+                lastBytesRead = bytesRead;
+                stallStart = now;
+                return false;
+            }
+            long maxStall = limits.getMaxStallNanos();
+            if (maxStall > 0 && now - stallStart >= maxStall) {
+                return timeOut("Consumer " + cursor.getName() + " left its data unread for " + millis(now - stallStart)
+                        + " ms, past its limit of " + millis(maxStall) + " ms");
+            }
+            return false;
+        }
+
+        private boolean timeOut(String reason) {
+            // a consumer busy copying is retried at the next tick
+            if (!ring.timeOut(cursor, reason)) {
+                return false;
+            }
+            timeouts.incrementAndGet();
+            LOG.warn(reason);
+            return true;
+        }
+
+        private long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values, such as latencies in nanoseconds, cheap enough to record on hot paths.
+ *
+ * Values are counted in log-linear buckets: every power of two is split into 16 buckets, so a percentile is exact
+ * for values below 16 and within 1/16 (about 6%) of the true value above.  Recording is two atomic increments and
+ * touches no lock; a percentile walks the buckets, about a thousand of them.  The histogram keeps everything
+ * recorded since it was created or last reset.
+ *
+ * Created by DAlms on 11/19/16.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value negative values count as 0
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        counts.incrementAndGet(bucketOf(v));
+        count.incrementAndGet();
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99 for the value 99% of the recorded ones do not exceed
+     * @return the upper bound of the bucket holding that value, at most the largest value recorded; 0 if nothing
+     *         was recorded
+     */
+    public long getPercentile(double percentile) {
+        Assert.isTrue(percentile >= 0 && percentile <= 100, "Invalid percentile " + percentile);
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(bucket), max.get());
+            }
+        }
+        // records racing with the walk
+        return max.get();
+    }
+
+    /**
+     * Starts over; records racing with the reset may be lost or counted in part.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.set(0);
+        max.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lower + width - 1 < 0 ? Long.MAX_VALUE : lower + width - 1;
+    }
+}
@@ -0,0 +1,314 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.fileupload.ParameterParser;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Push style parser of multipart/form-data bodies, for callers that receive the body in pieces (non-blocking
+ * servlet reads) and so cannot hand commons-fileupload the blocking InputStream it wants.
+ *
+ * The caller owns the bytes: {@link #feed} reports how many of them it consumed, and whatever is left must be fed
+ * again, followed by the data that comes next.  Bytes that may be the start of a boundary are only consumed once
+ * the following bytes decide, and the data of a part is only consumed as far as the {@link Handler} takes it,
+ * which is how back pressure travels from the consumers of a part to the request.  The caller's buffer must be
+ * able to hold a complete header block.
+ *
+ * Part data is scanned for the delimiter with Boyer-Moore-Horspool: the byte under the delimiter's last position
+ * decides how far to move on, so a binary body is mostly looked at once every delimiter length rather than byte by
+ * byte.  The data is handed to the handler as slices of the caller's buffer, never copied.
+ *
+ * Created by DAlms on 11/10/16.
+ */
+public class MultipartParser {
+
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private enum State { PREAMBLE, BOUNDARY_END, HEADERS, BODY, EPILOGUE }
+
+    private final Handler handler;
+    // CRLF--boundary, the first boundary may come without the CRLF
+    private final byte[] delimiter;
+    // how far the delimiter search moves on, by the byte under the delimiter's last position
+    private final int[] skip = new int[256];
+    private State state = State.PREAMBLE;
+    private boolean atStart = true;
+    private boolean stalled;
+
+    public MultipartParser(String boundary, Handler handler) {
+        Assert.hasText(boundary);
+        Assert.notNull(handler);
+        this.handler = handler;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        Arrays.fill(skip, delimiter.length);
+        for (int ix = 0; ix < delimiter.length - 1; ix++) {
+            skip[delimiter[ix] & 0xff] = delimiter.length - 1 - ix;
+        }
+    }
+
+    /**
+     * @return the boundary parameter of a multipart content type, or null if there is none
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        ParameterParser parser = new ParameterParser();
+        parser.setLowerCaseNames(true);
+        return parser.parse(contentType, new char[] {';', ','}).get("boundary");
+    }
+
+    /**
+     * Parses as much of the given bytes as possible, calling the handler along the way.
+     * @return the number of bytes consumed; the rest has to be fed again with more data appended, or once the
+     *         handler is ready to take more
+     */
+    public int feed(byte[] b, int off, int len) throws IOException {
+        int pos = off;
+        int end = off + len;
+        stalled = false;
+        while (pos < end && !stalled && state != State.EPILOGUE) {
+            switch (state) {
+                case PREAMBLE:
+                    pos = preamble(b, pos, end);
+                    break;
+                case BOUNDARY_END:
+                    pos = boundaryEnd(b, pos, end);
+                    break;
+                case HEADERS:
+                    pos = headers(b, pos, end);
+                    break;
+                default:
+                    pos = body(b, pos, end);
+            }
+        }
+        if (state == State.EPILOGUE) {
+            // anything after the closing boundary is ignored
+            pos = end;
+        }
+        return pos - off;
+    }
+
+    /**
+     * @return true once the closing boundary has been parsed
+     */
+    public boolean isComplete() {
+        return state == State.EPILOGUE;
+    }
+
+    private int preamble(byte[] b, int pos, int end) {
+        if (atStart) {
+            int length = delimiter.length - CRLF.length;
+            if (end - pos < length) {
+                stalled = true;
+                return pos;
+            }
+            atStart = false;
+            if (regionMatches(b, pos, delimiter, CRLF.length, length)) {
+                state = State.BOUNDARY_END;
+                return pos + length;
+            }
+        }
+        int found = indexOfDelimiter(b, pos, end);
+        if (found >= 0) {
+            state = State.BOUNDARY_END;
+            return found + delimiter.length;
+        }
+        stalled = true;
+        return Math.max(pos, end - delimiter.length + 1);
+    }
+
+    private int boundaryEnd(byte[] b, int pos, int end) throws IOException {
+        if (b[pos] == ' ' || b[pos] == '\t') {
+            // transport padding
+            return pos + 1;
+        }
+        if (end - pos < 2) {
+            stalled = true;
+            return pos;
+        }
+        if (b[pos] == '-' && b[pos + 1] == '-') {
+            state = State.EPILOGUE;
+        } else if (b[pos] == '\r' && b[pos + 1] == '\n') {
+            state = State.HEADERS;
+        } else {
+            throw new IOException("Malformed multipart body, unexpected bytes after a boundary");
+        }
+        return pos + 2;
+    }
+
+    private int headers(byte[] b, int pos, int end) throws IOException {
+        int headerEnd;
+        if (end - pos >= CRLF.length && regionMatches(b, pos, CRLF, 0, CRLF.length)) {
+            headerEnd = pos + CRLF.length;
+        } else {
+            int found = indexOf(b, pos, end, HEADER_END);
+            if (found < 0) {
+                if (end - pos > MAX_HEADER_SIZE) {
+                    throw new IOException("Multipart part headers exceed " + MAX_HEADER_SIZE + " bytes");
+                }
+                stalled = true;
+                return pos;
+            }
+            headerEnd = found + HEADER_END.length;
+        }
+        Part part = parseHeaders(new String(b, pos, headerEnd - pos, StandardCharsets.UTF_8));
+        if (!handler.partStarted(part)) {
+            stalled = true;
+            return pos;
+        }
+        state = State.BODY;
+        return headerEnd;
+    }
+
+    private int body(byte[] b, int pos, int end) throws IOException {
+        int found = indexOfDelimiter(b, pos, end);
+        int dataEnd = found >= 0 ? found : Math.max(pos, end - delimiter.length + 1);
+        if (dataEnd > pos) {
+            int taken = handler.partData(b, pos, dataEnd - pos);
+            if (taken < dataEnd - pos) {
+                stalled = true;
+                return pos + taken;
+            }
+        }
+        if (found < 0) {
+            stalled = true;
+            return dataEnd;
+        }
+        handler.partEnded();
+        state = State.BOUNDARY_END;
+        return found + delimiter.length;
+    }
+
+    private static Part parseHeaders(String block) {
+        String name = null;
+        String fileName = null;
+        String contentType = null;
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String line : block.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String header = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            headers.put(header, value);
+            if ("Content-Disposition".equalsIgnoreCase(header)) {
+                ParameterParser parser = new ParameterParser();
+                parser.setLowerCaseNames(true);
+                Map<String, String> params = parser.parse(value, ';');
+                name = params.get("name");
+                if (params.containsKey("filename")) {
+                    fileName = params.get("filename") != null ? params.get("filename") : "";
+                }
+            } else if ("Content-Type".equalsIgnoreCase(header)) {
+                contentType = value;
+            }
+        }
+        return new Part(name, fileName, contentType, headers);
+    }
+
+    private static boolean regionMatches(byte[] b, int pos, byte[] pattern, int patternOff, int length) {
+        for (int ix = 0; ix < length; ix++) {
+            if (b[pos + ix] != pattern[patternOff + ix]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOfDelimiter(byte[] b, int from, int end) {
+        int last = delimiter.length - 1;
+        byte lastByte = delimiter[last];
+        for (int pos = from; pos <= end - delimiter.length; pos += skip[b[pos + last] & 0xff]) {
+            if (b[pos + last] == lastByte && regionMatches(b, pos, delimiter, 0, last)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] b, int from, int end, byte[] pattern) {
+        int last = end - pattern.length;
+        for (int pos = from; pos <= last; pos++) {
+            if (b[pos] == pattern[0] && regionMatches(b, pos, pattern, 0, pattern.length)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Receives the parts of the body as they are parsed.
+     */
+    public interface Handler {
+
+        /**
+         * @return false to hold the part back; the parser stops and offers the same part again on the next feed
+         */
+        boolean partStarted(Part part) throws IOException;
+
+        /**
+         * @return the number of bytes taken; taking fewer than {@code len} stops the parser, the rest is offered
+         *         again on the next feed
+         */
+        int partData(byte[] b, int off, int len) throws IOException;
+
+        void partEnded() throws IOException;
+    }
+
+    /**
+     * Headers of one part.
+     */
+    public static class Part {
+
+        private final String name;
+        private final String fileName;
+        private final String contentType;
+        private final Map<String, String> headers;
+
+        Part(String name, String fileName, String contentType, Map<String, String> headers) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+
+        /**
+         * @return the form field name of the part
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name of the uploaded file, null for a plain form field
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public boolean isFormField() {
+            return fileName == null;
+        }
+
+        /**
+         * @return the value of the named part header, matched ignoring case, or null if the part has none
+         */
+        public String getHeader(String header) {
+            return headers.get(header);
+        }
+    }
+}
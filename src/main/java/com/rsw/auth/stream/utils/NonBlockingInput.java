@@ -0,0 +1,26 @@
+package com.rsw.auth.stream.utils;
+
+import java.io.IOException;
+
+/**
+ * Implemented by the consumer streams of a {@link StreamSplitter}, for readers that must not block, such as the
+ * content producer of a non-blocking HTTP client: instead of waiting for data they read what is there and ask to
+ * be called back once there is more.
+ *
+ * Created by DAlms on 11/14/16.
+ */
+public interface NonBlockingInput {
+
+    /**
+     * Reads what is available without waiting for the splitter.
+     * @return the number of bytes read, 0 if nothing is available right now, -1 at end of input
+     */
+    int readNow(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Runs the callback once {@link #readNow} has something to return (data, end of input or a failure), right
+     * away if it has now.  The callback runs on the thread feeding the splitter, so it should only schedule the
+     * next read, never read or block itself.
+     */
+    void onReadable(Runnable callback);
+}
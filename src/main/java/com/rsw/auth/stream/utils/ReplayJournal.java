@@ -0,0 +1,259 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Everything a {@link StreamSplitter} published so far, for consumers that have to start over.
+ * The head of the input is kept in heap blocks up to the memory threshold, the rest in a temp file; one producer
+ * appends, any number of readers read from the start, each at its own pace and never holding up the producer.
+ * The volatile length is what makes appended bytes visible.
+ *
+ * A journal that cannot take another chunk (disk quota, write error) is cut short: readers get what it holds and
+ * then fail, and no new reader can be opened.  An aborted or dropped journal fails its readers right away.
+ *
+ * Created by DAlms on 11/22/16.
+ */
+class ReplayJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayJournal.class);
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final ReplayOptions options;
+    private volatile List<byte[]> blocks = new CopyOnWriteArrayList<>();
+    private volatile long length;
+    private volatile boolean finished;
+    private volatile IOException failure;
+    private volatile IOException truncation;
+    private File file;
+    private RandomAccessFile raf;
+    private volatile FileChannel channel;
+
+    ReplayJournal(ReplayOptions options) {
+        this.options = options;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Producer side; a chunk that does not fit cuts the journal short rather than failing the producer.
+     */
+    void append(byte[] b, int off, int len) {
+        if (failure != null || truncation != null) {
+            return;
+        }
+        long position = length;
+        int copied = 0;
+        try {
+            List<byte[]> memory = blocks;
+            while (copied < len && position < options.getMemoryBytes()) {
+                int index = (int) (position / BLOCK_SIZE);
+                if (index == memory.size()) {
+                    memory.add(new byte[(int) Math.min(BLOCK_SIZE,
+                            options.getMemoryBytes() - (long) index * BLOCK_SIZE)]);
+                }
+                int inBlock = (int) (position % BLOCK_SIZE);
+                int count = Math.min(len - copied, memory.get(index).length - inBlock);
+                System.arraycopy(b, off + copied, memory.get(index), inBlock, count);
+                copied += count;
+                position += count;
+            }
+            if (copied < len) {
+                if (position + len - copied > options.getMemoryBytes() + options.getMaxBytes()) {
+                    truncate(new IOException("Replay journal is full after " + position + " bytes"));
+                    return;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(b, off + copied, len - copied);
+                while (buffer.hasRemaining()) {
+                    position += fileChannel().write(buffer, position - options.getMemoryBytes());
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            // a dropped journal may lose its blocks and file under the producer, which only finds out here
+            truncate(new IOException("Replay journal could not be written", ex));
+            return;
+        }
+        length = position;
+        signal();
+    }
+
+    /**
+     * Producer side: the input ended, readers see end of stream once they have read the whole journal.
+     */
+    void finish() {
+        finished = true;
+        signal();
+    }
+
+    /**
+     * Fails every reader, e.g. with the split.
+     */
+    void abort(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        signal();
+    }
+
+    /**
+     * Frees the memory and deletes the file once nobody will read the journal again; readers still at it fail.
+     */
+    synchronized void drop() {
+        abort(new IOException("Replay journal dropped"));
+        blocks = Collections.emptyList();
+        if (raf != null) {
+            IOUtils.closeQuietly(raf);
+            if (!file.delete()) {
+                LOG.warn("Could not delete replay journal {}, deleting on exit", file);
+                file.deleteOnExit();
+            }
+            raf = null;
+        }
+    }
+
+    /**
+     * @return a stream of the whole input from its start, as far as it has been published, that waits for the rest
+     * @throws IOException if the journal was cut short, aborted or dropped
+     */
+    InputStream newReader() throws IOException {
+        checkFailure();
+        if (truncation != null) {
+            throw truncation;
+        }
+        return new Reader();
+    }
+
+    private synchronized FileChannel fileChannel() throws IOException {
+        if (raf == null) {
+            if (failure != null) {
+                // dropped
+                throw failure;
+            }
+            file = File.createTempFile("splitter-", ".replay", options.getDirectory());
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+        return channel;
+    }
+
+    private void truncate(IOException cause) {
+        truncation = cause;
+        if (failure == null) {
+            LOG.warn("{}, consumers can no longer replay the input", cause.getMessage());
+        }
+        signal();
+    }
+
+    private synchronized void signal() {
+        notifyAll();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException cause = failure;
+        if (cause != null) {
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private class Reader extends InputStream {
+
+        private long position;
+        private volatile boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int numRead = read(single, 0, 1);
+            return numRead < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (!awaitData()) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int count = (int) Math.min(len, length - position);
+            if (position < options.getMemoryBytes()) {
+                List<byte[]> memory = blocks;
+                checkFailure();
+                int index = (int) (position / BLOCK_SIZE);
+                int inBlock = (int) (position % BLOCK_SIZE);
+                count = Math.min(count, memory.get(index).length - inBlock);
+                System.arraycopy(memory.get(index), inBlock, b, off, count);
+            } else {
+                count = channel.read(ByteBuffer.wrap(b, off, count), position - options.getMemoryBytes());
+                checkFailure();
+            }
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            checkReadable();
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            signal();
+        }
+
+        /**
+         * @return false at end of input
+         */
+        private boolean awaitData() throws IOException {
+            while (true) {
+                checkReadable();
+                if (position < length) {
+                    return true;
+                }
+                if (truncation != null) {
+                    throw new IOException(truncation.getMessage(), truncation);
+                }
+                if (finished) {
+                    return false;
+                }
+                synchronized (ReplayJournal.this) {
+                    if (position >= length && !finished && truncation == null && failure == null && !closed) {
+                        try {
+                            ReplayJournal.this.wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for the replay journal");
+                        }
+                    }
+                }
+            }
+        }
+
+        private void checkReadable() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            checkFailure();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+import java.io.File;
+
+/**
+ * Settings for a {@link StreamSplitter} that keeps its input so that consumers can read it again from the start.
+ *
+ * Created by DAlms on 11/22/16.
+ */
+public class ReplayOptions {
+
+    private final long memoryBytes;
+    private final File directory;
+    private final long maxBytes;
+
+    /**
+     * @param memoryBytes how much of the input is kept on the heap, the rest goes to a temp file
+     * @param directory where the temp file goes
+     * @param maxBytes disk quota of the temp file; once the input outgrows it the journal is cut short, and the
+     *                 consumers can no longer replay it
+     */
+    public ReplayOptions(long memoryBytes, File directory, long maxBytes) {
+        Assert.isTrue(memoryBytes >= 0);
+        Assert.notNull(directory);
+        Assert.isTrue(maxBytes >= 0);
+        this.memoryBytes = memoryBytes;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,840 @@
+package com.rsw.auth.stream.utils;
+
+import com.rsw.auth.stream.utils.ConsumerStats.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Single producer, multiple consumer ring of chunks.
+ *
+ * The producer fills a slot once and publishes it; every consumer then reads that same slot through its own
+ * {@link Cursor}.  A slot is only handed back to the producer after the slowest active cursor has moved past it,
+ * so the ring holds at most {@code slots} chunks no matter how many consumers are attached.
+ *
+ * There are no monitors involved: the producer's sequence and each cursor's sequence are volatile, and a side
+ * that runs out of work parks itself after advertising the waiting thread.  The other side unparks it after
+ * moving its own sequence, so a wakeup can never be lost (an early unpark just leaves a permit behind).
+ *
+ * A producer without a thread of its own (non-blocking servlet reads) uses {@link #tryClaim} and
+ * {@link #onWritable} instead of {@link #claim}: it is called back when a cursor frees a slot rather than parking.
+ * Likewise a reader without a thread of its own uses {@link Cursor#readNow} and {@link Cursor#onReadable}.
+ *
+ * When the producer is held up it first tries to move the laggard's oldest chunk to the laggard's own
+ * {@link SpillFile}, if spilling is enabled, so a slow consumer no longer sets the pace for the others.  Otherwise,
+ * or once the disk quota is used up, the {@link SlowConsumerPolicy} decides whether to keep waiting, detach the
+ * laggard or abort the whole ring.  Apart from that, a {@link ConsumerWatchdog} may time out a cursor that runs
+ * past its own {@link ConsumerLimits}, which releases its slots just like a detach.
+ *
+ * A cursor limited to a prefix of the input ({@link Cursor#limitTo}) sees end of stream after that many bytes and
+ * may be closed before it gets there; either way it is done early, not failed, and releases its slots at once.
+ *
+ * Slots are allocated when the producer starts, from a {@link BufferPool} if one is set, and go back to the pool
+ * once the producer has finished and every cursor is done with them.  The producer may ask for a different chunk
+ * size with every claim; the claimed slot is then swapped for an array of that size, which is safe because no
+ * cursor can be reading a slot that is free to claim.
+ *
+ * Created by DAlms on 11/02/16.
+ */
+class RingBuffer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RingBuffer.class);
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int[] slotSizes;
+    private final int slotSize;
+    private final List<Cursor> cursors = new CopyOnWriteArrayList<>();
+    private final AtomicInteger doneCursors = new AtomicInteger();
+    private final AtomicBoolean recycled = new AtomicBoolean();
+    private final AtomicLong consumerWaits = new AtomicLong();
+    private final AtomicReference<Runnable> writableCallback = new AtomicReference<>();
+    private volatile Consumer<ConsumerTimeoutException> timeoutListener;
+    private volatile BufferPool bufferPool;
+    private volatile SlowConsumerPolicy policy = SlowConsumerPolicies.block();
+    private volatile SpillArea spillArea;
+
+    // number of chunks published so far, i.e. the sequence of the next chunk the producer will write
+    private volatile long published;
+    private volatile boolean finished;
+    private volatile IOException failure;
+    private volatile Thread waitingProducer;
+    private volatile long startNanos;
+
+    // occupancy samples taken at every publish, only written by the producer
+    private volatile long occupancySum;
+    private volatile long occupancySamples;
+    private volatile int maxOccupancy;
+
+    // stall bookkeeping of tryClaim, only touched by the producer
+    private Cursor pushLaggard;
+    private long pushLaggardSeq;
+    private long pushLaggardBytes;
+    private long pushStallStart;
+    private long pushLastCheck;
+
+    RingBuffer(int slotCount, int slotSize) {
+        this.slots = new byte[slotCount][];
+        this.lengths = new int[slotCount];
+        this.slotSizes = new int[slotCount];
+        this.slotSize = slotSize;
+    }
+
+    void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Allocates the slots; called by the producer before its first claim.
+     */
+    void start() {
+        startNanos = System.nanoTime();
+        BufferPool pool = bufferPool;
+        for (int ix = 0; ix < slots.length; ix++) {
+            slots[ix] = pool != null ? pool.acquireArray(slotSize) : new byte[slotSize];
+            slotSizes[ix] = slotSize;
+        }
+    }
+
+    void setPolicy(SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+
+    void setSpillArea(SpillArea spillArea) {
+        this.spillArea = spillArea;
+    }
+
+    void setTimeoutListener(Consumer<ConsumerTimeoutException> timeoutListener) {
+        this.timeoutListener = timeoutListener;
+    }
+
+    Cursor newCursor(String name) {
+        Cursor cursor = new Cursor(name, published);
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    List<Cursor> getCursors() {
+        return cursors;
+    }
+
+    /**
+     * Waits until the slot for the next chunk has been released by every active cursor and returns it for filling.
+     * While waiting the slow consumer policy is consulted each time the laggard exceeds the stall timeout.
+     * Cursors closed by their reader no longer hold slots, they are reported by {@link #publish(int)}.
+     * @param chunkSize the number of bytes the producer wants to fill, at most the length of the returned slot
+     */
+    byte[] claim(int chunkSize) throws IOException {
+        long next = published;
+        if (spillLaggards(next) != null) {
+            waitingProducer = Thread.currentThread();
+            try {
+                awaitSlot(next);
+            } finally {
+                waitingProducer = null;
+            }
+        }
+        return slotFor(next, chunkSize);
+    }
+
+    /**
+     * Non-blocking {@link #claim} for producers driven by callbacks rather than a thread of their own.
+     * The slow consumer policy is applied whenever the producer tries again, so its stall timeout only takes
+     * effect if the producer keeps trying.
+     * @return the slot, or null if it is still held by a cursor; {@link #onWritable} tells when to try again
+     */
+    byte[] tryClaim(int chunkSize) throws IOException {
+        checkFailure();
+        long next = published;
+        Cursor laggard = spillLaggards(next);
+        long now = System.nanoTime();
+        if (pushLaggard != null) {
+            chargeStall(pushLaggard, now - pushLastCheck);
+        }
+        pushLastCheck = now;
+        while (laggard != null) {
+            if (laggard != pushLaggard || laggard.seq != pushLaggardSeq
+                    || laggard.getBytesRead() != pushLaggardBytes) {
+                pushLaggard = laggard;
+                pushLaggardSeq = laggard.seq;
+                pushLaggardBytes = laggard.getBytesRead();
+                pushStallStart = now;
+            }
+            long stalled = now - pushStallStart;
+            if (stalled < policy.getStallTimeoutNanos()) {
+                return null;
+            }
+            if (policy.onStall(laggard.name) == SlowConsumerPolicy.Action.FAIL) {
+                throw abort(new ConsumerStalledException(laggard.name, "Consumer " + laggard.name
+                        + " stalled the splitter for " + TimeUnit.NANOSECONDS.toMillis(stalled) + " ms"));
+            }
+            detachAt(pushLaggardSeq, stalled);
+            laggard = spillLaggards(next);
+        }
+        pushLaggard = null;
+        return slotFor(next, chunkSize);
+    }
+
+    /**
+     * Runs the callback once after a cursor frees a slot, or right away if {@link #tryClaim} could succeed now.
+     * The callback runs on whichever thread freed the slot, often a consumer in the middle of a read, so it must
+     * not block or produce itself; it should hand the work to the producer's executor.
+     */
+    void onWritable(Runnable callback) {
+        writableCallback.set(callback);
+        // a cursor may have moved on before the callback was visible to it
+        if (failure != null || findLaggard(published) == null) {
+            runWritableCallback();
+        }
+    }
+
+    /**
+     * Makes the claimed slot visible to every cursor.
+     * Like a pipe whose read end went away, this fails if a consumer closed its stream before end of input, unless
+     * the policy detaches such consumers.
+     */
+    void publish(int length) throws IOException {
+        checkFailure();
+        long next = published;
+        long slowest = next;
+        for (Cursor cursor : cursors) {
+            if (cursor.state == State.CLOSED && !cursor.earlyCloseAccepted) {
+                if (policy.onEarlyClose(cursor.name) == SlowConsumerPolicy.Action.FAIL) {
+                    throw abort(new IOException("Pipe closed by consumer " + cursor.name));
+                }
+                cursor.earlyCloseAccepted = true;
+            }
+            if (cursor.holdsSlots()) {
+                slowest = Math.min(slowest, cursor.seq);
+            }
+        }
+        lengths[index(next)] = length;
+        published = next + 1;
+        recordOccupancy((int) Math.min(next + 1 - slowest, slots.length));
+        wakeConsumers();
+    }
+
+    /**
+     * Signals end of input; cursors see EOF once they have drained what was already published.
+     */
+    void finish() {
+        finished = true;
+        wakeConsumers();
+        recycleIfDone();
+    }
+
+    /**
+     * Fails every active cursor with the given cause.  The first failure wins.
+     * @return the exception the producer should throw
+     */
+    IOException abort(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+            for (Cursor cursor : cursors) {
+                cursor.fail();
+            }
+        }
+        wakeConsumers();
+        runWritableCallback();
+        return failure;
+    }
+
+    /**
+     * Watchdog side: fails the cursor with a timeout, lets the producer go on without it and tells the listener.
+     * @return false if the cursor is done already, or busy copying right now
+     */
+    boolean timeOut(Cursor cursor, String reason) {
+        if (!cursor.timeOut(reason)) {
+            return false;
+        }
+        wakeProducer();
+        Consumer<ConsumerTimeoutException> listener = timeoutListener;
+        if (listener != null) {
+            listener.accept(new ConsumerTimeoutException(cursor.name, reason));
+        }
+        return true;
+    }
+
+    int slotCount() {
+        return slots.length;
+    }
+
+    int slotSize() {
+        return slotSize;
+    }
+
+    boolean isAborted() {
+        return failure != null;
+    }
+
+    /**
+     * @return the mean number of slots holding chunks some cursor has yet to read, sampled as each one is published
+     */
+    double getMeanOccupancy() {
+        long samples = occupancySamples;
+        return samples == 0 ? 0 : (double) occupancySum / samples;
+    }
+
+    int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    /**
+     * @return how many times a cursor ran out of published chunks and had to park
+     */
+    long getConsumerWaits() {
+        return consumerWaits.get();
+    }
+
+    private void recordOccupancy(int occupancy) {
+        occupancySum += occupancy;
+        occupancySamples++;
+        if (occupancy > maxOccupancy) {
+            maxOccupancy = occupancy;
+        }
+    }
+
+    private void resizeSlot(int index, int size) {
+        BufferPool pool = bufferPool;
+        if (pool != null) {
+            pool.releaseArray(slots[index]);
+            slots[index] = pool.acquireArray(size);
+        } else {
+            slots[index] = new byte[size];
+        }
+        slotSizes[index] = size;
+    }
+
+    private void awaitSlot(long next) throws IOException {
+        Cursor laggard = null;
+        long laggardSeq = 0;
+        long laggardBytes = 0;
+        long lastCheck = System.nanoTime();
+        long stallStart = lastCheck;
+        while (true) {
+            checkFailure();
+            // looked up again on every pass, including the first one after waitingProducer was set, so a consumer
+            // that moved on just before we advertised ourselves cannot leave us parked
+            Cursor current = spillLaggards(next);
+            long now = System.nanoTime();
+            if (laggard != null) {
+                chargeStall(laggard, now - lastCheck);
+            }
+            lastCheck = now;
+            if (current == null) {
+                return;
+            }
+            if (current != laggard || current.seq != laggardSeq || current.getBytesRead() != laggardBytes) {
+                // someone made progress, the stall clock starts over for whoever holds us up now; a cursor over its
+                // spill quota keeps its seq while it drains its spill file, so bytes read count as progress too
+                laggard = current;
+                laggardSeq = current.seq;
+                laggardBytes = current.getBytesRead();
+                stallStart = now;
+            }
+            long stallTimeout = policy.getStallTimeoutNanos();
+            long stalled = now - stallStart;
+            if (stalled >= stallTimeout) {
+                if (policy.onStall(laggard.name) == SlowConsumerPolicy.Action.FAIL) {
+                    throw abort(new ConsumerStalledException(laggard.name, "Consumer " + laggard.name
+                            + " stalled the splitter for " + TimeUnit.NANOSECONDS.toMillis(stalled) + " ms"));
+                }
+                detachAt(laggardSeq, stalled);
+            } else if (stallTimeout == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, stallTimeout - stalled);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for a consumer");
+            }
+        }
+    }
+
+    /**
+     * Spills the oldest chunk of every cursor that holds the slot for {@code seq}, as far as the quota allows.
+     * @return the cursor still holding the slot, or null if it is free
+     */
+    private Cursor spillLaggards(long seq) {
+        Cursor laggard = findLaggard(seq);
+        while (laggard != null && laggard.spillHead()) {
+            laggard = findLaggard(seq);
+        }
+        return laggard;
+    }
+
+    /**
+     * @return the active cursor furthest behind if it still holds the slot for {@code seq}, otherwise null
+     */
+    private Cursor findLaggard(long seq) {
+        long oldestNeeded = seq - slots.length;
+        Cursor laggard = null;
+        for (Cursor cursor : cursors) {
+            if (cursor.holdsSlots() && cursor.seq <= oldestNeeded && (laggard == null || cursor.seq < laggard.seq)) {
+                laggard = cursor;
+            }
+        }
+        return laggard;
+    }
+
+    /**
+     * Charges the time since the last check to whoever held the producer up then, even if it has moved on since;
+     * by the time the producer is woken it usually has.
+     */
+    private void chargeStall(Cursor laggard, long nanos) {
+        laggard.stallNanos += nanos;
+    }
+
+    private void detachAt(long laggardSeq, long stalledNanos) {
+        for (Cursor cursor : cursors) {
+            if (cursor.holdsSlots() && cursor.seq == laggardSeq) {
+                cursor.detach(stalledNanos);
+            }
+        }
+    }
+
+    private void cursorDone() {
+        SpillArea area = spillArea;
+        if (doneCursors.incrementAndGet() == cursors.size() && area != null) {
+            area.close();
+        }
+        recycleIfDone();
+    }
+
+    /**
+     * Hands the slots back to the pool once nobody can touch them any more.
+     */
+    private void recycleIfDone() {
+        BufferPool pool = bufferPool;
+        if (pool != null && finished && doneCursors.get() == cursors.size() && slots[0] != null
+                && recycled.compareAndSet(false, true)) {
+            for (int ix = 0; ix < slots.length; ix++) {
+                pool.releaseArray(slots[ix]);
+                slots[ix] = null;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void wakeConsumers() {
+        for (Cursor cursor : cursors) {
+            cursor.wake();
+        }
+    }
+
+    private void wakeProducer() {
+        Thread waiter = waitingProducer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        runWritableCallback();
+    }
+
+    private void runWritableCallback() {
+        if (writableCallback.get() != null) {
+            Runnable callback = writableCallback.getAndSet(null);
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    private byte[] slotFor(long seq, int chunkSize) {
+        int index = index(seq);
+        if (slotSizes[index] != chunkSize) {
+            resizeSlot(index, chunkSize);
+        }
+        return slots[index];
+    }
+
+    private int index(long seq) {
+        return (int) (seq % slots.length);
+    }
+
+    /**
+     * One consumer's view of the ring.  Not thread safe, like any other InputStream.
+     *
+     * The producer may change the state of a cursor (detach, spill its oldest chunk) while its reader is copying out
+     * of a slot, so a reader pins the cursor for the duration of each copy and the producer only touches an unpinned
+     * cursor.  Otherwise a reader could see a slot that is already being refilled.
+     */
+    class Cursor extends InputStream implements NonBlockingInput {
+
+        private final String name;
+        private final AtomicBoolean pinned = new AtomicBoolean();
+        private final AtomicReference<Runnable> readableCallback = new AtomicReference<>();
+        private volatile long seq;
+        private volatile State state = State.ACTIVE;
+        private volatile Thread waiter;
+        private volatile long bytesRead;
+        private volatile long stallNanos;
+        private volatile long doneNanos;
+        private volatile String detachReason;
+        private volatile String timeoutReason;
+        private volatile SpillFile spillFile;
+        private boolean earlyCloseAccepted;
+        // bytes the reader sees at most, for a consumer of a prefix of the input
+        private long limit = Long.MAX_VALUE;
+        private boolean done;
+        private int offset;
+
+        private Cursor(String name, long seq) {
+            this.name = name;
+            this.seq = seq;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        ConsumerStats getStats() {
+            SpillFile spill = spillFile;
+            long start = startNanos;
+            long end = doneNanos != 0 ? doneNanos : System.nanoTime();
+            return new ConsumerStats(name, state, bytesRead, stallNanos, spill != null ? spill.getLength() : 0,
+                    start != 0 ? end - start : 0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int numRead = read(single, 0, 1);
+            return numRead < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            checkReadable();
+            if (state == State.DONE_EARLY) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int numRead = readUpTo(b, off, (int) Math.min(len, limit - bytesRead));
+            if (numRead > 0 && bytesRead >= limit) {
+                // the whole prefix is read, the producer need not wait for this cursor any more
+                release(State.DONE_EARLY);
+            }
+            return numRead;
+        }
+
+        private int readUpTo(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                // spilled chunks come before whatever is left in the ring for this cursor
+                SpillFile spill = spillFile;
+                if (spill != null && spill.unread() > 0) {
+                    // pinned so a detach or time out cannot close the file under us
+                    pin();
+                    try {
+                        checkReadable();
+                        if (state == State.DONE_EARLY) {
+                            return -1;
+                        }
+                        int numRead = spill.read(b, off, len);
+                        bytesRead += numRead;
+                        return numRead;
+                    } finally {
+                        pinned.set(false);
+                    }
+                }
+                if (!awaitData()) {
+                    release(State.COMPLETED);
+                    return -1;
+                }
+                pin();
+                try {
+                    checkReadable();
+                    if (state == State.DONE_EARLY) {
+                        // closed by another thread, the slot may be the producer's again
+                        return -1;
+                    }
+                    // the producer may have spilled our oldest chunk before we got the pin
+                    if (seq < published && !hasSpilled()) {
+                        return copyFromSlot(b, off, len);
+                    }
+                } finally {
+                    pinned.set(false);
+                }
+            }
+        }
+
+        @Override
+        public int readNow(byte[] b, int off, int len) throws IOException {
+            // finished is checked before published so a final publish is never mistaken for EOF
+            boolean eof = finished;
+            if (seq < published || hasSpilled() || eof || state != State.ACTIVE) {
+                // cannot block: there is data, end of input or an exception to throw
+                return read(b, off, len);
+            }
+            return 0;
+        }
+
+        @Override
+        public void onReadable(Runnable callback) {
+            readableCallback.set(callback);
+            if (finished || seq < published || hasSpilled() || state != State.ACTIVE) {
+                runReadableCallback();
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            checkReadable();
+            if (state == State.DONE_EARLY) {
+                return 0;
+            }
+            long left = limit - bytesRead;
+            SpillFile spill = spillFile;
+            if (spill != null && spill.unread() > 0) {
+                return (int) Math.min(Math.min(Integer.MAX_VALUE, spill.unread()), left);
+            }
+            return seq < published ? (int) Math.min(lengths[index(seq)] - offset, left) : 0;
+        }
+
+        @Override
+        public void close() {
+            release(limit != Long.MAX_VALUE ? State.DONE_EARLY : State.CLOSED);
+        }
+
+        boolean holdsSlots() {
+            return state == State.ACTIVE;
+        }
+
+        /**
+         * Lets the reader close the cursor before end of input whatever the slow consumer policy says, for a consumer
+         * that can start over elsewhere; must be called before the ring starts.
+         */
+        void acceptEarlyClose() {
+            earlyCloseAccepted = true;
+        }
+
+        /**
+         * Makes the cursor see end of stream after the given number of bytes, for a consumer that only needs the
+         * start of the input; closing it before is the consumer saying it has seen enough.  Must be called before
+         * the ring starts.
+         */
+        void limitTo(long maxBytes) {
+            this.limit = maxBytes;
+        }
+
+        long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * @return true if the cursor has data to read, i.e. any wait is its reader's and not the producer's
+         */
+        boolean hasPending() {
+            return seq < published || hasSpilled();
+        }
+
+        private int copyFromSlot(byte[] b, int off, int len) {
+            int index = index(seq);
+            int numRead = Math.min(len, lengths[index] - offset);
+            System.arraycopy(slots[index], offset, b, off, numRead);
+            offset += numRead;
+            bytesRead += numRead;
+            if (offset == lengths[index]) {
+                offset = 0;
+                seq = seq + 1;
+                wakeProducer();
+            }
+            return numRead;
+        }
+
+        /**
+         * Producer side: moves the unread part of this cursor's oldest chunk to its spill file.
+         * @return false if spilling is off, the quota is used up, or the reader is busy copying
+         */
+        private boolean spillHead() {
+            SpillArea area = spillArea;
+            if (area == null || !pinned.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                if (state != State.ACTIVE || seq >= published) {
+                    return false;
+                }
+                if (spillFile == null) {
+                    spillFile = area.newFile(name);
+                }
+                int index = index(seq);
+                if (!spillFile.append(slots[index], offset, lengths[index] - offset)) {
+                    return false;
+                }
+                offset = 0;
+                seq = seq + 1;
+            } catch (IOException ex) {
+                LOG.warn("Could not spill for consumer {}, falling back to the slow consumer policy", name, ex);
+                return false;
+            } finally {
+                pinned.set(false);
+            }
+            wake();
+            return true;
+        }
+
+        private boolean hasSpilled() {
+            SpillFile spill = spillFile;
+            return spill != null && spill.unread() > 0;
+        }
+
+        /**
+         * Consumer side: moves an active cursor to its final state and releases its spill file.
+         */
+        private void release(State finalState) {
+            pin();
+            try {
+                if (state == State.ACTIVE) {
+                    state = finalState;
+                }
+                if (!done) {
+                    doneNanos = System.nanoTime();
+                    done = true;
+                    if (spillFile != null) {
+                        spillFile.close();
+                    }
+                    cursorDone();
+                }
+            } finally {
+                pinned.set(false);
+            }
+            wakeProducer();
+        }
+
+        private void detach(long stalledNanos) {
+            if (pinned.compareAndSet(false, true)) {
+                try {
+                    if (state == State.ACTIVE) {
+                        detachReason = "Consumer " + name + " was detached after stalling the splitter for "
+                                + TimeUnit.NANOSECONDS.toMillis(stalledNanos) + " ms";
+                        state = State.DETACHED;
+                        if (spillFile != null) {
+                            spillFile.close();
+                        }
+                    }
+                } finally {
+                    pinned.set(false);
+                }
+                wake();
+            }
+            // a pinned cursor is copying right now, so it is not stalled any more
+        }
+
+        private boolean timeOut(String reason) {
+            if (!pinned.compareAndSet(false, true)) {
+                return false;
+            }
+            try {
+                if (state != State.ACTIVE) {
+                    return false;
+                }
+                timeoutReason = reason;
+                state = State.TIMED_OUT;
+                if (spillFile != null) {
+                    spillFile.close();
+                }
+            } finally {
+                pinned.set(false);
+            }
+            wake();
+            return true;
+        }
+
+        private void fail() {
+            // no pin needed, a failed ring never hands out slots again
+            if (state == State.ACTIVE) {
+                state = State.FAILED;
+            }
+        }
+
+        private void wake() {
+            Thread thread = waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+            runReadableCallback();
+        }
+
+        private void runReadableCallback() {
+            if (readableCallback.get() != null) {
+                Runnable callback = readableCallback.getAndSet(null);
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        }
+
+        private void pin() {
+            while (!pinned.compareAndSet(false, true)) {
+                // only ever contended by the producer changing our state, which takes a few instructions
+                Thread.yield();
+            }
+        }
+
+        private void checkReadable() throws IOException {
+            switch (state) {
+                case CLOSED:
+                    throw new IOException("Stream closed");
+                case DETACHED:
+                    throw new ConsumerStalledException(name, detachReason);
+                case TIMED_OUT:
+                    throw new ConsumerTimeoutException(name, timeoutReason);
+                case FAILED:
+                    throw new IOException("Split aborted", failure);
+                default:
+            }
+        }
+
+        /**
+         * @return true when a published chunk is ready at this cursor, false at end of input
+         */
+        private boolean awaitData() throws IOException {
+            if (seq < published || hasSpilled()) {
+                return true;
+            }
+            waiter = Thread.currentThread();
+            try {
+                while (true) {
+                    // finished is checked before published so a final publish is never mistaken for EOF
+                    boolean eof = finished;
+                    if (seq < published || hasSpilled()) {
+                        return true;
+                    }
+                    if (eof) {
+                        return false;
+                    }
+                    consumerWaits.incrementAndGet();
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException("Interrupted while waiting for data");
+                    }
+                    checkReadable();
+                }
+            } finally {
+                waiter = null;
+            }
+        }
+    }
+}
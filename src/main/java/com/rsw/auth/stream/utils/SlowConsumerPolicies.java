@@ -0,0 +1,95 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory methods for the standard {@link SlowConsumerPolicy} flavors.
+ *
+ * Created by DAlms on 11/04/16.
+ */
+public final class SlowConsumerPolicies {
+
+    private SlowConsumerPolicies() {
+    }
+
+    /**
+     * Waits for slow consumers indefinitely; a consumer closing early fails the split.  This is how a set of pipes
+     * behaves and is the splitter's default.
+     */
+    public static SlowConsumerPolicy block() {
+        return new FixedPolicy(Long.MAX_VALUE, SlowConsumerPolicy.Action.FAIL, SlowConsumerPolicy.Action.FAIL);
+    }
+
+    /**
+     * Waits for a stalled consumer up to the timeout, then fails the split.
+     */
+    public static SlowConsumerPolicy block(long timeout, TimeUnit unit) {
+        return new FixedPolicy(unit.toNanos(timeout), SlowConsumerPolicy.Action.FAIL, SlowConsumerPolicy.Action.FAIL);
+    }
+
+    /**
+     * Detaches a consumer that stalls the read loop longer than the timeout, or closes early, so the remaining
+     * consumers keep going at full speed.
+     */
+    public static SlowConsumerPolicy detach(long timeout, TimeUnit unit) {
+        return new FixedPolicy(unit.toNanos(timeout), SlowConsumerPolicy.Action.DETACH,
+                SlowConsumerPolicy.Action.DETACH);
+    }
+
+    /**
+     * Fails the split the moment any consumer holds up the read loop or goes away, for pipelines where the ring is
+     * sized as the allowed slack and a stall means the upload is lost anyway.
+     */
+    public static SlowConsumerPolicy failFast() {
+        return new FixedPolicy(0, SlowConsumerPolicy.Action.FAIL, SlowConsumerPolicy.Action.FAIL);
+    }
+
+    /**
+     * Maps the configuration names block, detach and fail-fast onto a policy; a non-positive timeout means none.
+     */
+    public static SlowConsumerPolicy forName(String name, long timeoutMillis) {
+        Assert.hasText(name);
+        switch (name.trim().toLowerCase()) {
+            case "block":
+                return timeoutMillis > 0 ? block(timeoutMillis, TimeUnit.MILLISECONDS) : block();
+            case "detach":
+                Assert.isTrue(timeoutMillis > 0, "detach policy requires a timeout");
+                return detach(timeoutMillis, TimeUnit.MILLISECONDS);
+            case "fail-fast":
+                return failFast();
+            default:
+                throw new IllegalArgumentException("Unknown slow consumer policy " + name);
+        }
+    }
+
+    private static class FixedPolicy implements SlowConsumerPolicy {
+
+        private final long stallTimeoutNanos;
+        private final Action stallAction;
+        private final Action earlyCloseAction;
+
+        FixedPolicy(long stallTimeoutNanos, Action stallAction, Action earlyCloseAction) {
+            Assert.isTrue(stallTimeoutNanos >= 0);
+            this.stallTimeoutNanos = stallTimeoutNanos;
+            this.stallAction = stallAction;
+            this.earlyCloseAction = earlyCloseAction;
+        }
+
+        @Override
+        public long getStallTimeoutNanos() {
+            return stallTimeoutNanos;
+        }
+
+        @Override
+        public Action onStall(String consumer) {
+            return stallAction;
+        }
+
+        @Override
+        public Action onEarlyClose(String consumer) {
+            return earlyCloseAction;
+        }
+    }
+}
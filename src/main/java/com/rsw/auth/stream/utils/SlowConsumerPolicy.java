@@ -0,0 +1,33 @@
+package com.rsw.auth.stream.utils;
+
+/**
+ * Decides what the {@link StreamSplitter} does when a consumer holds up the shared read loop.
+ * Ready made policies are available from {@link SlowConsumerPolicies}.
+ *
+ * Created by DAlms on 11/04/16.
+ */
+public interface SlowConsumerPolicy {
+
+    enum Action {
+        /** drop the consumer, its stream fails on the next read and the others carry on at full speed */
+        DETACH,
+        /** abort the whole split, every consumer stream and the read loop fail */
+        FAIL
+    }
+
+    /**
+     * @return how long the read loop waits on a consumer that makes no progress before {@link #onStall} is asked,
+     * or Long.MAX_VALUE to wait as long as it takes
+     */
+    long getStallTimeoutNanos();
+
+    /**
+     * Called when a consumer has held up the read loop for the whole stall timeout.
+     */
+    Action onStall(String consumer);
+
+    /**
+     * Called when a consumer closes its stream before the end of input.
+     */
+    Action onEarlyClose(String consumer);
+}
@@ -0,0 +1,75 @@
+package com.rsw.auth.stream.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The spill files of one splitter and the disk quota they share.
+ * Files are deleted as soon as their consumer is done; whatever is left goes when the splitter closes the area
+ * after its last consumer finished.  The quota caps the bytes on disk: a file hands back its share as its reader
+ * drops each segment, and the rest when it is deleted.
+ *
+ * Created by DAlms on 11/05/16.
+ */
+class SpillArea {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillArea.class);
+
+    private final SpillOptions options;
+    private final AtomicLong reserved = new AtomicLong();
+    private final Set<SpillFile> files = ConcurrentHashMap.newKeySet();
+
+    SpillArea(SpillOptions options) {
+        this.options = options;
+    }
+
+    SpillFile newFile(String consumer) throws IOException {
+        SpillFile file = new SpillFile(this, consumer, options.getDirectory(), options.getSegmentSize());
+        files.add(file);
+        return file;
+    }
+
+    /**
+     * Takes {@code bytes} out of the quota.
+     * @return false if the quota cannot cover them
+     */
+    boolean reserve(long bytes) {
+        if (reserved.addAndGet(bytes) > options.getMaxBytes()) {
+            reserved.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Puts {@code bytes} taken with {@link #reserve} back into the quota.
+     */
+    void unreserve(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    long getReservedBytes() {
+        return reserved.get();
+    }
+
+    /**
+     * @param reservedBytes what the file still held of the quota
+     */
+    void release(SpillFile file, long reservedBytes) {
+        unreserve(reservedBytes);
+        if (files.remove(file)) {
+            LOG.debug("Released spill file for {} after {} bytes", file.getConsumer(), file.getLength());
+        }
+    }
+
+    void close() {
+        for (SpillFile file : files) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append only, memory mapped temp file holding the chunks a lagging consumer has not read yet.
+ * One producer appends, one consumer reads; the volatile length is what makes appended bytes visible.
+ *
+ * The file is mapped in fixed size segments.  The reader drops each segment once it has moved past it so the
+ * mapping can be reclaimed and its bytes go back to the quota, and the file is deleted on {@link #close()}.
+ *
+ * Created by DAlms on 11/05/16.
+ */
+class SpillFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillFile.class);
+
+    private final SpillArea area;
+    private final String consumer;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    // this file's share of the area's quota, appended bytes not in a dropped segment
+    private final AtomicLong reserved = new AtomicLong();
+
+    private volatile long length;
+    private volatile boolean closed;
+    private ByteBuffer writeView;
+    private ByteBuffer readView;
+    private long readPosition;
+
+    SpillFile(SpillArea area, String consumer, File directory, int segmentSize) throws IOException {
+        this.area = area;
+        this.consumer = consumer;
+        this.segmentSize = segmentSize;
+        this.file = File.createTempFile("splitter-" + consumer.replaceAll("[^A-Za-z0-9_-]", "_") + "-", ".spill",
+                directory);
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+    }
+
+    String getConsumer() {
+        return consumer;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Producer side.
+     * @return false if the splitter's disk quota does not cover the bytes, nothing was written then
+     */
+    boolean append(byte[] b, int off, int len) throws IOException {
+        if (closed || !area.reserve(len)) {
+            return false;
+        }
+        reserved.addAndGet(len);
+        int remaining = len;
+        while (remaining > 0) {
+            if (writeView == null || !writeView.hasRemaining()) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) segments.size() * segmentSize, segmentSize);
+                segments.add(segment);
+                writeView = segment.duplicate();
+            }
+            int count = Math.min(remaining, writeView.remaining());
+            writeView.put(b, off + len - remaining, count);
+            remaining -= count;
+        }
+        length = length + len;
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     * @return bytes that were appended but not read yet
+     */
+    long unread() {
+        return length - readPosition;
+    }
+
+    /**
+     * Consumer side.
+     * @return number of bytes copied, 0 if nothing is waiting in the file
+     */
+    int read(byte[] b, int off, int len) {
+        int count = (int) Math.min(len, unread());
+        int copied = 0;
+        while (copied < count) {
+            int segmentIndex = (int) (readPosition / segmentSize);
+            if (readView == null || !readView.hasRemaining()) {
+                if (segmentIndex > 0) {
+                    // done with the previous segment, let it be unmapped
+                    segments.set(segmentIndex - 1, null);
+                    reserved.addAndGet(-segmentSize);
+                    area.unreserve(segmentSize);
+                }
+                readView = segments.get(segmentIndex).duplicate();
+                readView.position((int) (readPosition % segmentSize));
+            }
+            int chunk = Math.min(count - copied, readView.remaining());
+            readView.get(b, off + copied, chunk);
+            copied += chunk;
+            readPosition += chunk;
+        }
+        return copied;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        segments.clear();
+        writeView = null;
+        readView = null;
+        IOUtils.closeQuietly(raf);
+        if (!file.delete()) {
+            // a mapping that is not garbage collected yet keeps the file on some platforms
+            LOG.warn("Could not delete spill file {}, deleting on exit", file);
+            file.deleteOnExit();
+        }
+        area.release(this, reserved.getAndSet(0));
+    }
+}
@@ -0,0 +1,52 @@
+package com.rsw.auth.stream.utils;
+
+import org.springframework.util.Assert;
+
+import java.io.File;
+
+/**
+ * Settings for a {@link StreamSplitter} that spills chunks to disk for consumers that fall behind the ring.
+ *
+ * Created by DAlms on 11/05/16.
+ */
+public class SpillOptions {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final File directory;
+    private final long maxBytes;
+    private final int segmentSize;
+
+    /**
+     * @param directory where the temp files go
+     * @param maxBytes disk quota shared by all consumers of one splitter; once used up the slow consumer
+     *                 policy takes over again
+     */
+    public SpillOptions(File directory, long maxBytes) {
+        this(directory, maxBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize size of each memory mapped region of a spill file
+     */
+    public SpillOptions(File directory, long maxBytes, int segmentSize) {
+        Assert.notNull(directory);
+        Assert.isTrue(maxBytes > 0);
+        Assert.isTrue(segmentSize > 0);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+}
@@ -0,0 +1,110 @@
+package com.rsw.auth.stream.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time snapshot of the producing side of one {@link StreamSplitter}.
+ *
+ * The producer's time splits into waiting for its input (the client), waiting for room in the ring (the slowest
+ * consumer) and everything else, which is the splitter's own work of copying and digesting chunks.  Whichever
+ * took longest is what limited the split, see {@link #getLimitedBy()}.
+ *
+ * Created by DAlms on 11/19/16.
+ */
+public class SplitterStats {
+
+    public enum Limit {
+        /** mostly waiting for input, e.g. a slow client */
+        INPUT,
+        /** mostly busy with its own work */
+        SPLITTER,
+        /** mostly waiting for the slowest consumer to make room */
+        CONSUMERS
+    }
+
+    private final long bytesIn;
+    private final long chunks;
+    private final long readWaitNanos;
+    private final long writeBlockNanos;
+    private final long elapsedNanos;
+    private final double meanOccupancy;
+    private final int maxOccupancy;
+    private final int slotCount;
+
+    public SplitterStats(long bytesIn, long chunks, long readWaitNanos, long writeBlockNanos, long elapsedNanos,
+                         double meanOccupancy, int maxOccupancy, int slotCount) {
+        this.bytesIn = bytesIn;
+        this.chunks = chunks;
+        this.readWaitNanos = readWaitNanos;
+        this.writeBlockNanos = writeBlockNanos;
+        this.elapsedNanos = elapsedNanos;
+        this.meanOccupancy = meanOccupancy;
+        this.maxOccupancy = maxOccupancy;
+        this.slotCount = slotCount;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return time the producer spent waiting for its input to deliver
+     */
+    public long getReadWait(TimeUnit unit) {
+        return unit.convert(readWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return time the producer spent blocked on a full ring
+     */
+    public long getWriteBlock(TimeUnit unit) {
+        return unit.convert(writeBlockNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return time since the split started, up to its end if it ended
+     */
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getBytesPerSecond() {
+        return elapsedNanos > 0 ? (long) (bytesIn * 1e9 / elapsedNanos) : 0;
+    }
+
+    /**
+     * @return mean number of ring slots holding chunks not yet read by every consumer, from 0 to the slot count
+     */
+    public double getMeanOccupancy() {
+        return meanOccupancy;
+    }
+
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public Limit getLimitedBy() {
+        long own = elapsedNanos - readWaitNanos - writeBlockNanos;
+        if (writeBlockNanos >= readWaitNanos && writeBlockNanos >= own) {
+            return Limit.CONSUMERS;
+        }
+        return readWaitNanos >= own ? Limit.INPUT : Limit.SPLITTER;
+    }
+
+    @Override
+    public String toString() {
+        return bytesIn + " bytes in " + chunks + " chunks at " + getBytesPerSecond() / 1024 + " KiB/s, read wait "
+                + getReadWait(TimeUnit.MILLISECONDS) + " ms, write block " + getWriteBlock(TimeUnit.MILLISECONDS)
+                + " ms of " + getElapsed(TimeUnit.MILLISECONDS) + " ms, occupancy "
+                + String.format("%.1f", meanOccupancy) + " (max " + maxOccupancy + ") of " + slotCount
+                + " slots, limited by " + getLimitedBy();
+    }
+}
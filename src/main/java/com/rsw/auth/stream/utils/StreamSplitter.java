@@ -5,111 +5,729 @@ import org.springframework.util.Assert;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.Arrays;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
- * Provides two Pipe-based inputs from a single input.
- * This class manages the reading from the input and writing to one or two pipes
+ * Provides any number of named stream inputs from a single input.
+ * This class manages the reading from the input and hands each chunk to every registered consumer stream.
+ * {@link #getStreamA()} and {@link #getStreamB()} are shorthands for the classic two-way split.
  *
- * NOTE: pipe streams use a circular buffer of finite space, so the splitter will block on a write if:
- *   - it has filled the buffer and has more input to write AND
- *   - either consumer thread is not consuming the pipe, thereby not freeing up the pipe buffer space
- * If a thread dies and its exception is uncaught, leaving its stream open, this blocked write could
- * hang indefinitely.
+ * Chunks are read once into a shared ring buffer (see {@link RingBuffer}) and each consumer stream reads them
+ * through its own cursor, so the read loop does the same work per chunk however many consumers there are.
+ * Consumers must be registered before {@link #readToEof()} starts, otherwise they would miss leading data.
+ * Everything else is optional and configured before reading starts as well: spilling, chunk sizing, digest,
+ * cancellation, consumer limits, transforms, replay and prefix consumers are described on their methods.
+ *
+ * NOTE: the ring holds a finite number of chunks, so the splitter will block before a read if:
+ *   - every slot of the ring is filled and it has more input to read AND
+ *   - any consumer thread is not consuming its stream, thereby not releasing the oldest slot
+ * How long it blocks, and what happens to the consumer holding it up, is decided by the
+ * {@link SlowConsumerPolicy}.  The default policy waits indefinitely and fails the split when a consumer closes
+ * its stream before end of input, just like a pipe whose reader went away; so if a thread dies and its exception
+ * is uncaught, leaving its stream open, this blocked read could hang indefinitely.
  * The easiest way to avoid this is to have the consuming services wrap all logic in a try/finally
- * and close the input stream on any exception.
- * Alternatively, it may be possible to override the exception handling behavior of the
- * java.util.concurrent.FutureTask used by Spring's Async feature, but it may not be trivial.
- * We want to use Future<> in this context to join the threads, but Spring does not accommodate an
- * UnhandledExceptionHandler when using Future return types.  Use of the Future return type causes the
- * exception to be held until when/if Future.get() is called.  This complicates things in the
- * multi-thread stream write block scenario assuming the splitter run and the Future.get() are both
- * in the main thread.
+ * and close the input stream on any exception, and to give the splitter a policy with a stall timeout.
+ * When the split fails every remaining consumer stream fails too, rather than seeing a truncated input as a
+ * normal end of stream.
  *
  * Created by DAlms on 10/30/16.
  */
 public class StreamSplitter {
 
     private InputStream input;
-    private PipedOutputStream[] outputs = new PipedOutputStream[2];
-    private PipedInputStream[] readers = new PipedInputStream[2];
-    private byte[] buffer;
-    private int bufSize;
+    private RingBuffer ring;
+    private Map<String, InputStream> readers = new LinkedHashMap<>();
+    private Map<String, ConsumerLimits> limits = new LinkedHashMap<>();
+    private Map<String, List<StreamTransform>> transforms = new LinkedHashMap<>();
+    private Map<String, TransformStage> stages = new LinkedHashMap<>();
+    private ConsumerWatchdog watchdog;
+    private SlowConsumerPolicy policy;
+    private BufferPool bufferPool;
+    private Consumer<ConsumerTimeoutException> timeoutListener;
+    private ReplayOptions replayOptions;
+    private Map<String, List<StreamTransform>> replayable = new LinkedHashMap<>();
+    private Set<String> unacknowledged = new HashSet<>();
+    private volatile ReplayJournal journal;
+    private ChunkSizing chunkSizing;
+    private MessageDigest digest;
+    private volatile byte[] digestValue;
+    private boolean started;
+    private volatile int chunkSize;
+    // push mode state, only touched by the thread currently offering
+    private ChunkSizer pushSizer;
+    private boolean pushing;
+    private long lastOffer;
+    private long blockedSince;
+    private long lastReturn;
+
+    // producer side statistics, only written by the producer
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile long bytesIn;
+    private volatile long chunks;
+    private volatile long readWaitNanos;
+    private volatile long writeBlockNanos;
     private static final int DEFAULT_BUF_SIZE = 2048;
-    private static final int PIPE_A = 0;
-    private static final int PIPE_B = 1;
+    private static final int DEFAULT_RING_SLOTS = 4;
+    private static final String STREAM_A = "A";
+    private static final String STREAM_B = "B";
+    // names the cursor a transform stage reads its input with
+    private static final String STAGE_PREFIX = "transform ";
 
 
     public StreamSplitter(InputStream input) {
-        init(input, DEFAULT_BUF_SIZE);
+        Assert.notNull(input);
+        init(input, DEFAULT_BUF_SIZE, DEFAULT_RING_SLOTS);
     }
 
     public StreamSplitter(InputStream input, int bufSize) {
-        init(input, bufSize);
+        Assert.notNull(input);
+        init(input, bufSize, DEFAULT_RING_SLOTS);
+    }
+
+    public StreamSplitter(InputStream input, int bufSize, int ringSlots) {
+        Assert.notNull(input);
+        init(input, bufSize, ringSlots);
+    }
+
+    /**
+     * Creates a splitter that is fed through {@link #offer} rather than reading an input stream, so a request can be
+     * driven by non-blocking servlet reads without holding a thread while consumers catch up.  The consumer
+     * streams work both ways too: besides blocking reads they implement {@link NonBlockingInput}.
+     */
+    public StreamSplitter(int bufSize, int ringSlots) {
+        init(null, bufSize, ringSlots);
+    }
+
+    public InputStream getStreamA() {
+        return getOrAddConsumer(STREAM_A);
+    }
+
+    public InputStream getStreamB() {
+        return getOrAddConsumer(STREAM_B);
+    }
+
+    /**
+     * Registers a new consumer of the split input.
+     * @param name unique name of the consumer, used for logging and lookups
+     * @return the consumer's stream, which sees every byte of the input from the start; it also implements
+     *         {@link NonBlockingInput}
+     */
+    public synchronized InputStream addConsumer(String name) {
+        return addConsumer(name, ConsumerLimits.NONE);
+    }
+
+    /**
+     * Registers a new consumer that is timed out once it runs past its limits; needs a {@link #setWatchdog}
+     * unless the limits are {@link ConsumerLimits#NONE}.  A consumer past its limits is timed out rather than
+     * failed: the others and the producer carry on without it, and the listener given to
+     * {@link #onConsumerTimeout} hears about it.
+     */
+    public synchronized InputStream addConsumer(String name, ConsumerLimits consumerLimits) {
+        return addConsumer(name, consumerLimits, Collections.<StreamTransform>emptyList());
+    }
+
+    /**
+     * Registers a new consumer of the transformed input, e.g. compressed for a bandwidth-bound downstream.  Each
+     * distinct chain prefix is a {@link TransformStage} with its own ring that runs once however many consumers
+     * asked for it, on the threads of the consumers reading it, never on the producer's.
+     * @param transforms applied in order, e.g. a range then gzip; consumers asking for the same chain, or one
+     *                   starting the same way, share the work
+     * @return the consumer's stream; without transforms it also implements {@link NonBlockingInput}, with some it
+     *         runs them while it is read and only supports blocking reads
+     */
+    public synchronized InputStream addConsumer(String name, ConsumerLimits consumerLimits,
+                                                List<StreamTransform> transforms) {
+        return addConsumer(name, consumerLimits, transforms, false);
+    }
+
+    /**
+     * Registers a new consumer of the transformed input.
+     * @param replayable the consumer may close its stream early without failing the split and read the input again
+     *                   through {@link #replay}; needs {@link #setReplayOptions}
+     */
+    public synchronized InputStream addConsumer(String name, ConsumerLimits consumerLimits,
+                                                List<StreamTransform> transforms, boolean replayable) {
+        Assert.hasText(name);
+        Assert.notNull(consumerLimits);
+        Assert.notNull(transforms);
+        Assert.state(!started, "Consumers must be added before the splitter starts reading");
+        Assert.isTrue(!readers.containsKey(name), "Duplicate consumer name " + name);
+        Assert.state(watchdog != null || consumerLimits.isNone(), "Consumer limits need a watchdog");
+        Assert.state(replayOptions != null || !replayable, "Replayable consumers need replay options");
+        InputStream reader;
+        if (transforms.isEmpty()) {
+            reader = ring.newCursor(name);
+        } else {
+            TransformStage stage = null;
+            for (StreamTransform transform : transforms) {
+                stage = stageFor(stage, transform);
+                stage.addConsumerLimits(consumerLimits);
+            }
+            reader = stage.newCursor(name);
+        }
+        readers.put(name, reader);
+        limits.put(name, consumerLimits);
+        this.transforms.put(name, new ArrayList<>(transforms));
+        if (replayable) {
+            acceptEarlyClose(name);
+            this.replayable.put(name, new ArrayList<>(transforms));
+            unacknowledged.add(name);
+        }
+        return reader;
+    }
+
+    /**
+     * Registers a new consumer of the start of the input, for one that only needs to sniff its type or check its
+     * header.  Once its stream ends or is closed the splitter stops holding chunks for it, whatever the slow
+     * consumer policy says about streams closed early.
+     * @param maxBytes bytes of the input the consumer's stream sees before its end of stream
+     * @return the consumer's stream, which implements {@link NonBlockingInput}; closing it before its end tells the
+     *         splitter the consumer has seen enough and does not fail the split
+     */
+    public synchronized InputStream addPrefixConsumer(String name, long maxBytes) {
+        return addPrefixConsumer(name, maxBytes, ConsumerLimits.NONE);
+    }
+
+    /**
+     * Registers a new consumer of the start of the input that is timed out once it runs past its limits.
+     */
+    public synchronized InputStream addPrefixConsumer(String name, long maxBytes, ConsumerLimits consumerLimits) {
+        Assert.hasText(name);
+        Assert.isTrue(maxBytes > 0, "A prefix consumer needs at least one byte");
+        Assert.notNull(consumerLimits);
+        Assert.state(!started, "Consumers must be added before the splitter starts reading");
+        Assert.isTrue(!readers.containsKey(name), "Duplicate consumer name " + name);
+        Assert.state(watchdog != null || consumerLimits.isNone(), "Consumer limits need a watchdog");
+        RingBuffer.Cursor reader = ring.newCursor(name);
+        reader.limitTo(maxBytes);
+        readers.put(name, reader);
+        limits.put(name, consumerLimits);
+        transforms.put(name, Collections.<StreamTransform>emptyList());
+        return reader;
+    }
+
+    /**
+     * Drops a consumer that will never read its stream, e.g. because it could not be started; must be called before
+     * reading starts.  Its stream is closed without failing the split, whatever the slow consumer policy says about
+     * streams closed early, and it no longer counts for {@link #acknowledge} or {@link #getConsumers}.
+     */
+    public synchronized void removeConsumer(String name) {
+        Assert.state(!started, "Consumers must be removed before the splitter starts reading");
+        InputStream reader = readers.remove(name);
+        Assert.isTrue(reader != null, "Unknown consumer " + name);
+        // its cursor stays on the ring, closed, so its limits stay too
+        acceptEarlyClose(name);
+        IOUtils.closeQuietly(reader);
+        replayable.remove(name);
+        unacknowledged.remove(name);
+    }
+
+    public synchronized Map<String, InputStream> getConsumers() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(readers));
+    }
+
+    /**
+     * Sets what happens to consumers that hold up the read loop; must be called before reading starts.
+     */
+    public synchronized void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        Assert.notNull(policy);
+        Assert.state(!started, "The policy must be set before the splitter starts reading");
+        this.policy = policy;
+        ring.setPolicy(policy);
+    }
+
+    /**
+     * Makes the ring borrow its slots from a shared pool instead of allocating them; must be called before reading
+     * starts.  The slots go back to the pool when the read loop and every consumer are done.
+     */
+    public synchronized void setBufferPool(BufferPool bufferPool) {
+        Assert.notNull(bufferPool);
+        Assert.state(!started, "The buffer pool must be set before the splitter starts reading");
+        this.bufferPool = bufferPool;
+        ring.setBufferPool(bufferPool);
+    }
+
+    /**
+     * Turns on spilling to disk for consumers that fall behind the ring; must be called before reading starts.
+     * The ring stays the in-memory window every consumer gets; a consumer that falls further behind has its oldest
+     * chunks moved to its own memory mapped temp file, which it reads back before rejoining the ring.  The spill
+     * files share a per-splitter disk quota and are deleted as their consumers finish.
+     */
+    public synchronized void setSpillOptions(SpillOptions options) {
+        Assert.notNull(options);
+        Assert.state(!started, "Spilling must be configured before the splitter starts reading");
+        ring.setSpillArea(new SpillArea(options));
+    }
+
+    /**
+     * Lets the splitter adapt its chunk size within the given limits; must be called before reading starts.
+     * Chunks grow while the input has more to give and the consumers keep up, and shrink when reads come back
+     * mostly empty (see {@link ChunkSizer}).
+     */
+    public synchronized void setChunkSizing(ChunkSizing chunkSizing) {
+        Assert.notNull(chunkSizing);
+        Assert.state(!started, "Chunk sizing must be configured before the splitter starts reading");
+        this.chunkSizing = chunkSizing;
     }
 
-    public PipedInputStream getStreamA() throws IOException {
-        if (readers[PIPE_A] != null) {
-            return readers[PIPE_A];
+    /**
+     * Digests the input as it passes through, straight from each ring slot as it is published, so
+     * {@link #getDigest} comes without another pass over the data; must be called before reading starts.
+     * @param algorithm a {@link MessageDigest} algorithm such as SHA-256
+     */
+    public synchronized void setDigestAlgorithm(String algorithm) {
+        Assert.hasText(algorithm);
+        Assert.state(!started, "The digest must be configured before the splitter starts reading");
+        try {
+            this.digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, ex);
         }
-        return initReader(new PipedOutputStream(), PIPE_A);
     }
 
-    public PipedInputStream getStreamA(PipedOutputStream output) throws IOException {
-        Assert.isNull(readers[PIPE_A]);
-        return initReader(output, PIPE_A);
+    /**
+     * Keeps a journal of the input for the consumers added as replayable, on the heap up to a threshold and in a
+     * temp file beyond it; must be called before reading starts and before they are added.  The journal is
+     * dropped once every replayable consumer has {@link #acknowledge acknowledged} the input.
+     */
+    public synchronized void setReplayOptions(ReplayOptions options) {
+        Assert.notNull(options);
+        Assert.state(!started, "Replay must be configured before the splitter starts reading");
+        this.replayOptions = options;
+    }
+
+    /**
+     * Enforces the limits of the consumers added with some; must be called before reading starts.
+     */
+    public synchronized void setWatchdog(ConsumerWatchdog watchdog) {
+        Assert.notNull(watchdog);
+        Assert.state(!started, "The watchdog must be set before the splitter starts reading");
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * Tells the listener about every consumer timed out by the watchdog, on the watchdog's thread; must be called
+     * before reading starts.  The consumer's stream already fails, the listener only has to unblock its reader if
+     * that is stuck elsewhere.
+     */
+    public synchronized void onConsumerTimeout(Consumer<ConsumerTimeoutException> listener) {
+        Assert.notNull(listener);
+        Assert.state(!started, "The timeout listener must be set before the splitter starts reading");
+        this.timeoutListener = listener;
+    }
+
+    /**
+     * Fails the split once the given context is cancelled, whether it is still reading or its consumers are still
+     * draining it; must be called before reading starts.  The producer finds out at its next {@link #offer}, or its
+     * read of the input stream fails; ending the split is still left to it.
+     */
+    public synchronized void setCancellation(CancellationContext cancellation) {
+        Assert.notNull(cancellation);
+        Assert.state(!started, "The cancellation must be set before the splitter starts reading");
+        cancellation.onCancel(() -> {
+            ring.abort(new IOException("Split cancelled", cancellation.getCause()));
+            abortJournal(new IOException("Split cancelled", cancellation.getCause()));
+            IOUtils.closeQuietly(input);
+        });
     }
 
-    public PipedInputStream getStreamB() throws IOException {
-        if (readers[PIPE_B] != null) {
-            return readers[PIPE_B];
+    /**
+     * Starts a replayable consumer over: its new stream reads the input from byte 0 out of the journal, through the
+     * consumer's transforms, and then waits for the rest of it like any other.  The stream only supports blocking
+     * reads and is not watched for the consumer's limits; the stream the consumer had before is left to it to
+     * close.
+     * @throws IOException if the journal can no longer replay the whole input: it outgrew its disk quota, the split
+     *         failed or every replayable consumer acknowledged it
+     */
+    public InputStream replay(String name) throws IOException {
+        List<StreamTransform> transforms;
+        ReplayJournal replayed;
+        synchronized (this) {
+            transforms = replayable.get(name);
+            Assert.isTrue(transforms != null, "Consumer " + name + " is not replayable");
+            Assert.state(started, "Nothing to replay before the splitter starts reading");
+            Assert.state(unacknowledged.contains(name), "Consumer " + name + " already acknowledged the input");
+            replayed = journal;
         }
-        return initReader(new PipedOutputStream(), PIPE_B);
+        InputStream reader = replayed.newReader();
+        try {
+            for (StreamTransform transform : transforms) {
+                reader = transform.apply(reader);
+            }
+        } catch (IOException | RuntimeException ex) {
+            IOUtils.closeQuietly(reader);
+            throw ex;
+        }
+        return reader;
+    }
+
+    /**
+     * Tells the splitter a consumer is done with the input for good, so it will not {@link #replay} it; once every
+     * replayable consumer is, the journal is dropped.  Consumers that are not replayable need not acknowledge.
+     */
+    public synchronized void acknowledge(String name) {
+        if (unacknowledged.remove(name) && unacknowledged.isEmpty() && journal != null) {
+            journal.drop();
+        }
+    }
+
+    /**
+     * @return true if the consumer was added as replayable and has not acknowledged the input yet
+     */
+    public synchronized boolean isReplayable(String name) {
+        return unacknowledged.contains(name);
     }
 
-    public PipedInputStream getStreamB(PipedOutputStream output) throws IOException {
-        Assert.isNull(readers[PIPE_B]);
-        return initReader(output, PIPE_B);
+    /**
+     * @return the digest of the whole input, once it has ended without failure and before any consumer sees the
+     *         end of its stream; null until then or without {@link #setDigestAlgorithm}
+     */
+    public byte[] getDigest() {
+        byte[] value = digestValue;
+        return value != null ? value.clone() : null;
+    }
+
+    /**
+     * @return the size of the chunks currently read from the input
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return a snapshot of every consumer's progress, including the time the read loop was stalled on it; the
+     *         transform stages come after the consumers of the input, with their own consumers after them
+     */
+    public List<ConsumerStats> getConsumerStats() {
+        List<ConsumerStats> stats = new ArrayList<>();
+        for (RingBuffer.Cursor cursor : ring.getCursors()) {
+            stats.add(cursor.getStats());
+        }
+        for (TransformStage stage : getStages()) {
+            for (RingBuffer.Cursor cursor : stage.getRing().getCursors()) {
+                stats.add(cursor.getStats());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Together with each consumer's read rate and stall time in {@link #getConsumerStats()} this shows whether a
+     * slow split was held up by the client, the splitter or a consumer.
+     * @return a snapshot of the producer's progress and where its time went: waiting for its input, blocked on the
+     *         ring or busy itself, along with how full the ring was
+     */
+    public SplitterStats getStats() {
+        long start = startNanos;
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        return new SplitterStats(bytesIn, chunks, readWaitNanos, writeBlockNanos, start != 0 ? end - start : 0,
+                ring.getMeanOccupancy(), ring.getMaxOccupancy(), ring.slotCount());
     }
 
     public void readToEof() throws IOException {
+        Assert.state(input != null, "A splitter without an input stream is fed through offer()");
+        ChunkSizer sizer;
+        synchronized (this) {
+            started = true;
+            sizer = chunkSizing != null ? new ChunkSizer(chunkSizing, ring.slotSize()) : null;
+            startJournal();
+        }
+        startNanos = System.nanoTime();
+        ring.start();
+        startWatching();
         try {
-            buffer = new byte[bufSize];
-            int numRead;
-            while ((numRead = input.read(buffer, 0, buffer.length)) > 0) {
-                sendOutput(numRead);
+            if (sizer == null) {
+                readFixed();
+            } else {
+                readAdaptive(sizer);
             }
+        } catch (IOException ex) {
+            throw ring.abort(ex);
+        } catch (RuntimeException ex) {
+            ring.abort(new IOException("Splitter failed", ex));
+            throw ex;
         } finally {
             close();
         }
     }
 
+    private void readFixed() throws IOException {
+        int numRead;
+        chunkSize = ring.slotSize();
+        long start = System.nanoTime();
+        byte[] slot = ring.claim(chunkSize);
+        long claimed = System.nanoTime();
+        writeBlockNanos += claimed - start;
+        while ((numRead = input.read(slot, 0, chunkSize)) > 0) {
+            readWaitNanos += System.nanoTime() - claimed;
+            publish(slot, numRead);
+            start = System.nanoTime();
+            slot = ring.claim(chunkSize);
+            claimed = System.nanoTime();
+            writeBlockNanos += claimed - start;
+        }
+        readWaitNanos += System.nanoTime() - claimed;
+    }
+
+    private void readAdaptive(ChunkSizer sizer) throws IOException {
+        int numRead;
+        long start = System.nanoTime();
+        chunkSize = sizer.getChunkSize();
+        byte[] slot = ring.claim(chunkSize);
+        long claimed = System.nanoTime();
+        sizer.onClaim(claimed - start);
+        writeBlockNanos += claimed - start;
+        while ((numRead = input.read(slot, 0, chunkSize)) > 0) {
+            long read = System.nanoTime() - claimed;
+            sizer.onRead(numRead, read, ring.getConsumerWaits());
+            readWaitNanos += read;
+            publish(slot, numRead);
+            chunkSize = sizer.getChunkSize();
+            start = System.nanoTime();
+            slot = ring.claim(chunkSize);
+            claimed = System.nanoTime();
+            sizer.onClaim(claimed - start);
+            writeBlockNanos += claimed - start;
+        }
+        readWaitNanos += System.nanoTime() - claimed;
+    }
+
+    /**
+     * Push mode: copies as much of the data into the ring as fits without waiting for a consumer.
+     * @return the number of bytes taken, less than {@code len} if the ring is full; see {@link #onWritable}
+     */
+    public int offer(byte[] b, int off, int len) throws IOException {
+        startPushing();
+        if (blockedSince == 0 && lastReturn != 0) {
+            // the time between offers is spent waiting for the input, unless the ring was full
+            readWaitNanos += System.nanoTime() - lastReturn;
+        }
+        int offered = 0;
+        try {
+            while (offered < len) {
+                int size = pushSizer != null ? pushSizer.getChunkSize() : ring.slotSize();
+                byte[] slot = ring.tryClaim(size);
+                long now = System.nanoTime();
+                if (slot == null) {
+                    if (blockedSince == 0) {
+                        blockedSince = now;
+                    }
+                    break;
+                }
+                int numRead = Math.min(len - offered, size);
+                System.arraycopy(b, off + offered, slot, 0, numRead);
+                if (pushSizer != null) {
+                    // the time between offers is what a read of the input takes here
+                    pushSizer.onClaim(blockedSince != 0 ? now - blockedSince : 0);
+                    pushSizer.onRead(numRead, now - lastOffer, ring.getConsumerWaits());
+                }
+                if (blockedSince != 0) {
+                    writeBlockNanos += now - blockedSince;
+                }
+                blockedSince = 0;
+                lastOffer = now;
+                chunkSize = size;
+                publish(slot, numRead);
+                offered += numRead;
+            }
+        } catch (IOException ex) {
+            throw ring.abort(ex);
+        }
+        lastReturn = System.nanoTime();
+        return offered;
+    }
+
+    /**
+     * Push mode: runs the callback once the ring has room for another chunk, right away if it has room now.
+     * The callback runs on the thread of the consumer that made room, so it should only schedule the next
+     * {@link #offer}, never offer or block itself.
+     */
+    public void onWritable(Runnable callback) {
+        Assert.notNull(callback);
+        ring.onWritable(callback);
+    }
+
+    /**
+     * Fails every consumer with the given cause and ends the split, for a producer that cannot finish its input.
+     */
+    public void abort(IOException cause) {
+        Assert.notNull(cause);
+        ring.abort(cause);
+        abortJournal(cause);
+        close();
+    }
+
+    /**
+     * Ends the input; consumers see end of stream once they have read everything published before.
+     * Also closes the input stream, if the splitter reads one.
+     */
     public void close() {
         IOUtils.closeQuietly(input);
-        Arrays.asList(outputs).stream().forEach(IOUtils::closeQuietly);
+        if (endNanos == 0 && startNanos != 0) {
+            endNanos = System.nanoTime();
+        }
+        if (digest != null && digestValue == null && !ring.isAborted()) {
+            digestValue = digest.digest();
+        }
+        ReplayJournal journal = this.journal;
+        if (journal != null) {
+            if (ring.isAborted()) {
+                journal.abort(new IOException("Split failed"));
+            } else {
+                journal.finish();
+            }
+        }
+        ring.finish();
     }
 
-    private void sendOutput(int numBytes) throws IOException {
-        for (int ix = 0; ix < outputs.length; ix++) {
-            if (outputs[ix] != null) {
-                outputs[ix].write(buffer, 0, numBytes);
+    private void publish(byte[] slot, int length) throws IOException {
+        if (digest != null) {
+            digest.update(slot, 0, length);
+        }
+        if (journal != null) {
+            journal.append(slot, 0, length);
+        }
+        ring.publish(length);
+        bytesIn += length;
+        chunks++;
+    }
+
+    private void startPushing() {
+        if (!pushing) {
+            synchronized (this) {
+                Assert.state(input == null, "A splitter reading an input stream cannot be fed");
+                Assert.state(!started, "The splitter is already reading");
+                started = true;
+                pushSizer = chunkSizing != null ? new ChunkSizer(chunkSizing, ring.slotSize()) : null;
+                startJournal();
             }
+            startNanos = System.nanoTime();
+            ring.start();
+            startWatching();
+            pushing = true;
+            lastOffer = System.nanoTime();
         }
     }
 
-    private void init(InputStream input, int bufSize) {
-        Assert.notNull(input);
+    /**
+     * Configures the transform stages like the splitter's ring and starts the consumers' clocks; the stages start
+     * their rings themselves, when they are first read.
+     */
+    private void startWatching() {
+        ring.setTimeoutListener(this::consumerTimedOut);
+        for (TransformStage stage : stages.values()) {
+            RingBuffer stageRing = stage.getRing();
+            if (policy != null) {
+                stageRing.setPolicy(policy);
+            }
+            if (bufferPool != null) {
+                stageRing.setBufferPool(bufferPool);
+            }
+            stageRing.setTimeoutListener(this::consumerTimedOut);
+        }
+        if (watchdog != null) {
+            watch(ring);
+            for (TransformStage stage : stages.values()) {
+                watch(stage.getRing());
+            }
+        }
+    }
+
+    /**
+     * Opens the journal if some replayable consumer has not acknowledged it before the split even started.
+     */
+    private void startJournal() {
+        if (!unacknowledged.isEmpty()) {
+            journal = new ReplayJournal(replayOptions);
+        }
+    }
+
+    private void abortJournal(IOException cause) {
+        ReplayJournal journal = this.journal;
+        if (journal != null) {
+            journal.abort(cause);
+        }
+    }
+
+    /**
+     * Lets a consumer close its stream early without failing the split, along with the transform stages it reads.
+     */
+    private void acceptEarlyClose(String name) {
+        RingBuffer source = ring;
+        TransformStage stage = null;
+        for (StreamTransform transform : transforms.get(name)) {
+            stage = stageFor(stage, transform);
+            // the stage lets go of its input once its consumers are done, early or not
+            acceptEarlyClose(source, STAGE_PREFIX + stage.getKey());
+            source = stage.getRing();
+        }
+        acceptEarlyClose(source, name);
+    }
+
+    private static void acceptEarlyClose(RingBuffer ring, String cursorName) {
+        for (RingBuffer.Cursor cursor : ring.getCursors()) {
+            if (cursor.getName().equals(cursorName)) {
+                cursor.acceptEarlyClose();
+            }
+        }
+    }
+
+    private void watch(RingBuffer watched) {
+        for (RingBuffer.Cursor cursor : watched.getCursors()) {
+            TransformStage stage = stageOf(cursor.getName());
+            watchdog.watch(watched, cursor, stage != null ? stage.getSourceLimits() : limits.get(cursor.getName()));
+        }
+    }
+
+    private void consumerTimedOut(ConsumerTimeoutException ex) {
+        TransformStage stage = stageOf(ex.getConsumer());
+        if (stage != null) {
+            // whoever reads the stage is timed out along with it
+            stage.timeOutAll(ex.getMessage());
+        } else if (timeoutListener != null) {
+            timeoutListener.accept(ex);
+        }
+    }
+
+    private TransformStage stageFor(TransformStage previous, StreamTransform transform) {
+        String key = previous == null ? transform.getKey() : previous.getKey() + " > " + transform.getKey();
+        TransformStage stage = stages.get(key);
+        if (stage == null) {
+            String sourceName = STAGE_PREFIX + key;
+            InputStream source = previous == null ? ring.newCursor(sourceName) : previous.newCursor(sourceName);
+            stage = new TransformStage(key, source, transform, ring.slotCount(), ring.slotSize());
+            stages.put(key, stage);
+        }
+        return stage;
+    }
+
+    private TransformStage stageOf(String cursorName) {
+        return cursorName.startsWith(STAGE_PREFIX) ? stages.get(cursorName.substring(STAGE_PREFIX.length())) : null;
+    }
+
+    private synchronized List<TransformStage> getStages() {
+        return new ArrayList<>(stages.values());
+    }
+
+    private void init(InputStream input, int bufSize, int ringSlots) {
+        Assert.isTrue(bufSize > 0);
+        Assert.isTrue(ringSlots > 0);
         this.input = input;
-        this.bufSize = bufSize;
+        this.ring = new RingBuffer(ringSlots, bufSize);
     }
 
-    private PipedInputStream initReader(PipedOutputStream output, int index) throws IOException {
-        Assert.notNull(output);
-        Assert.isTrue(index >= 0 && index < outputs.length);
-        outputs[index] = output;
-        readers[index] = new PipedInputStream(output, bufSize);
-        return readers[index];
+    private synchronized InputStream getOrAddConsumer(String name) {
+        InputStream reader = readers.get(name);
+        return reader != null ? reader : addConsumer(name);
     }
 }
@@ -0,0 +1,34 @@
+package com.rsw.auth.stream.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stage between a {@link StreamSplitter} and a consumer, such as compression or decryption.  Consumers name the
+ * transforms they want when they are added; ready made ones are available from {@link StreamTransforms}.
+ *
+ * Transforms with the same key must turn the same input into the same output, as the splitter runs a transform
+ * once for every consumer that asked for it (or for a chain of transforms starting with it) and hands each of them
+ * the output.
+ *
+ * Created by DAlms on 11/18/16.
+ */
+public interface StreamTransform {
+
+    /**
+     * @return what the transform does, including its parameters, e.g. gzip:6
+     */
+    String getKey();
+
+    /**
+     * @return the content coding of the output as used in a Content-Encoding header, null if the transform does
+     *         not encode
+     */
+    String getContentEncoding();
+
+    /**
+     * Wraps the input of the stage; called once, on the thread of the consumer that first reads the stage.  The
+     * returned stream is read on consumer threads and closed when the stage ends, which must close the input.
+     */
+    InputStream apply(InputStream input) throws IOException;
+}
@@ -0,0 +1,371 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.springframework.util.Assert;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Factory methods for the standard {@link StreamTransform} flavors.
+ *
+ * Created by DAlms on 11/18/16.
+ */
+public final class StreamTransforms {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private StreamTransforms() {
+    }
+
+    /**
+     * Compresses to the gzip format (Content-Encoding gzip).
+     * @param level 1 (fastest) to 9 (smallest), or -1 for the default
+     */
+    public static StreamTransform gzip(int level) {
+        checkLevel(level);
+        return new Transform("gzip:" + level, "gzip", input -> new GzipInputStream(input, level));
+    }
+
+    /**
+     * Compresses to the zlib format (Content-Encoding deflate).
+     */
+    public static StreamTransform deflate(int level) {
+        checkLevel(level);
+        return new Transform("deflate:" + level, "deflate", input -> new EndingDeflaterInputStream(input,
+                new Deflater(level)));
+    }
+
+    /**
+     * Passes on length bytes from the given offset only, e.g. for a downstream that only wants the head of a file.
+     */
+    public static StreamTransform range(long offset, long length) {
+        Assert.isTrue(offset >= 0);
+        Assert.isTrue(length >= 0);
+        return new Transform("range:" + offset + "-" + length, null, input -> {
+            // an input shorter than the offset makes an empty range
+            IOUtils.skip(input, offset);
+            return new RangeInputStream(input, length);
+        });
+    }
+
+    /**
+     * Passes the input through unchanged, failing the stream at its end if it does not have the expected digest;
+     * a consumer then never takes corrupted input for a complete one.
+     * @param algorithm a {@link MessageDigest} algorithm such as SHA-256
+     * @param expectedHex the digest, in hex
+     */
+    public static StreamTransform verify(String algorithm, String expectedHex) {
+        Assert.hasText(expectedHex);
+        byte[] expected = decodeHex(expectedHex);
+        newDigest(algorithm);
+        return new Transform("verify:" + algorithm + ":" + expectedHex.toLowerCase(Locale.ROOT), null,
+                input -> new VerifyingInputStream(input, newDigest(algorithm), expected));
+    }
+
+    /**
+     * Runs the input through a cipher, typically one initialized for decryption.
+     * @param key identifies the cipher and its key material, so consumers asking for the same one share it; never
+     *            the key itself, it shows up in logs
+     * @param cipher supplies the initialized cipher, once
+     */
+    public static StreamTransform cipher(String key, Supplier<Cipher> cipher) {
+        Assert.hasText(key);
+        Assert.notNull(cipher);
+        return new Transform("cipher:" + key, null, input -> new CipherInputStream(input, cipher.get()));
+    }
+
+    /**
+     * Maps the configuration forms gzip[:level], deflate[:level] and range:offset-length onto a transform.
+     */
+    public static StreamTransform forName(String spec) {
+        Assert.hasText(spec);
+        String[] parts = spec.trim().toLowerCase(Locale.ROOT).split(":", 2);
+        String argument = parts.length > 1 ? parts[1].trim() : null;
+        switch (parts[0].trim()) {
+            case "gzip":
+                return gzip(argument != null ? Integer.parseInt(argument) : Deflater.DEFAULT_COMPRESSION);
+            case "deflate":
+                return deflate(argument != null ? Integer.parseInt(argument) : Deflater.DEFAULT_COMPRESSION);
+            case "range":
+                Assert.hasText(argument, "range needs offset-length");
+                String[] bounds = argument.split("-", 2);
+                Assert.isTrue(bounds.length == 2, "range needs offset-length");
+                return range(Long.parseLong(bounds[0].trim()), Long.parseLong(bounds[1].trim()));
+            default:
+                throw new IllegalArgumentException("Unknown stream transform " + spec);
+        }
+    }
+
+    private static void checkLevel(int level) {
+        Assert.isTrue(level == Deflater.DEFAULT_COMPRESSION
+                || level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION, "Invalid level " + level);
+    }
+
+    private static byte[] decodeHex(String hex) {
+        Assert.isTrue(hex.length() % 2 == 0, "Invalid hex digest " + hex);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int ix = 0; ix < bytes.length; ix++) {
+            int high = Character.digit(hex.charAt(2 * ix), 16);
+            int low = Character.digit(hex.charAt(2 * ix + 1), 16);
+            Assert.isTrue(high >= 0 && low >= 0, "Invalid hex digest " + hex);
+            bytes[ix] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, ex);
+        }
+    }
+
+    private interface Wrapper {
+        InputStream apply(InputStream input) throws IOException;
+    }
+
+    private static class Transform implements StreamTransform {
+
+        private final String key;
+        private final String contentEncoding;
+        private final Wrapper wrapper;
+
+        Transform(String key, String contentEncoding, Wrapper wrapper) {
+            this.key = key;
+            this.contentEncoding = contentEncoding;
+            this.wrapper = wrapper;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        @Override
+        public InputStream apply(InputStream input) throws IOException {
+            return wrapper.apply(input);
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    /**
+     * Deflater stream that frees the deflater's native memory on close, which DeflaterInputStream only does for
+     * a deflater of its own.
+     */
+    private static class EndingDeflaterInputStream extends DeflaterInputStream {
+
+        EndingDeflaterInputStream(InputStream input, Deflater deflater) {
+            super(input, deflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * The gzip framing (RFC 1952) around raw deflate output: a fixed header, then the trailer with the CRC and
+     * length of the input once the deflater is done with it.
+     */
+    private static class GzipInputStream extends SequenceInputStream {
+
+        private final InputStream deflated;
+
+        GzipInputStream(InputStream input, int level) {
+            this(new CrcInputStream(input), level);
+        }
+
+        private GzipInputStream(CrcInputStream crc, int level) {
+            this(crc, new EndingDeflaterInputStream(crc, new Deflater(level, true)));
+        }
+
+        private GzipInputStream(CrcInputStream crc, InputStream deflated) {
+            super(parts(crc, deflated));
+            this.deflated = deflated;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // the sequence only closes the part it is on
+                deflated.close();
+            }
+        }
+
+        private static Enumeration<InputStream> parts(CrcInputStream crc, InputStream deflated) {
+            byte[] header = {(byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0,
+                    (byte) 0xff};
+            Iterator<Supplier<InputStream>> parts = Arrays.<Supplier<InputStream>>asList(
+                    () -> new ByteArrayInputStream(header),
+                    () -> deflated,
+                    // only asked for once the deflated part has ended, by which time the whole input went through
+                    () -> new ByteArrayInputStream(crc.trailer())).iterator();
+            return new Enumeration<InputStream>() {
+                @Override
+                public boolean hasMoreElements() {
+                    return parts.hasNext();
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    return parts.next().get();
+                }
+            };
+        }
+    }
+
+    private static class CrcInputStream extends FilterInputStream {
+
+        private final CRC32 crc = new CRC32();
+        private long size;
+
+        CrcInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                crc.update(b);
+                size++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int numRead = super.read(b, off, len);
+            if (numRead > 0) {
+                crc.update(b, off, numRead);
+                size += numRead;
+            }
+            return numRead;
+        }
+
+        /**
+         * @return CRC and size of the input, modulo 2^32, little endian
+         */
+        byte[] trailer() {
+            long value = crc.getValue();
+            return new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)};
+        }
+    }
+
+    /**
+     * Ends after length bytes, but reads the rest of the input through; left unread it would hold up the splitter.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        RangeInputStream(InputStream input, long length) {
+            super(input);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int numRead = read(single, 0, 1);
+            return numRead < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                IOUtils.skip(in, Long.MAX_VALUE);
+                return -1;
+            }
+            int numRead = super.read(b, off, (int) Math.min(len, remaining));
+            if (numRead > 0) {
+                remaining -= numRead;
+            }
+            return numRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static class VerifyingInputStream extends DigestInputStream {
+
+        private final byte[] expected;
+        private boolean verified;
+
+        VerifyingInputStream(InputStream input, MessageDigest digest, byte[] expected) {
+            super(input, digest);
+            this.expected = expected;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return check(super.read());
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return check(super.read(b, off, len));
+        }
+
+        private int check(int result) throws IOException {
+            if (result < 0 && !verified) {
+                if (!MessageDigest.isEqual(expected, getMessageDigest().digest())) {
+                    throw new IOException("Input does not match its " + getMessageDigest().getAlgorithm()
+                            + " digest");
+                }
+                verified = true;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.rsw.auth.stream.utils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One {@link StreamTransform} of a {@link StreamSplitter}, run once for every consumer that asked for it.
+ *
+ * The stage reads its input through a cursor of its own, on the splitter's ring or on the ring of the stage before
+ * it, and publishes the transformed output to a ring of its own, which its consumers read through their cursors.
+ * There is no thread behind a stage: a consumer that has read everything the stage published runs the transform
+ * for another chunk itself, while the others wait for it or keep reading what is already there.  The producer of
+ * the splitter never runs a transform.
+ *
+ * The stage ring's slots are held by its slowest consumer like those of the splitter's ring, under the splitter's
+ * slow consumer policy.  A consumer never waits for room in the ring while it runs the transform, as the laggard
+ * may be waiting for it to finish; it lets go and is woken once there is room, or data for it.  A failing
+ * transform fails every consumer of the stage; a consumer interrupted while it runs the transform only fails
+ * itself.  Once every consumer is done the stage lets go of its input.
+ *
+ * Created by DAlms on 11/18/16.
+ */
+class TransformStage {
+
+    // how long a consumer waits for room before it tries again, applying the slow consumer policy
+    private static final long ROOM_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final String key;
+    private final InputStream source;
+    private final StreamTransform transform;
+    private final RingBuffer ring;
+    private final ReentrantLock pumpLock = new ReentrantLock();
+    private final AtomicInteger openCursors = new AtomicInteger();
+    private ConsumerLimits sourceLimits;
+    // guarded by pumpLock
+    private InputStream transformed;
+    private boolean started;
+    private boolean ended;
+
+    /**
+     * @param source the stage's cursor on the ring before it
+     */
+    TransformStage(String key, InputStream source, StreamTransform transform, int slotCount, int slotSize) {
+        this.key = key;
+        this.source = source;
+        this.transform = transform;
+        this.ring = new RingBuffer(slotCount, slotSize);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    RingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * @return limits of the stage's own cursor: those of its most patient consumer, as timing it out fails them all
+     */
+    ConsumerLimits getSourceLimits() {
+        return sourceLimits;
+    }
+
+    void addConsumerLimits(ConsumerLimits limits) {
+        sourceLimits = sourceLimits == null ? limits : ConsumerLimits.loosest(sourceLimits, limits);
+    }
+
+    InputStream newCursor(String name) {
+        openCursors.incrementAndGet();
+        return new StageCursor(ring.newCursor(name));
+    }
+
+    /**
+     * Times out every consumer of the stage, once the stage's own cursor was timed out.
+     */
+    void timeOutAll(String reason) {
+        for (RingBuffer.Cursor cursor : ring.getCursors()) {
+            ring.timeOut(cursor, reason);
+        }
+    }
+
+    /**
+     * Publishes another chunk of output unless the cursor has some to read already.
+     */
+    private void pump(RingBuffer.Cursor cursor) throws IOException {
+        try {
+            pumpLock.lockInterruptibly();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for transform " + key);
+        }
+        boolean full = false;
+        try {
+            if (ended || cursor.hasPending() || !cursor.holdsSlots()) {
+                return;
+            }
+            if (!started) {
+                started = true;
+                ring.start();
+                transformed = transform.apply(source);
+            }
+            byte[] slot = ring.tryClaim(ring.slotSize());
+            if (slot == null) {
+                full = true;
+            } else {
+                int numRead = transformed.read(slot, 0, slot.length);
+                if (numRead < 0) {
+                    end();
+                } else if (numRead > 0) {
+                    ring.publish(numRead);
+                }
+            }
+        } catch (InterruptedIOException ex) {
+            // the reader was cancelled, not the stage; the transform is left where it was
+            throw ex;
+        } catch (IOException ex) {
+            ring.abort(ex);
+            end();
+        } catch (RuntimeException ex) {
+            ring.abort(new IOException("Transform " + key + " failed", ex));
+            end();
+        } finally {
+            pumpLock.unlock();
+        }
+        endIfAbandoned();
+        if (full) {
+            awaitRoom(cursor);
+        }
+    }
+
+    private void awaitRoom(RingBuffer.Cursor cursor) throws IOException {
+        Thread reader = Thread.currentThread();
+        Runnable wake = () -> LockSupport.unpark(reader);
+        ring.onWritable(wake);
+        // another consumer may get to publish first
+        cursor.onReadable(wake);
+        LockSupport.parkNanos(this, ROOM_RETRY_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting for transform " + key);
+        }
+    }
+
+    private void endIfAbandoned() {
+        // retried by whoever holds the lock at the time, once it lets go
+        if (openCursors.get() == 0 && pumpLock.tryLock()) {
+            try {
+                if (!ended) {
+                    end();
+                }
+            } finally {
+                pumpLock.unlock();
+            }
+        }
+    }
+
+    private void end() {
+        ended = true;
+        ring.finish();
+        IOUtils.closeQuietly(transformed != null ? transformed : source);
+    }
+
+    /**
+     * A consumer's stream of the stage output.  Blocking reads only, as reading may mean running the transform.
+     */
+    private class StageCursor extends InputStream {
+
+        private final RingBuffer.Cursor cursor;
+        private boolean closed;
+
+        StageCursor(RingBuffer.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int numRead = read(single, 0, 1);
+            return numRead < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return cursor.read(b, off, len);
+            }
+            while (true) {
+                int numRead = cursor.readNow(b, off, len);
+                if (numRead != 0) {
+                    return numRead;
+                }
+                pump(cursor);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return cursor.available();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                cursor.close();
+                openCursors.decrementAndGet();
+                endIfAbandoned();
+            }
+        }
+    }
+}
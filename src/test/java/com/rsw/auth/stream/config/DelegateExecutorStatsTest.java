@@ -0,0 +1,59 @@
+package com.rsw.auth.stream.config;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/11/16.
+ */
+public class DelegateExecutorStatsTest {
+
+    private DelegateExecutorStats subject = new DelegateExecutorStats();
+
+    @Test
+    public void decorate_recordsQueueWait() throws Exception {
+        Runnable task = subject.decorate(() -> { });
+        Thread.sleep(20);
+        task.run();
+
+        assertEquals(1, subject.getStarted());
+        assertTrue(subject.getMaxWait(TimeUnit.MILLISECONDS) >= 20);
+        assertTrue(subject.getMeanWait(TimeUnit.MILLISECONDS) >= 20);
+    }
+
+    @Test
+    public void rejectedExecution_countsAndFails() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1), subject);
+        try {
+            pool.execute(subject.decorate(() -> awaitQuietly(release)));
+            pool.execute(subject.decorate(() -> { }));
+            try {
+                pool.execute(subject.decorate(() -> { }));
+                fail("a saturated pool must reject");
+            } catch (RejectedExecutionException ex) {
+                assertEquals(1, subject.getRejected());
+            }
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, subject.getStarted());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
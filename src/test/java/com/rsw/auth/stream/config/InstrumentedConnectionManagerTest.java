@@ -0,0 +1,48 @@
+package com.rsw.auth.stream.config;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/13/16.
+ */
+public class InstrumentedConnectionManagerTest {
+
+    private static final HttpRoute ROUTE = new HttpRoute(new HttpHost("green-service", 80, "http"));
+
+    private InstrumentedConnectionManager subject = new InstrumentedConnectionManager(1, TimeUnit.MINUTES);
+
+    @After
+    public void shutdown() {
+        subject.shutdown();
+    }
+
+    @Test
+    public void requestConnection_recordsLeaseAndTimeout() throws Exception {
+        subject.setMaxPerRoute(ROUTE, 1);
+
+        HttpClientConnection connection = subject.requestConnection(ROUTE, null).get(1, TimeUnit.SECONDS);
+        assertEquals(1, subject.getLeases());
+        assertEquals(1, subject.getStats(ROUTE).getLeased());
+
+        try {
+            subject.requestConnection(ROUTE, null).get(50, TimeUnit.MILLISECONDS);
+            fail("the route only allows one connection");
+        } catch (ConnectionPoolTimeoutException ex) {
+            assertEquals(1, subject.getLeaseTimeouts());
+        }
+
+        subject.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+        subject.requestConnection(ROUTE, null).get(1, TimeUnit.SECONDS);
+        assertEquals(2, subject.getLeases());
+        assertTrue(subject.getMaxLeaseWait(TimeUnit.MILLISECONDS) < 1000);
+    }
+}
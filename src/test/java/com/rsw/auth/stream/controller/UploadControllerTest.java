@@ -0,0 +1,264 @@
+package com.rsw.auth.stream.controller;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import com.rsw.auth.stream.StreamSplitterApplication;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by dalms on 11/24/16.
+ *
+ * Uploads through the whole application, with its green and blue delegates pointing at local stub servers.
+ */
+public class UploadControllerTest {
+
+    private static final String BOUNDARY = "----test-boundary";
+
+    private final StubDelegate green;
+    private final StubDelegate blue;
+    private ConfigurableApplicationContext context;
+    private URL uploadUrl;
+
+    public UploadControllerTest() throws IOException {
+        green = new StubDelegate();
+        blue = new StubDelegate();
+    }
+
+    @After
+    public void shutdown() {
+        if (context != null) {
+            context.close();
+        }
+        green.close();
+        blue.close();
+    }
+
+    @Test
+    public void uploadFile_sendsEveryPartToEveryDelegate() throws Exception {
+        start("--upload.max-parallel-parts=2");
+        String[] files = new String[5];
+        for (int ix = 0; ix < files.length; ix++) {
+            files[ix] = content("file-" + ix, 10000 + ix * 3000);
+        }
+
+        int status = upload(files);
+
+        assertEquals(HttpURLConnection.HTTP_MOVED_TEMP, status);
+        for (StubDelegate delegate : Arrays.asList(green, blue)) {
+            assertEquals(files.length, delegate.getBodies().size());
+            for (String file : files) {
+                assertTrue(delegate.received(file));
+            }
+            assertTrue("upload.max-parallel-parts files at a time", delegate.getMaxActive() <= 2);
+        }
+    }
+
+    @Test
+    public void uploadFile_startsNextPartWhileDelegatesAreBusy() throws Exception {
+        // each delegate answers no file before it has two, which only comes if the upload goes on meanwhile
+        CountDownLatch greenHasTwo = new CountDownLatch(2);
+        CountDownLatch blueHasTwo = new CountDownLatch(2);
+        green.setHold(greenHasTwo);
+        green.setOnReceived(greenHasTwo::countDown);
+        blue.setHold(blueHasTwo);
+        blue.setOnReceived(blueHasTwo::countDown);
+        start("--upload.max-parallel-parts=2");
+
+        int status = upload(content("first", 20000), content("second", 20000), content("third", 20000));
+
+        assertEquals(HttpURLConnection.HTTP_MOVED_TEMP, status);
+        for (StubDelegate delegate : Arrays.asList(green, blue)) {
+            assertEquals(3, delegate.getBodies().size());
+            assertEquals("two files in flight at once", 2, delegate.getMaxActive());
+        }
+    }
+
+    @Test
+    public void uploadFile_rejectedDelegateDoesNotFailOthersUnderBlockPolicy() throws Exception {
+        // green has a single thread and no queue, and stays busy with the first file until blue has both
+        CountDownLatch blueReceivedBoth = new CountDownLatch(2);
+        green.setHold(blueReceivedBoth);
+        blue.setOnReceived(blueReceivedBoth::countDown);
+        start("--splitter.slow-consumer.policy=block",
+                "--delegate.services.green.threads=1",
+                "--delegate.services.green.queue-capacity=0");
+
+        int status = upload(content("first", 20000), content("second", 20000));
+
+        assertEquals(HttpURLConnection.HTTP_MOVED_TEMP, status);
+        assertEquals("the second file was not sent to the saturated delegate", 1, green.getBodies().size());
+        assertTrue(green.received(content("first", 20000)));
+        assertEquals(2, blue.getBodies().size());
+        assertTrue(blue.received(content("first", 20000)));
+        assertTrue(blue.received(content("second", 20000)));
+    }
+
+    private void start(String... args) throws IOException {
+        List<String> allArgs = new ArrayList<>(Arrays.asList(
+                "--server.port=0",
+                "--spring.jmx.enabled=false",
+                "--dedup.enabled=false",
+                "--delegate.services.green.url=" + green.getUrl(),
+                "--delegate.services.blue.url=" + blue.getUrl()));
+        allArgs.addAll(Arrays.asList(args));
+        context = SpringApplication.run(StreamSplitterApplication.class, allArgs.toArray(new String[0]));
+        int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+        uploadUrl = new URL("http://127.0.0.1:" + port + "/upload");
+    }
+
+    /**
+     * Posts one multipart request with a file part per content.
+     * @return the status the upload was answered with, once every delegate is done
+     */
+    private int upload(String... files) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) uploadUrl.openConnection();
+        connection.setDoOutput(true);
+        connection.setInstanceFollowRedirects(false);
+        connection.setReadTimeout(30000);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = connection.getOutputStream()) {
+            for (int ix = 0; ix < files.length; ix++) {
+                out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"file-" + ix
+                        + ".txt\"\r\nContent-Type: text/plain\r\n\r\n" + files[ix] + "\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+            }
+            out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String content(String name, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(name).append(' ').append(sb.length()).append('\n');
+        }
+        return sb.substring(0, length);
+    }
+
+    /**
+     * Local stand-in for a delegate service: reads the posted body to its end and answers with an empty result.
+     */
+    private static class StubDelegate implements AutoCloseable {
+
+        private static final byte[] RESULT = "{}".getBytes(StandardCharsets.UTF_8);
+
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final List<String> bodies = new CopyOnWriteArrayList<>();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+        private volatile CountDownLatch hold = new CountDownLatch(0);
+        private volatile Runnable onReceived = () -> { };
+
+        StubDelegate() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/file", this::handle);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        }
+
+        List<String> getBodies() {
+            return bodies;
+        }
+
+        /**
+         * @return the most requests the stub had in flight at once
+         */
+        int getMaxActive() {
+            return maxActive.get();
+        }
+
+        /**
+         * @return true if some request carried the given file content
+         */
+        boolean received(String content) {
+            return bodies.stream().anyMatch(body -> body.contains(content));
+        }
+
+        /**
+         * Answers only once the latch is open, or after ten seconds.
+         */
+        void setHold(CountDownLatch hold) {
+            this.hold = hold;
+        }
+
+        /**
+         * Runs after a whole body is read, before the answer.
+         */
+        void setOnReceived(Runnable onReceived) {
+            this.onReceived = onReceived;
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (receive(exchange)) {
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, RESULT.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(RESULT);
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * @return false if interrupted, the request is not answered
+         */
+        private boolean receive(HttpExchange exchange) throws IOException {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                bodies.add(new String(IOUtils.toByteArray(exchange.getRequestBody()), StandardCharsets.US_ASCII));
+                onReceived.run();
+                hold.await(10, TimeUnit.SECONDS);
+                return true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                // no longer in flight as far as the upload can tell, it may start another file once answered
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+}
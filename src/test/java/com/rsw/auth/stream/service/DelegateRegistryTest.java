@@ -0,0 +1,120 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.utils.CancellationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Created by dalms on 11/12/16.
+ */
+public class DelegateRegistryTest {
+
+    private DelegateRegistry subject = new DelegateRegistry();
+
+    @After
+    public void shutdown() {
+        subject.destroy();
+    }
+
+    @Test
+    public void getDelegatesFor_filtersByContentType() {
+        TestDelegate all = new TestDelegate("all", settings());
+        TestDelegate images = new TestDelegate("images", settings("image/*"));
+        TestDelegate pdf = new TestDelegate("pdf", settings("application/pdf"));
+        subject.register(all);
+        subject.register(images);
+        subject.register(pdf);
+
+        assertEquals(Arrays.asList(all, images), subject.getDelegatesFor("image/png"));
+        assertEquals(Arrays.asList(all, pdf), subject.getDelegatesFor("application/pdf"));
+        // no or unparseable content types count as application/octet-stream
+        assertEquals(Collections.singletonList(all), subject.getDelegatesFor(null));
+        assertEquals(Collections.singletonList(all), subject.getDelegatesFor("not a type"));
+    }
+
+    @Test
+    public void getDelegatesFor_skipsDisabled() {
+        DelegateSettings disabled = settings();
+        disabled.setEnabled(false);
+        TestDelegate delegate = new TestDelegate("off", disabled);
+        subject.register(delegate);
+
+        assertTrue(subject.getDelegatesFor("text/plain").isEmpty());
+        delegate.setEnabled(true);
+        assertEquals(Collections.singletonList(delegate), subject.getDelegatesFor("text/plain"));
+    }
+
+    @Test
+    public void register_replacesAndShutsDownSameName() {
+        TestDelegate first = new TestDelegate("green", settings());
+        TestDelegate second = new TestDelegate("green", settings());
+        subject.register(first);
+        subject.register(second);
+
+        assertSame(second, subject.getDelegate("green"));
+        assertTrue(first.getExecutor().getThreadPoolExecutor().isShutdown());
+
+        assertSame(second, subject.unregister("green"));
+        assertTrue(second.getExecutor().getThreadPoolExecutor().isShutdown());
+        assertTrue(subject.getDelegates().isEmpty());
+    }
+
+    @Test
+    public void send_processesAndClosesStream() throws Exception {
+        TestDelegate delegate = new TestDelegate("green", settings());
+        ClosingStream stream = new ClosingStream();
+
+        assertNotNull(delegate.send(stream, "file.txt", new CancellationContext()).get());
+        assertEquals(3, delegate.numRead);
+        assertTrue(stream.closed);
+        delegate.shutdown();
+    }
+
+    private static DelegateSettings settings(String... contentTypes) {
+        DelegateSettings settings = new DelegateSettings();
+        settings.setThreads(1);
+        settings.setQueueCapacity(1);
+        settings.setContentTypes(Arrays.asList(contentTypes));
+        return settings;
+    }
+
+    private static class TestDelegate extends PooledStreamDelegate {
+
+        private volatile int numRead;
+
+        TestDelegate(String name, DelegateSettings settings) {
+            super(name, settings);
+        }
+
+        @Override
+        protected DelegateResult process(InputStream fileInputStream, String fileName,
+                                         CancellationContext cancellation) throws Exception {
+            while (fileInputStream.read() >= 0) {
+                numRead++;
+            }
+            return new DelegateResult();
+        }
+    }
+
+    private static class ClosingStream extends ByteArrayInputStream {
+
+        private volatile boolean closed;
+
+        ClosingStream() {
+            super(new byte[3]);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import com.rsw.auth.stream.domain.DelegateResult;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/15/16.
+ */
+public class DelegateResultCacheTest {
+
+    private DelegateResultCache subject = new DelegateResultCache(2, 1, TimeUnit.HOURS);
+
+    @Test
+    public void put_keepsResultsPerDelegate() {
+        DelegateResult green = new DelegateResult();
+        subject.put("aa", "green", green);
+        subject.put("aa", "blue", null);
+
+        assertSame(green, subject.get("aa", "green"));
+        assertNotNull("an empty answer is remembered too", subject.get("aa", "blue"));
+        assertNull(subject.get("aa", "red"));
+        assertNull(subject.get("bb", "green"));
+    }
+
+    @Test
+    public void put_evictsBeyondMaxDigests() {
+        subject.put("aa", "green", new DelegateResult());
+        subject.put("bb", "green", new DelegateResult());
+        subject.put("cc", "green", new DelegateResult());
+
+        assertEquals(2, subject.size());
+        assertNotNull(subject.get("cc", "green"));
+    }
+}
@@ -0,0 +1,159 @@
+package com.rsw.auth.stream.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Created by dalms on 11/15/16.
+ *
+ * Just enough of an ICAP scan engine for the scan engine API to talk to: answers OPTIONS, reads the chunked body of
+ * a RESPMOD request and reports a threat if the body holds the EICAR test string, no threat otherwise.
+ */
+class IcapStandIn implements Closeable {
+
+    static final String EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*";
+    static final String THREAT = "EICAR Test String";
+
+    private static final String ISTAG = "ISTag: \"1479168000\"\r\n";
+    private static final Pattern RES_BODY = Pattern.compile("res-body=(\\d+)");
+
+    private final ServerSocket server;
+    private final List<byte[]> scanned = new CopyOnWriteArrayList<>();
+
+    IcapStandIn() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "icap-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getAddress() {
+        return server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+    }
+
+    /**
+     * @return the bodies of the scan requests received so far
+     */
+    List<byte[]> getScanned() {
+        return scanned;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread handler = new Thread(() -> serve(socket), "icap-stand-in-connection");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                String head = readHead(in);
+                if (head.startsWith("OPTIONS")) {
+                    out.write(("ICAP/1.0 200 OK\r\n" + ISTAG + "X-Definition-Info: 20161115.001\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                } else if (head.startsWith("RESPMOD")) {
+                    Matcher matcher = RES_BODY.matcher(head);
+                    if (!matcher.find()) {
+                        throw new IOException("No res-body in " + head);
+                    }
+                    skip(in, Integer.parseInt(matcher.group(1)));
+                    byte[] body = readChunks(in);
+                    scanned.add(body);
+                    out.write(verdict(body).getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    return;
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            // the client went away
+        }
+    }
+
+    private static String verdict(byte[] body) {
+        if (!new String(body, StandardCharsets.ISO_8859_1).contains(EICAR)) {
+            return "ICAP/1.0 204 No Content\r\n" + ISTAG + "\r\n";
+        }
+        String httpHead = "HTTP/1.1 403 Forbidden\r\nContent-Type: text/plain\r\nConnection: close\r\n"
+                + "Server: icap-stand-in\r\n\r\n";
+        return "ICAP/1.0 403 Forbidden\r\n" + ISTAG
+                + "X-Violations-Found: 1\r\n\tfile\r\n\t" + THREAT + "\r\n\t11101\r\n\t0\r\n"
+                + "Encapsulated: res-hdr=0, res-body=" + httpHead.length() + "\r\n\r\n"
+                + httpHead + "0\r\n\r\n";
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            head.append(line).append("\r\n");
+        }
+        return head.toString();
+    }
+
+    private static byte[] readChunks(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int size;
+        while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+            for (int ix = 0; ix < size; ix++) {
+                body.write(read(in));
+            }
+            readLine(in);
+        }
+        readLine(in);
+        return body.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = read(in)) != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void skip(InputStream in, int count) throws IOException {
+        for (int ix = 0; ix < count; ix++) {
+            read(in);
+        }
+    }
+
+    private static int read(InputStream in) throws IOException {
+        int c = in.read();
+        if (c == -1) {
+            throw new EOFException();
+        }
+        return c;
+    }
+}
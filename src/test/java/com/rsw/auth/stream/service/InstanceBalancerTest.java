@@ -0,0 +1,115 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/22/16.
+ */
+public class InstanceBalancerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void acquire_leastOutstandingSpreadsCalls() {
+        InstanceBalancer subject = balancer(InstanceBalancer.Strategy.LEAST_OUTSTANDING, "http://a/", "http://b/",
+                "http://c/");
+
+        Set<InstanceBalancer.Instance> picked = new HashSet<>();
+        InstanceBalancer.Instance first = subject.acquire(null);
+        picked.add(first);
+        picked.add(subject.acquire(null));
+        picked.add(subject.acquire(null));
+        assertEquals("three calls in flight go to three instances", 3, picked.size());
+
+        subject.release(first, 5 * MS, false);
+        assertSame("the one instance without a call gets the next", first, subject.acquire(null));
+        assertEquals(1, first.getOutstanding());
+        assertEquals(2, first.getCalls());
+    }
+
+    @Test
+    public void acquire_avoidsInstanceUnlessAlone() {
+        InstanceBalancer subject = balancer(InstanceBalancer.Strategy.LEAST_OUTSTANDING, "http://a/", "http://b/");
+        InstanceBalancer.Instance a = subject.getInstances().get(0);
+        InstanceBalancer.Instance b = subject.getInstances().get(1);
+        subject.acquire(b);
+        subject.acquire(b);
+
+        assertSame("avoided even though it is busier", b, subject.acquire(a));
+
+        InstanceBalancer single = balancer(InstanceBalancer.Strategy.LEAST_OUTSTANDING, "http://a/");
+        InstanceBalancer.Instance only = single.getInstances().get(0);
+        assertSame(only, single.acquire(only));
+    }
+
+    @Test
+    public void acquire_ewmaPrefersFastInstance() {
+        InstanceBalancer subject = balancer(InstanceBalancer.Strategy.EWMA, "http://a/", "http://b/");
+        InstanceBalancer.Instance fast = subject.getInstances().get(0);
+        InstanceBalancer.Instance slow = subject.getInstances().get(1);
+        subject.release(subject.acquire(slow), 10 * MS, false);
+        subject.release(subject.acquire(fast), 100 * MS, false);
+        assertEquals(10, fast.getEwma(TimeUnit.MILLISECONDS));
+        assertEquals(100, slow.getEwma(TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < 5; i++) {
+            assertSame("up to ten calls in flight on the fast one take less than one on the slow one", fast,
+                    subject.acquire(null));
+        }
+        assertEquals(5, fast.getOutstanding());
+        assertEquals(0, slow.getOutstanding());
+    }
+
+    @Test
+    public void release_failureCountsAtLeastPenalty() {
+        InstanceBalancer subject = new InstanceBalancer(Arrays.asList("http://a/", "http://b/"),
+                InstanceBalancer.Strategy.EWMA, 1000);
+        InstanceBalancer.Instance failing = subject.acquire(null);
+
+        subject.release(failing, 2 * MS, true);
+
+        assertEquals("failing fast does not make an instance look fast", 1000,
+                failing.getEwma(TimeUnit.MILLISECONDS));
+        assertEquals(1, failing.getFailures());
+        assertEquals(0, failing.getOutstanding());
+    }
+
+    @Test
+    public void of_fallsBackToSingleUrl() {
+        DelegateSettings settings = new DelegateSettings();
+        settings.setUrl("http://green-service:8080/file");
+
+        InstanceBalancer subject = InstanceBalancer.of("green", settings);
+
+        assertEquals(1, subject.getInstances().size());
+        assertEquals("green-service:8080",
+                subject.getInstances().get(0).getRoute().getTargetHost().toHostString());
+    }
+
+    @Test
+    public void routeFor_urlWithoutPortMatchesPlannedRoute() throws Exception {
+        for (String url : Arrays.asList("http://green-service/file", "https://blue-service/file")) {
+            HttpPost post = new HttpPost(url);
+
+            assertEquals(url, new DefaultRoutePlanner(null).determineRoute(
+                    new HttpHost(post.getURI().getHost(), post.getURI().getPort(), post.getURI().getScheme()), post,
+                    HttpClientContext.create()), InstanceBalancer.routeFor(url));
+        }
+        assertEquals(80, InstanceBalancer.routeFor("http://green-service/file").getTargetHost().getPort());
+    }
+
+    private static InstanceBalancer balancer(InstanceBalancer.Strategy strategy, String... urls) {
+        return new InstanceBalancer(Arrays.asList(urls), strategy, 0);
+    }
+}
@@ -0,0 +1,168 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import com.rsw.auth.stream.utils.StreamSplitter;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Created by dalms on 11/14/16.
+ */
+public class MultipartStreamProducerTest {
+
+    @Test
+    public void produceContent_suspendsUntilReadable() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(64, 2);
+        MultipartStreamProducer subject = new MultipartStreamProducer(splitter.addConsumer("green"), "a.txt");
+        String boundary = subject.getContentType().getValue().split("boundary=")[1];
+        Encoder encoder = new Encoder(1000);
+        Control control = new Control();
+
+        subject.produceContent(encoder, control);
+        assertTrue(control.suspended);
+        assertTrue(encoder.text().endsWith("filename=\"a.txt\"\r\nContent-Type: application/octet-stream\r\n\r\n"));
+
+        byte[] data = "some file data".getBytes(StandardCharsets.UTF_8);
+        splitter.offer(data, 0, data.length);
+        assertFalse("data arrived, output is requested again", control.suspended);
+        subject.produceContent(encoder, control);
+        assertTrue(encoder.text().endsWith("some file data"));
+
+        splitter.close();
+        assertFalse(control.suspended);
+        subject.produceContent(encoder, control);
+        assertTrue(encoder.completed);
+        assertTrue(encoder.text().endsWith("some file data\r\n--" + boundary + "--\r\n"));
+    }
+
+    @Test
+    public void produceContent_keepsWhatTheChannelDidNotTake() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(64, 2);
+        MultipartStreamProducer subject = new MultipartStreamProducer(splitter.addConsumer("green"), "a.txt");
+        byte[] data = new byte[50];
+        splitter.offer(data, 0, data.length);
+        splitter.close();
+
+        Encoder encoder = new Encoder(7);
+        Control control = new Control();
+        int calls = 0;
+        while (!encoder.completed) {
+            subject.produceContent(encoder, control);
+            encoder.budget = 7;
+            assertTrue(++calls < 1000);
+        }
+        assertFalse(control.suspended);
+        assertTrue(encoder.text().contains(new String(data, StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void writeTo_writesTheBodyBlocking() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(64, 2);
+        MultipartStreamProducer subject = new MultipartStreamProducer(splitter.addConsumer("green"), "a.txt");
+        String boundary = subject.getContentType().getValue().split("boundary=")[1];
+        byte[] data = "some file data".getBytes(StandardCharsets.UTF_8);
+        splitter.offer(data, 0, data.length);
+        splitter.close();
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        subject.writeTo(written);
+
+        assertEquals("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"fileName\"\r\n"
+                + "Content-Type: text/plain;charset=UTF-8\r\n\r\n"
+                + "a.txt\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"inputStream\"; filename=\"a.txt\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n"
+                + "some file data\r\n--" + boundary + "--\r\n",
+                new String(written.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void getContent_readsTheBodyFromTheConsumer() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(64, 2);
+        MultipartStreamProducer subject = new MultipartStreamProducer(splitter.addConsumer("green"), "a.txt");
+        String boundary = subject.getContentType().getValue().split("boundary=")[1];
+        byte[] data = "some file data".getBytes(StandardCharsets.UTF_8);
+        splitter.offer(data, 0, data.length);
+        splitter.close();
+
+        String body = new String(IOUtils.toByteArray(subject.getContent()), StandardCharsets.UTF_8);
+
+        assertTrue(body.startsWith("--" + boundary + "\r\n"));
+        assertTrue(body.endsWith("application/octet-stream\r\n\r\nsome file data\r\n--" + boundary + "--\r\n"));
+    }
+
+    /**
+     * Takes at most budget bytes per produceContent call, like a channel that fills up.
+     */
+    private static class Encoder implements ContentEncoder {
+
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private int budget;
+        private boolean completed;
+
+        Encoder(int budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = Math.min(budget, src.remaining());
+            for (int ix = 0; ix < count; ix++) {
+                written.write(src.get());
+            }
+            budget -= count;
+            return count;
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        String text() {
+            return new String(written.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Control implements IOControl {
+
+        private volatile boolean suspended;
+
+        @Override
+        public void requestInput() {
+        }
+
+        @Override
+        public void suspendInput() {
+        }
+
+        @Override
+        public void requestOutput() {
+            suspended = false;
+        }
+
+        @Override
+        public void suspendOutput() {
+            suspended = true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
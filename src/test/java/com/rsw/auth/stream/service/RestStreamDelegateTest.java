@@ -0,0 +1,223 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import com.rsw.auth.stream.utils.CancellationContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by dalms on 11/22/16.
+ */
+public class RestStreamDelegateTest {
+
+    private final List<StubInstance> instances = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final CloseableHttpClient httpClient = HttpClients.custom()
+            .setMaxConnPerRoute(8)
+            .setMaxConnTotal(16)
+            .build();
+    private final CancellationContext cancellation = new CancellationContext();
+    private RestStreamDelegate subject;
+
+    @After
+    public void shutdown() throws Exception {
+        if (subject != null) {
+            subject.shutdown();
+        }
+        for (StubInstance instance : instances) {
+            instance.close();
+        }
+        scheduler.shutdownNow();
+        httpClient.close();
+    }
+
+    @Test
+    public void send_spreadsCallsOverInstances() throws Exception {
+        StubInstance first = new StubInstance();
+        StubInstance second = new StubInstance();
+        subject = new RestStreamDelegate("green", settings(0, first, second), httpClient, scheduler);
+
+        for (int i = 0; i < 4; i++) {
+            send("file-" + i);
+        }
+
+        assertEquals(2, first.getRequests());
+        assertEquals(2, second.getRequests());
+        for (InstanceBalancer.Instance instance : subject.getBalancer().getInstances()) {
+            assertEquals(2, instance.getCalls());
+            assertEquals(0, instance.getOutstanding());
+            assertEquals(0, instance.getFailures());
+        }
+    }
+
+    @Test
+    public void send_hedgesSlowCallToAnotherInstance() throws Exception {
+        StubInstance fast = new StubInstance();
+        StubInstance slow = new StubInstance();
+        subject = new RestStreamDelegate("green", settings(64 * 1024, fast, slow), httpClient, scheduler);
+        // the delegate hedges once it knows its latency
+        for (int i = 0; i < 20; i++) {
+            send("warm-up-" + i);
+        }
+        slow.setDelayMs(5000);
+
+        long start = System.nanoTime();
+        send("file-0");
+        send("file-1");
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("the call to the slow instance was answered by the fast one, took " + elapsedMs + " ms",
+                elapsedMs < 2500);
+        assertEquals(1, subject.getHedges());
+        assertEquals(1, subject.getHedgesWon());
+        assertEquals(0, subject.getBalancer().getInstances().get(1).getFailures());
+    }
+
+    @Test
+    public void send_hedgeDoesNotWaitForThePoolOfItsCall() throws Exception {
+        StubInstance first = new StubInstance();
+        StubInstance second = new StubInstance();
+        DelegateSettings settings = settings(64 * 1024, first, second);
+        // a hedge queued on the delegate's one thread would wait for the very call waiting for it
+        settings.setThreads(1);
+        settings.setQueueCapacity(16);
+        subject = new RestStreamDelegate("green", settings, httpClient, scheduler);
+        for (int i = 0; i < 20; i++) {
+            send("warm-up-" + i);
+        }
+        first.setDelayMs(500);
+        first.setStatus(500);
+
+        send("file-0");
+        send("file-1");
+
+        assertEquals(1, subject.getHedges());
+        assertEquals(1, subject.getHedgesWon());
+    }
+
+    @Test
+    public void send_doesNotHedgeLargeFile() throws Exception {
+        StubInstance first = new StubInstance();
+        StubInstance second = new StubInstance();
+        subject = new RestStreamDelegate("green", settings(1024, first, second), httpClient, scheduler);
+        for (int i = 0; i < 20; i++) {
+            send("warm-up-" + i);
+        }
+        first.setDelayMs(300);
+        second.setDelayMs(300);
+
+        subject.send(new ByteArrayInputStream(new byte[4096]), "large.bin", cancellation).get(10, TimeUnit.SECONDS);
+
+        assertEquals(0, subject.getHedges());
+    }
+
+    @Test
+    public void send_withoutHedgingNeedsNoScheduler() throws Exception {
+        StubInstance only = new StubInstance();
+        DelegateSettings settings = settings(0, only);
+
+        subject = new RestStreamDelegate("green", settings, httpClient);
+        send("file");
+
+        assertEquals(1, only.getRequests());
+    }
+
+    private void send(String fileName) throws Exception {
+        byte[] data = fileName.getBytes(StandardCharsets.UTF_8);
+        subject.send(new ByteArrayInputStream(data), fileName, cancellation).get(10, TimeUnit.SECONDS);
+    }
+
+    private DelegateSettings settings(long hedgeMaxBytes, StubInstance... stubs) {
+        DelegateSettings settings = new DelegateSettings();
+        List<String> urls = new ArrayList<>();
+        for (StubInstance stub : stubs) {
+            urls.add(stub.getUrl());
+        }
+        settings.setUrls(urls);
+        settings.setThreads(4);
+        settings.setQueueCapacity(0);
+        settings.setHedgeMaxBytes(hedgeMaxBytes);
+        settings.setHedgeMinDelayMs(50);
+        return settings;
+    }
+
+    /**
+     * One instance of a delegate service on a local port, answering every file with an empty result.
+     */
+    private class StubInstance implements AutoCloseable {
+
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile long delayMs;
+        private volatile int status = 200;
+
+        StubInstance() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/file", this::handle);
+            server.setExecutor(executor);
+            server.start();
+            instances.add(this);
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        }
+
+        int getRequests() {
+            return requests.get();
+        }
+
+        void setDelayMs(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        void setStatus(int status) {
+            this.status = status;
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            try {
+                IOUtils.toByteArray(exchange.getRequestBody());
+                requests.incrementAndGet();
+                Thread.sleep(delayMs);
+                byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+}
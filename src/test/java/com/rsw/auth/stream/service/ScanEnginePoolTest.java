@@ -0,0 +1,56 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/15/16.
+ */
+public class ScanEnginePoolTest {
+
+    @Test
+    public void lease_spreadsOverEngines() throws Exception {
+        // leasing does not connect, the scan requests do
+        ScanEnginePool subject = new ScanEnginePool(Arrays.asList("127.0.0.1:1344", "127.0.0.1:1345"), 2, 1000);
+
+        ScanEnginePool.Lease first = subject.lease(1, TimeUnit.SECONDS);
+        ScanEnginePool.Lease second = subject.lease(1, TimeUnit.SECONDS);
+        assertNotEquals(first.getAddress(), second.getAddress());
+        assertEquals(2, subject.getStats().getLeased());
+        assertEquals(2, subject.getStats().getAvailable());
+        assertEquals(4, subject.getStats().getMax());
+
+        first.close();
+        first.close();
+        assertEquals("closing twice gives back one connection", 1, subject.getStats().getLeased());
+        ScanEnginePool.Lease third = subject.lease(1, TimeUnit.SECONDS);
+        assertEquals(first.getAddress(), third.getAddress());
+    }
+
+    @Test
+    public void lease_timesOutWhenExhausted() throws Exception {
+        ScanEnginePool subject = new ScanEnginePool(Collections.singletonList("127.0.0.1"), 1, 1000);
+
+        ScanEnginePool.Lease lease = subject.lease(1, TimeUnit.SECONDS);
+        assertEquals("127.0.0.1:" + ScanEnginePool.DEFAULT_ICAP_PORT, lease.getAddress());
+        try {
+            subject.lease(50, TimeUnit.MILLISECONDS);
+            fail("the engine only allows one connection");
+        } catch (ConnectionPoolTimeoutException ex) {
+            assertEquals(1, subject.getLeaseTimeouts());
+        }
+        lease.close();
+        subject.lease(50, TimeUnit.MILLISECONDS).close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void create_rejectsNoEngines() {
+        new ScanEnginePool(Collections.<String>emptyList(), 1, 1000);
+    }
+}
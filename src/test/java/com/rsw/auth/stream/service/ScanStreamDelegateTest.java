@@ -0,0 +1,155 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import com.rsw.auth.stream.domain.DelegateResult;
+import com.rsw.auth.stream.domain.ScanResult;
+import com.rsw.auth.stream.utils.CancellationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dalms on 11/15/16.
+ */
+public class ScanStreamDelegateTest {
+
+    private IcapStandIn engine;
+    private ScanStreamDelegate subject;
+    private CancellationContext cancellation = new CancellationContext();
+
+    @After
+    public void shutdown() throws Exception {
+        if (subject != null) {
+            subject.shutdown();
+        }
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void send_streamsFileAndReportsClean() throws Exception {
+        engine = new IcapStandIn();
+        subject = new ScanStreamDelegate("scan", settings(true), pool(engine.getAddress()));
+        byte[] data = new byte[200 * 1024];
+        new Random(15).nextBytes(data);
+
+        ScanResult result = (ScanResult) subject.send(new ByteArrayInputStream(data), "file.bin", cancellation)
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(ScanResult.Verdict.CLEAN, result.getVerdict());
+        assertFalse(subject.stopsOthers(result));
+        assertEquals(1, engine.getScanned().size());
+        assertArrayEquals(data, engine.getScanned().get(0));
+        assertEquals(0, subject.getPool().getStats().getLeased());
+    }
+
+    @Test
+    public void send_reportsThreat() throws Exception {
+        engine = new IcapStandIn();
+        subject = new ScanStreamDelegate("scan", settings(true), pool(engine.getAddress()));
+
+        ScanResult result = (ScanResult) subject.send(infected(), "eicar.com", cancellation).get(10, TimeUnit.SECONDS);
+
+        assertEquals(ScanResult.Verdict.INFECTED, result.getVerdict());
+        assertEquals(Collections.singletonList(IcapStandIn.THREAT), result.getThreats());
+        assertTrue("fail-fast delegates stop the others on a threat", subject.stopsOthers(result));
+    }
+
+    @Test
+    public void stopsOthers_onlyWithFailFast() throws Exception {
+        engine = new IcapStandIn();
+        subject = new ScanStreamDelegate("scan", settings(false), pool(engine.getAddress()));
+
+        ScanResult result = (ScanResult) subject.send(infected(), "eicar.com", cancellation).get(10, TimeUnit.SECONDS);
+
+        assertTrue(result.isInfected());
+        assertFalse(subject.stopsOthers(result));
+    }
+
+    @Test
+    public void stopsOthers_onRejectedResultWithFailFast() throws Exception {
+        engine = new IcapStandIn();
+        subject = new ScanStreamDelegate("scan", settings(true), pool(engine.getAddress()));
+        DelegateResult rejected = new DelegateResult();
+        rejected.setRejected(true);
+
+        assertTrue(subject.stopsOthers(rejected));
+        assertFalse(subject.stopsOthers(new DelegateResult()));
+        assertFalse(subject.stopsOthers(null));
+    }
+
+    @Test
+    public void send_emptyFileIsCleanWithoutScan() throws Exception {
+        engine = new IcapStandIn();
+        subject = new ScanStreamDelegate("scan", settings(true), pool(engine.getAddress()));
+
+        ScanResult result = (ScanResult) subject.send(new ByteArrayInputStream(new byte[0]), "empty.txt", cancellation)
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(ScanResult.Verdict.CLEAN, result.getVerdict());
+        assertTrue(engine.getScanned().isEmpty());
+    }
+
+    @Test
+    public void send_failsWhenEngineIsDown() throws Exception {
+        IcapStandIn gone = new IcapStandIn();
+        String address = gone.getAddress();
+        gone.close();
+        subject = new ScanStreamDelegate("scan", settings(true), pool(address));
+
+        try {
+            subject.send(new ByteArrayInputStream(new byte[10]), "file.txt", cancellation).get(10, TimeUnit.SECONDS);
+            fail("nothing listens on " + address);
+        } catch (ExecutionException ex) {
+            // expected
+        }
+        assertEquals("the connection is given back", 0, subject.getPool().getStats().getLeased());
+    }
+
+    @Test
+    public void send_cancelledUploadIsNotScanned() throws Exception {
+        engine = new IcapStandIn();
+        subject = new ScanStreamDelegate("scan", settings(true), pool(engine.getAddress()));
+        cancellation.cancel(new IOException("client went away"));
+
+        try {
+            subject.send(infected(), "eicar.com", cancellation).get(10, TimeUnit.SECONDS);
+            fail("the upload was cancelled");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CancellationException);
+        }
+        assertTrue(engine.getScanned().isEmpty());
+        assertEquals(0, subject.getPool().getStats().getLeased());
+    }
+
+    private static ByteArrayInputStream infected() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(new byte[70000]);
+        data.write(IcapStandIn.EICAR.getBytes(StandardCharsets.ISO_8859_1));
+        return new ByteArrayInputStream(data.toByteArray());
+    }
+
+    private static ScanEnginePool pool(String address) {
+        return new ScanEnginePool(Collections.singletonList(address), 2, 2000);
+    }
+
+    private static DelegateSettings settings(boolean failFast) {
+        DelegateSettings settings = new DelegateSettings();
+        settings.setType(DelegateSettings.Type.SCAN);
+        settings.setThreads(2);
+        settings.setQueueCapacity(1);
+        settings.setFailFast(failFast);
+        return settings;
+    }
+}
@@ -0,0 +1,118 @@
+package com.rsw.auth.stream.service;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Created by dalms on 11/21/16.
+ */
+public class UploadAdmissionTest {
+
+    private static final Runnable NOTHING = () -> { };
+
+    @Test
+    public void admit_withinBudget() {
+        UploadAdmission subject = new UploadAdmission(100, 0, 1000, 5);
+        AtomicInteger started = new AtomicInteger();
+
+        UploadAdmission.Ticket first = subject.admit(60, started::incrementAndGet, ex -> fail());
+        UploadAdmission.Ticket second = subject.admit(40, started::incrementAndGet, ex -> fail());
+        assertEquals(2, started.get());
+        assertEquals(100, subject.getReservedBytes());
+
+        first.release();
+        first.release();
+        assertEquals("releasing twice hands back the memory once", 40, subject.getReservedBytes());
+        second.release();
+        assertEquals(0, subject.getReservedBytes());
+        assertEquals(2, subject.getAdmitted());
+        assertEquals(0, subject.getQueued());
+    }
+
+    @Test
+    public void admit_queuesUntilReleased() {
+        UploadAdmission subject = new UploadAdmission(100, 2, 10000, 5);
+        AtomicInteger started = new AtomicInteger();
+
+        UploadAdmission.Ticket first = subject.admit(80, NOTHING, ex -> fail());
+        subject.admit(50, started::incrementAndGet, ex -> fail());
+        subject.admit(10, started::incrementAndGet, ex -> fail());
+        assertEquals("the small upload does not overtake the one ahead of it", 0, started.get());
+        assertEquals(2, subject.getWaiting());
+
+        first.release();
+        assertEquals(2, started.get());
+        assertEquals(60, subject.getReservedBytes());
+        assertEquals(0, subject.getWaiting());
+        assertEquals(2, subject.getQueued());
+    }
+
+    @Test
+    public void admit_rejectsWhenQueueFull() {
+        UploadAdmission subject = new UploadAdmission(100, 1, 10000, 7);
+        subject.admit(100, NOTHING, ex -> fail());
+        UploadAdmission.Ticket waiting = subject.admit(10, NOTHING, ex -> fail());
+
+        try {
+            subject.admit(10, NOTHING, ex -> fail());
+            fail("the queue only holds one upload");
+        } catch (UploadRejectedException ex) {
+            assertEquals(7, ex.getRetryAfterSeconds());
+        }
+        assertEquals(1, subject.getRejected());
+
+        waiting.release();
+        assertEquals("an abandoned upload leaves the queue", 0, subject.getWaiting());
+        assertEquals(100, subject.getReservedBytes());
+    }
+
+    @Test
+    public void admit_rejectsAfterQueueTimeout() throws Exception {
+        UploadAdmission subject = new UploadAdmission(100, 1, 50, 5);
+        UploadAdmission.Ticket running = subject.admit(100, NOTHING, ex -> fail());
+        AtomicReference<UploadRejectedException> rejection = new AtomicReference<>();
+        CountDownLatch rejected = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+
+        subject.admit(10, started::incrementAndGet, ex -> {
+            rejection.set(ex);
+            rejected.countDown();
+        });
+        assertTrue(rejected.await(5, TimeUnit.SECONDS));
+        assertEquals(5, rejection.get().getRetryAfterSeconds());
+        assertEquals(0, subject.getWaiting());
+
+        running.release();
+        assertEquals("a timed out upload is not started later", 0, started.get());
+        assertEquals(0, subject.getReservedBytes());
+        subject.close();
+    }
+
+    @Test
+    public void admit_oversizeRunsAlone() {
+        UploadAdmission subject = new UploadAdmission(100, 1, 10000, 5);
+        AtomicInteger started = new AtomicInteger();
+        UploadAdmission.Ticket small = subject.admit(10, NOTHING, ex -> fail());
+
+        subject.admit(500, started::incrementAndGet, ex -> fail());
+        assertEquals(0, started.get());
+        small.release();
+        assertEquals(1, started.get());
+        assertEquals("an oversize upload takes the whole budget", 100, subject.getReservedBytes());
+    }
+
+    @Test
+    public void admit_unlimitedBudget() {
+        UploadAdmission subject = new UploadAdmission(0, 0, 1000, 5);
+        AtomicInteger started = new AtomicInteger();
+        subject.admit(Long.MAX_VALUE, started::incrementAndGet, ex -> fail());
+        subject.admit(Long.MAX_VALUE, started::incrementAndGet, ex -> fail());
+        assertEquals(2, started.get());
+        assertEquals(0, subject.getReservedBytes());
+    }
+}
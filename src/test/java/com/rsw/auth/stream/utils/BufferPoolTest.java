@@ -0,0 +1,72 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by DAlms on 11/08/16.
+ */
+public class BufferPoolTest {
+
+    private BufferPool subject = new BufferPool(1024, 8192, 16 * 1024, true);
+
+    @Test
+    public void acquireArray_roundsUpAndRecycles() {
+        byte[] first = subject.acquireArray(1500);
+        assertEquals(2048, first.length);
+        subject.releaseArray(first);
+
+        assertSame(first, subject.acquireArray(2000));
+        BufferPool.Stats stats = subject.getStats();
+        assertEquals(2, stats.getAcquired());
+        assertEquals(0.5, stats.getHitRate(), 0.001);
+        assertEquals(1, stats.getOutstanding());
+        assertEquals(2048, stats.getPeakOutstandingBytes());
+    }
+
+    @Test
+    public void acquireBuffer_directWithLimit() {
+        ByteBuffer buffer = subject.acquireBuffer(3000);
+        assertTrue(buffer.isDirect());
+        assertEquals(4096, buffer.capacity());
+        assertEquals(3000, buffer.limit());
+        subject.releaseBuffer(buffer);
+        assertEquals(4096, subject.getStats().getPooledBytes());
+    }
+
+    @Test
+    public void release_neverExceedsCap() {
+        byte[][] arrays = new byte[3][];
+        for (int ix = 0; ix < arrays.length; ix++) {
+            arrays[ix] = subject.acquireArray(8192);
+        }
+        for (byte[] array : arrays) {
+            subject.releaseArray(array);
+        }
+        assertEquals(16 * 1024, subject.getStats().getPooledBytes());
+        assertEquals(0, subject.getStats().getOutstanding());
+    }
+
+    @Test
+    public void acquire_oversizedIsNotPooled() {
+        byte[] big = subject.acquireArray(10000);
+        assertEquals(10000, big.length);
+        subject.releaseArray(big);
+        assertEquals(0, subject.getStats().getPooledBytes());
+    }
+
+    @Test
+    public void streamSplitter_returnsSlots() throws Exception {
+        StreamSplitter splitter = new StreamSplitter(new ByteArrayInputStream(new byte[5000]), 1000);
+        splitter.setBufferPool(subject);
+        splitter.getStreamA().close();
+        splitter.setSlowConsumerPolicy(SlowConsumerPolicies.detach(1, java.util.concurrent.TimeUnit.SECONDS));
+
+        splitter.readToEof();
+        assertEquals(0, subject.getStats().getOutstanding());
+        assertTrue(subject.getStats().getPooledBytes() > 0);
+    }
+}
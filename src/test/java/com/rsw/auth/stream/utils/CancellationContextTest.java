@@ -0,0 +1,97 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by DAlms on 11/16/16.
+ */
+public class CancellationContextTest {
+
+    private CancellationContext subject = new CancellationContext();
+
+    @Test
+    public void cancel_firstCauseWins() {
+        AtomicInteger runs = new AtomicInteger();
+        subject.onCancel(runs::incrementAndGet);
+        IOException first = new IOException("first");
+
+        assertTrue(subject.cancel(first));
+        assertFalse(subject.cancel(new IOException("second")));
+
+        assertTrue(subject.isCancelled());
+        assertSame(first, subject.getCause());
+        assertEquals("callbacks run once", 1, runs.get());
+    }
+
+    @Test
+    public void onCancel_runsRightAwayOnceCancelled() {
+        subject.cancel(new IOException("gone"));
+        AtomicInteger runs = new AtomicInteger();
+
+        subject.onCancel(runs::incrementAndGet);
+
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void remove_callbackDoesNotRun() {
+        AtomicInteger runs = new AtomicInteger();
+        Runnable callback = runs::incrementAndGet;
+        subject.onCancel(callback);
+        subject.remove(callback);
+
+        subject.cancel(new IOException("gone"));
+
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void cancel_failingCallbackDoesNotStopTheOthers() {
+        AtomicInteger runs = new AtomicInteger();
+        subject.onCancel(() -> {
+            throw new IllegalStateException("broken");
+        });
+        subject.onCancel(runs::incrementAndGet);
+
+        subject.cancel(new IOException("gone"));
+
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void newChild_cancelledWithParent() {
+        CancellationContext child = subject.newChild();
+        IOException cause = new IOException("gone");
+
+        subject.cancel(cause);
+
+        assertTrue(child.isCancelled());
+        assertSame(cause, child.getCause());
+    }
+
+    @Test
+    public void newChild_cancelledAlone() {
+        CancellationContext child = subject.newChild();
+
+        child.cancel(new IOException("too slow"));
+
+        assertFalse(subject.isCancelled());
+        assertTrue(child.isCancelled());
+    }
+
+    @Test
+    public void detach_childNoLongerCancelledWithParent() {
+        CancellationContext done = subject.newChild();
+        CancellationContext running = subject.newChild();
+
+        done.detach();
+        subject.cancel(new IOException("gone"));
+
+        assertFalse(done.isCancelled());
+        assertTrue(running.isCancelled());
+    }
+}
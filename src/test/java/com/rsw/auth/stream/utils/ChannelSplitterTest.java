@@ -0,0 +1,117 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+/**
+ * Created by DAlms on 11/07/16.
+ */
+public class ChannelSplitterTest {
+
+    @Test
+    public void readToEof_zeroCopyAndChannelConsumers() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        new Random(3).nextBytes(data);
+        ChannelSplitter subject = new ChannelSplitter(Channels.newChannel(new ByteArrayInputStream(data)), 1000, 3);
+
+        ChannelSplitter.Consumer viewConsumer = subject.addConsumer("views");
+        ChannelSplitter.Consumer copyConsumer = subject.addConsumer("copies");
+        ByteArrayOutputStream viewOutput = new ByteArrayOutputStream();
+        ByteArrayOutputStream copyOutput = new ByteArrayOutputStream();
+
+        Thread viewThread = new Thread(() -> {
+            try {
+                ChannelSplitter.Chunk chunk;
+                while ((chunk = viewConsumer.next()) != null) {
+                    assertTrue(chunk.buffer().isReadOnly());
+                    chunk.writeTo(Channels.newChannel(viewOutput));
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread copyThread = new Thread(() -> {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(333);
+                while (copyConsumer.read(buffer) >= 0) {
+                    buffer.flip();
+                    copyOutput.write(buffer.array(), 0, buffer.limit());
+                    buffer.clear();
+                }
+                copyConsumer.close();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        viewThread.start();
+        copyThread.start();
+
+        subject.readToEof();
+        viewThread.join();
+        copyThread.join();
+
+        assertArrayEquals(data, viewOutput.toByteArray());
+        assertArrayEquals(data, copyOutput.toByteArray());
+        assertEquals(subject.getBufferCount(), subject.getFreeBufferCount());
+    }
+
+    @Test
+    public void readToEof_closedConsumerReleasesBuffers() throws Exception {
+        byte[] data = new byte[10 * 1024];
+        ChannelSplitter subject = new ChannelSplitter(Channels.newChannel(new ByteArrayInputStream(data)), 100, 2);
+        ChannelSplitter.Consumer reader = subject.addConsumer("reader");
+        subject.addConsumer("quitter").close();
+
+        Thread readerThread = new Thread(() -> {
+            try {
+                ChannelSplitter.Chunk chunk;
+                while ((chunk = reader.next()) != null) {
+                    chunk.release();
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        readerThread.start();
+
+        // two buffers only, so this would hang if the closed consumer held on to its views
+        subject.readToEof();
+        readerThread.join();
+        assertEquals(subject.getBufferCount(), subject.getFreeBufferCount());
+    }
+
+    @Test
+    public void readToEof_borrowsPooledBuffersOnlyWhileReading() throws Exception {
+        BufferPool pool = new BufferPool(64, 4096, 1 << 20, true);
+        byte[] data = new byte[10 * 1024];
+        new ChannelSplitter(Channels.newChannel(new ByteArrayInputStream(data)), 1000, 3, pool)
+                .addConsumer("never-read");
+        assertEquals("a splitter dropped before reading holds no buffer", 0, pool.getStats().getOutstanding());
+
+        ChannelSplitter subject = new ChannelSplitter(Channels.newChannel(new ByteArrayInputStream(data)), 1000, 3,
+                pool);
+        ChannelSplitter.Consumer reader = subject.addConsumer("reader");
+        Thread readerThread = new Thread(() -> {
+            try {
+                ChannelSplitter.Chunk chunk;
+                while ((chunk = reader.next()) != null) {
+                    chunk.release();
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        readerThread.start();
+
+        subject.readToEof();
+        readerThread.join();
+        assertEquals(0, pool.getStats().getOutstanding());
+    }
+}
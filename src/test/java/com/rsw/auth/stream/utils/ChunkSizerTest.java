@@ -0,0 +1,59 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Created by DAlms on 11/09/16.
+ */
+public class ChunkSizerTest {
+
+    private ChunkSizer subject = new ChunkSizer(new ChunkSizing(1024, 8192, 4), 2048);
+
+    private long consumerWaits;
+
+    @Test
+    public void growsWhileReadsAreFullAndConsumersKeepUp() {
+        sample(2048, 1000, 10, 0);
+        assertEquals(4096, subject.getChunkSize());
+        sample(4096, 1000, 10, 0);
+        sample(8192, 1000, 10, 0);
+        assertEquals(8192, subject.getChunkSize());
+        assertEquals(2, subject.getResizes());
+    }
+
+    @Test
+    public void holdsWhileConsumersSetThePace() {
+        sample(2048, 1000, 5000, 0);
+        assertEquals(2048, subject.getChunkSize());
+    }
+
+    @Test
+    public void growsWhenConsumersRunDry() {
+        // the producer waited, but every chunk also found a consumer parked for lack of data
+        sample(2048, 1000, 5000, 4);
+        assertEquals(4096, subject.getChunkSize());
+    }
+
+    @Test
+    public void shrinksToWhatTheInputDelivers() {
+        sample(700, 1000, 10, 0);
+        assertEquals(1024, subject.getChunkSize());
+        sample(100, 1000, 10, 0);
+        assertEquals(1024, subject.getChunkSize());
+    }
+
+    @Test
+    public void initialSizeIsClamped() {
+        assertEquals(8192, new ChunkSizer(new ChunkSizing(1024, 8192), 65536).getChunkSize());
+        assertEquals(1024, new ChunkSizer(new ChunkSizing(1024, 8192), 10).getChunkSize());
+    }
+
+    private void sample(int numRead, long readNanos, long waitNanos, int waitsPerSample) {
+        consumerWaits += waitsPerSample;
+        for (int ix = 0; ix < 4; ix++) {
+            subject.onClaim(waitNanos);
+            subject.onRead(numRead, readNanos, consumerWaits);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by DAlms on 11/17/16.
+ */
+public class ConsumerWatchdogTest {
+
+    private ConsumerWatchdog watchdog = new ConsumerWatchdog(10, TimeUnit.MILLISECONDS);
+    private List<ConsumerTimeoutException> timeouts = new CopyOnWriteArrayList<>();
+
+    @After
+    public void shutdown() {
+        watchdog.close();
+    }
+
+    @Test
+    public void stalledConsumer_timedOutAndProducerGoesOn() throws Exception {
+        StreamSplitter subject = newSplitter();
+        InputStream stuck = subject.addConsumer("stuck", new ConsumerLimits(100, 0, TimeUnit.MILLISECONDS));
+        InputStream reader = subject.addConsumer("reader");
+        byte[] data = new byte[64];
+
+        assertEquals("the ring takes two chunks", 32, subject.offer(data, 0, data.length));
+        awaitTimeout();
+
+        assertEquals("stuck", timeouts.get(0).getConsumer());
+        assertEquals(ConsumerStats.State.TIMED_OUT, subject.getConsumerStats().get(0).getState());
+        assertEquals(ConsumerStats.State.ACTIVE, subject.getConsumerStats().get(1).getState());
+        assertEquals(16, reader.read(new byte[16]));
+        assertEquals(16, reader.read(new byte[16]));
+        assertEquals("no longer held up by the stuck consumer", 32, subject.offer(data, 32, 32));
+        try {
+            stuck.read();
+            fail("the consumer timed out");
+        } catch (ConsumerTimeoutException ex) {
+            assertEquals("stuck", ex.getConsumer());
+        }
+        assertEquals(1, watchdog.getTimeouts());
+    }
+
+    @Test
+    public void waitingForProducer_isNoStall() throws Exception {
+        StreamSplitter subject = newSplitter();
+        subject.addConsumer("waiting", new ConsumerLimits(50, 0, TimeUnit.MILLISECONDS));
+        subject.offer(new byte[0], 0, 0);
+
+        Thread.sleep(200);
+
+        assertTrue(timeouts.isEmpty());
+        assertEquals(ConsumerStats.State.ACTIVE, subject.getConsumerStats().get(0).getState());
+        assertEquals(1, watchdog.getWatched());
+    }
+
+    @Test
+    public void maxDuration_timesOutEvenWithoutData() throws Exception {
+        StreamSplitter subject = newSplitter();
+        InputStream slow = subject.addConsumer("slow", new ConsumerLimits(0, 100, TimeUnit.MILLISECONDS));
+        subject.offer(new byte[0], 0, 0);
+
+        awaitTimeout();
+
+        try {
+            slow.read();
+            fail("the consumer ran out of time");
+        } catch (ConsumerTimeoutException ex) {
+            // expected
+        }
+        assertEquals(0, watchdog.getWatched());
+    }
+
+    @Test
+    public void completedConsumer_noLongerWatched() throws Exception {
+        StreamSplitter subject = newSplitter();
+        InputStream reader = subject.addConsumer("reader", new ConsumerLimits(50, 100, TimeUnit.MILLISECONDS));
+        subject.offer(new byte[10], 0, 10);
+        subject.close();
+        while (reader.read() >= 0) {
+            // drain
+        }
+
+        Thread.sleep(200);
+
+        assertTrue(timeouts.isEmpty());
+        assertEquals(ConsumerStats.State.COMPLETED, subject.getConsumerStats().get(0).getState());
+        assertEquals(0, watchdog.getWatched());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addConsumer_limitsNeedWatchdog() {
+        new StreamSplitter(16, 2).addConsumer("a", new ConsumerLimits(50, 0, TimeUnit.MILLISECONDS));
+    }
+
+    private StreamSplitter newSplitter() {
+        StreamSplitter splitter = new StreamSplitter(16, 2);
+        splitter.setWatchdog(watchdog);
+        splitter.onConsumerTimeout(timeouts::add);
+        return splitter;
+    }
+
+    private void awaitTimeout() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (timeouts.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("no timeout reported", timeouts.isEmpty());
+    }
+}
@@ -0,0 +1,60 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Created by DAlms on 11/19/16.
+ */
+public class HistogramTest {
+
+    private Histogram subject = new Histogram();
+
+    @Test
+    public void getPercentile_exactForSmallValues() {
+        for (int value = 1; value <= 10; value++) {
+            subject.record(value);
+        }
+
+        assertEquals(10, subject.getCount());
+        assertEquals(5, subject.getPercentile(50));
+        assertEquals(10, subject.getPercentile(100));
+        assertEquals(10, subject.getMax());
+    }
+
+    @Test
+    public void getPercentile_withinBucketPrecision() {
+        for (int value = 1; value <= 100000; value++) {
+            subject.record(value);
+        }
+
+        assertEquals(50000, subject.getPercentile(50), 50000 / 16);
+        assertEquals(99000, subject.getPercentile(99), 99000 / 16);
+        assertEquals(100000, subject.getPercentile(100));
+    }
+
+    @Test
+    public void getPercentile_emptyIsZero() {
+        assertEquals(0, subject.getPercentile(99));
+    }
+
+    @Test
+    public void bucketOf_upperBoundCoversValue() {
+        long[] values = {0, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(value + " fits its bucket", Histogram.upperBoundOf(bucket) >= value);
+            assertTrue(value + " is above the bucket before", bucket == 0
+                    || Histogram.upperBoundOf(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void reset_startsOver() {
+        subject.record(42);
+        subject.reset();
+
+        assertEquals(0, subject.getCount());
+        assertEquals(0, subject.getMax());
+    }
+}
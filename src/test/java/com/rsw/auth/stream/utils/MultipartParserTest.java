@@ -0,0 +1,174 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Created by DAlms on 11/10/16.
+ */
+public class MultipartParserTest {
+
+    private static final String BOUNDARY = "----FormBoundary7MA4YWxk";
+
+    private String body = "preamble\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"comment\"\r\n\r\n"
+            + "hello\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+            + "Content-Type: text/plain\r\n\r\n"
+            + "first file\r\n--" + BOUNDARY.substring(0, 10) + " is not a boundary\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"b.bin\"\r\n\r\n"
+            + "second\r\n"
+            + "--" + BOUNDARY + "--\r\n"
+            + "epilogue";
+
+    @Test
+    public void getBoundary() {
+        assertEquals(BOUNDARY, MultipartParser.getBoundary("multipart/form-data; boundary=" + BOUNDARY));
+        assertNull(MultipartParser.getBoundary("text/plain"));
+        assertNull(MultipartParser.getBoundary(null));
+    }
+
+    @Test
+    public void feed_wholeBody() throws Exception {
+        Recorder recorder = new Recorder(Integer.MAX_VALUE);
+        MultipartParser subject = new MultipartParser(BOUNDARY, recorder);
+
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(bytes.length, subject.feed(bytes, 0, bytes.length));
+
+        assertTrue(subject.isComplete());
+        assertRecorded(recorder);
+        assertEquals("text/plain", recorder.parts.get(1).getContentType());
+        assertEquals("text/plain", recorder.parts.get(1).getHeader("content-type"));
+        assertNull(recorder.parts.get(1).getHeader("X-Content-SHA256"));
+    }
+
+    @Test
+    public void feed_smallPiecesAndBackPressure() throws Exception {
+        // the handler takes at most 3 bytes a call and the input arrives a few bytes at a time
+        Recorder recorder = new Recorder(3);
+        MultipartParser subject = new MultipartParser(BOUNDARY, recorder);
+
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] buffer = new byte[256];
+        int start = 0;
+        int end = 0;
+        int next = 0;
+        while (!subject.isComplete()) {
+            if (next < bytes.length) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                int count = Math.min(5, bytes.length - next);
+                System.arraycopy(bytes, next, buffer, end, count);
+                next += count;
+                end += count;
+            }
+            start += subject.feed(buffer, start, end - start);
+        }
+        assertRecorded(recorder);
+    }
+
+    @Test(expected = IOException.class)
+    public void feed_malformedAfterBoundary() throws Exception {
+        byte[] bytes = ("--" + BOUNDARY + "xx\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        new MultipartParser(BOUNDARY, new Recorder(Integer.MAX_VALUE)).feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void feed_binaryBodyWithNearMisses() throws Exception {
+        // random data sprinkled with every prefix of the delimiter and with delimiters off by their last byte
+        String delimiter = "\r\n--" + BOUNDARY;
+        Random random = new Random(25);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        for (int ix = 0; ix < 2000; ix++) {
+            byte[] noise = new byte[random.nextInt(200)];
+            random.nextBytes(noise);
+            file.write(noise);
+            String nearMiss = random.nextBoolean()
+                    ? delimiter.substring(0, 1 + random.nextInt(delimiter.length() - 1))
+                    : delimiter.substring(0, delimiter.length() - 1) + "X";
+            file.write(nearMiss.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        bodyBytes.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"c.bin\"\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        bodyBytes.write(file.toByteArray());
+        bodyBytes.write((delimiter + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        byte[] bytes = bodyBytes.toByteArray();
+        Recorder recorder = new Recorder(Integer.MAX_VALUE);
+        MultipartParser subject = new MultipartParser(BOUNDARY, recorder);
+
+        // fed in pieces of random size, so the delimiter and its near misses straddle them
+        byte[] buffer = new byte[16 * 1024];
+        int start = 0;
+        int end = 0;
+        int next = 0;
+        while (!subject.isComplete()) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+            int count = Math.min(Math.min(1 + random.nextInt(4096), buffer.length - end), bytes.length - next);
+            System.arraycopy(bytes, next, buffer, end, count);
+            next += count;
+            end += count;
+            start += subject.feed(buffer, start, end - start);
+        }
+
+        assertEquals(1, recorder.data.size());
+        assertArrayEquals(file.toByteArray(), recorder.data.get(0).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private void assertRecorded(Recorder recorder) {
+        assertEquals(3, recorder.parts.size());
+        assertTrue(recorder.parts.get(0).isFormField());
+        assertEquals("comment", recorder.parts.get(0).getName());
+        assertEquals("a.txt", recorder.parts.get(1).getFileName());
+        assertEquals("b.bin", recorder.parts.get(2).getFileName());
+        assertEquals(Arrays.asList("hello", "first file\r\n--" + BOUNDARY.substring(0, 10) + " is not a boundary",
+                "second"), recorder.data);
+    }
+
+    private static class Recorder implements MultipartParser.Handler {
+
+        private final int maxTake;
+        private final List<MultipartParser.Part> parts = new ArrayList<>();
+        private final List<String> data = new ArrayList<>();
+        private ByteArrayOutputStream current;
+
+        Recorder(int maxTake) {
+            this.maxTake = maxTake;
+        }
+
+        @Override
+        public boolean partStarted(MultipartParser.Part part) {
+            parts.add(part);
+            current = new ByteArrayOutputStream();
+            return true;
+        }
+
+        @Override
+        public int partData(byte[] b, int off, int len) {
+            int taken = Math.min(len, maxTake);
+            current.write(b, off, taken);
+            return taken;
+        }
+
+        @Override
+        public void partEnded() {
+            data.add(new String(current.toByteArray(), StandardCharsets.ISO_8859_1));
+        }
+    }
+}
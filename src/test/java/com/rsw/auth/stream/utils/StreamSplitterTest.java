@@ -6,14 +6,26 @@ import static org.mockito.Matchers.anyVararg;
 import static org.mockito.Mockito.*;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by DAlms on 10/30/16.
@@ -21,6 +33,9 @@ import java.io.PipedOutputStream;
 @RunWith(MockitoJUnitRunner.class)
 public class StreamSplitterTest {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private StreamSplitter subject;
 
     private byte[] inputBuffer;
@@ -43,6 +58,33 @@ public class StreamSplitterTest {
         assertNotEquals(streamA, streamB);
     }
 
+    @Test
+    public void addConsumer_manyConsumers() throws Exception {
+        subject = new StreamSplitter(inputStream, 4);
+        Reader[] readers = new Reader[5];
+        Thread[] threads = new Thread[readers.length];
+        for (int ix = 0; ix < readers.length; ix++) {
+            readers[ix] = new Reader(subject.addConsumer("consumer-" + ix), 3);
+            threads[ix] = new Thread(readers[ix]);
+            threads[ix].start();
+        }
+
+        subject.readToEof();
+
+        for (int ix = 0; ix < readers.length; ix++) {
+            threads[ix].join();
+            assertEquals(inputString, readers[ix].sb.toString());
+            assertFalse(readers[ix].caughtException);
+        }
+        assertEquals(readers.length, subject.getConsumers().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addConsumer_duplicateName() throws Exception {
+        subject.addConsumer("scanner");
+        subject.addConsumer("scanner");
+    }
+
     @Test
     public void readToEof_writerFinishesFirst() throws Exception {
         // writer's buffer size permits writer to dump it in one write, reader's buffer is requires multiple reads
@@ -92,7 +134,7 @@ public class StreamSplitterTest {
     public void readToEof_writerNoReader() throws Exception {
         // make sure buffer size is < input stream length so writer has to wait
         subject = new StreamSplitter(inputStream, 2);
-        PipedInputStream inputStream = subject.getStreamA();
+        InputStream inputStream = subject.getStreamA();
 
         Runnable writer = new Runnable() {
             @Override
@@ -119,21 +161,616 @@ public class StreamSplitterTest {
         InputStream input = mock(InputStream.class);
         subject = new StreamSplitter(input);
 
-        PipedOutputStream outputA = mock(PipedOutputStream.class);
-        PipedOutputStream outputB = mock(PipedOutputStream.class);
-        subject.getStreamA(outputA);
-        subject.getStreamB(outputB);
+        InputStream streamA = subject.getStreamA();
+        InputStream streamB = subject.getStreamB();
         when(input.read(anyVararg(), anyInt(), anyInt())).thenReturn(0);
 
         subject.readToEof();
         verify(input).close();
-        verify(outputA).close();
-        verify(outputB).close();
+        assertEquals(-1, streamA.read());
+        assertEquals(-1, streamB.read());
+    }
+
+    @Test
+    public void readToEof_ringWrapsManyTimes() throws Exception {
+        // input is many times the size of the ring, so every slot is reused while the readers lag behind
+        byte[] data = new byte[64 * 1024];
+        new Random(42).nextBytes(data);
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 100, 3);
+        Reader readerA = new Reader(subject.getStreamA(), 7);
+        Reader readerB = new Reader(subject.getStreamB(), 333);
+
+        Thread threadA = new Thread(readerA);
+        Thread threadB = new Thread(readerB);
+        threadA.start();
+        threadB.start();
+
+        subject.readToEof();
+
+        threadA.join();
+        threadB.join();
+
+        assertArrayEquals(data, readerA.bytes.toByteArray());
+        assertFalse(readerA.caughtException);
+        assertArrayEquals(data, readerB.bytes.toByteArray());
+        assertFalse(readerB.caughtException);
+    }
+
+    @Test
+    public void readToEof_detachStalledConsumer() throws Exception {
+        // B never reads, so once the ring is full it holds up A until the policy drops it
+        subject = new StreamSplitter(inputStream, 2, 2);
+        subject.setSlowConsumerPolicy(SlowConsumerPolicies.detach(50, TimeUnit.MILLISECONDS));
+        Reader readerA = new Reader(subject.getStreamA(), 3);
+        InputStream streamB = subject.getStreamB();
+
+        Thread threadA = new Thread(readerA);
+        threadA.start();
+
+        subject.readToEof();
+        threadA.join();
+
+        assertEquals(inputString, readerA.sb.toString());
+        assertFalse(readerA.caughtException);
+        ConsumerStats statsB = subject.getConsumerStats().get(1);
+        assertEquals(ConsumerStats.State.DETACHED, statsB.getState());
+        assertTrue(statsB.getStallTime(TimeUnit.MILLISECONDS) >= 50);
+        try {
+            streamB.read();
+            fail("detached stream should not be readable");
+        } catch (ConsumerStalledException ex) {
+            assertEquals("B", ex.getConsumer());
+        }
+    }
+
+    @Test
+    public void readToEof_blockTimeoutFailsSplit() throws Exception {
+        subject = new StreamSplitter(inputStream, 2, 2);
+        subject.setSlowConsumerPolicy(SlowConsumerPolicies.block(50, TimeUnit.MILLISECONDS));
+        Reader readerA = new Reader(subject.getStreamA(), 3);
+        subject.getStreamB();
+
+        Thread threadA = new Thread(readerA);
+        threadA.start();
+
+        try {
+            subject.readToEof();
+            fail("stalled consumer should fail the split");
+        } catch (ConsumerStalledException ex) {
+            assertEquals("B", ex.getConsumer());
+        }
+        threadA.join();
+
+        // A must not mistake the aborted split for a complete input
+        assertTrue(readerA.caughtException);
+        assertEquals(ConsumerStats.State.FAILED, subject.getConsumerStats().get(0).getState());
+    }
+
+    @Test
+    public void readToEof_detachEarlyClose() throws Exception {
+        subject = new StreamSplitter(inputStream, 2);
+        subject.setSlowConsumerPolicy(SlowConsumerPolicies.detach(1, TimeUnit.SECONDS));
+        Reader readerA = new Reader(subject.getStreamA(), 5);
+        subject.getStreamB().close();
+
+        Thread threadA = new Thread(readerA);
+        threadA.start();
+
+        subject.readToEof();
+        threadA.join();
+
+        assertEquals(inputString, readerA.sb.toString());
+        assertEquals(ConsumerStats.State.CLOSED, subject.getConsumerStats().get(1).getState());
+    }
+
+    @Test
+    public void readToEof_spillForSlowConsumer() throws Exception {
+        // B only starts reading after the whole input went through, A never waits on it
+        byte[] data = new byte[16 * 1024];
+        new Random(7).nextBytes(data);
+        File spillDir = tempFolder.newFolder();
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 256, 2);
+        // both consumers may spill, so the quota covers the input twice
+        subject.setSpillOptions(new SpillOptions(spillDir, 2 * data.length, 4096));
+        Reader readerA = new Reader(subject.getStreamA(), 100);
+        Reader readerB = new Reader(subject.getStreamB(), 1000);
+
+        Thread threadA = new Thread(readerA);
+        threadA.start();
+        subject.readToEof();
+        threadA.join();
+        assertArrayEquals(data, readerA.bytes.toByteArray());
+
+        readerB.run();
+        assertArrayEquals(data, readerB.bytes.toByteArray());
+        assertTrue(subject.getConsumerStats().get(1).getSpilledBytes() > 0);
+        assertEquals(0, spillDir.list().length);
+    }
+
+    @Test
+    public void readToEof_drainingSpillIsNotStalled() throws Exception {
+        // B is over its quota and keeps the same seq while it drains its spill file, each read is progress
+        byte[] data = new byte[4096];
+        new Random(11).nextBytes(data);
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 256, 2);
+        subject.setSpillOptions(new SpillOptions(tempFolder.newFolder(), 2048, 4096));
+        subject.setSlowConsumerPolicy(SlowConsumerPolicies.detach(50, TimeUnit.MILLISECONDS));
+        Reader readerA = new Reader(subject.getStreamA(), 100);
+        InputStream streamB = subject.getStreamB();
+        ByteArrayOutputStream bytesB = new ByteArrayOutputStream();
+        Thread threadB = new Thread(() -> {
+            byte[] buffer = new byte[64];
+            int numRead;
+            try {
+                while ((numRead = streamB.read(buffer)) > 0) {
+                    bytesB.write(buffer, 0, numRead);
+                    Thread.sleep(10);
+                }
+            } catch (IOException | InterruptedException ex) {
+                // the assertions below tell
+            }
+        });
+
+        Thread threadA = new Thread(readerA);
+        threadA.start();
+        threadB.start();
+        subject.readToEof();
+        threadA.join();
+        threadB.join();
+
+        assertArrayEquals(data, readerA.bytes.toByteArray());
+        assertArrayEquals(data, bytesB.toByteArray());
+        assertEquals(ConsumerStats.State.COMPLETED, subject.getConsumerStats().get(1).getState());
+    }
+
+    @Test
+    public void readToEof_finishedConsumerHandsBackItsSpillQuota() throws Exception {
+        // B spills the first half and closes; C reads the first half, then spills the second in the same quota.
+        // The input trickles so that only B and C ever fall behind.
+        byte[] data = new byte[16 * 1024];
+        new Random(13).nextBytes(data);
+        int half = data.length / 2;
+        CountDownLatch atHalf = new CountDownLatch(1);
+        CountDownLatch pastHalf = new CountDownLatch(1);
+        InputStream gated = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                try {
+                    if (pos == half && pastHalf.getCount() > 0) {
+                        atHalf.countDown();
+                        pastHalf.await();
+                    }
+                    Thread.sleep(2);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, pos < half ? Math.min(len, half - pos) : len);
+            }
+        };
+        subject = new StreamSplitter(gated, 256, 2);
+        subject.setSpillOptions(new SpillOptions(tempFolder.newFolder(), half + 1024, 1024));
+        subject.setSlowConsumerPolicy(SlowConsumerPolicies.detach(50, TimeUnit.MILLISECONDS));
+        Reader readerA = new Reader(subject.addConsumer("A"), 100);
+        InputStream streamB = subject.addConsumer("B");
+        InputStream streamC = subject.addConsumer("C");
+        ByteArrayOutputStream bytesC = new ByteArrayOutputStream();
+        CountDownLatch resumeC = new CountDownLatch(1);
+        Thread threadC = new Thread(() -> {
+            byte[] buffer = new byte[100];
+            int numRead;
+            try {
+                while ((numRead = streamC.read(buffer, 0, Math.max(1, Math.min(buffer.length, half - bytesC.size()))))
+                        > 0) {
+                    bytesC.write(buffer, 0, numRead);
+                    if (bytesC.size() == half) {
+                        resumeC.await();
+                    }
+                }
+            } catch (IOException | InterruptedException ex) {
+                // the assertions below tell
+            }
+        });
+
+        Thread threadA = new Thread(readerA);
+        threadA.start();
+        threadC.start();
+        Thread producer = new Thread(() -> {
+            try {
+                subject.readToEof();
+            } catch (IOException ex) {
+                // the assertions below tell
+            }
+        });
+        producer.start();
+        assertTrue(atHalf.await(5, TimeUnit.SECONDS));
+        assertTrue(subject.getConsumerStats().get(1).getSpilledBytes() > 0);
+        streamB.close();
+        pastHalf.countDown();
+        producer.join();
+        resumeC.countDown();
+        threadA.join();
+        threadC.join();
+
+        assertArrayEquals(data, readerA.bytes.toByteArray());
+        assertArrayEquals(data, bytesC.toByteArray());
+        assertTrue(subject.getConsumerStats().get(2).getSpilledBytes() > 0);
+        assertEquals(ConsumerStats.State.COMPLETED, subject.getConsumerStats().get(2).getState());
+    }
+
+    @Test
+    public void readToEof_adaptiveChunksFollowInput() throws Exception {
+        // the input never hands out more than 300 bytes a read, so 4K chunks would be mostly empty
+        byte[] data = new byte[64 * 1024];
+        new Random(11).nextBytes(data);
+        InputStream trickle = new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 300));
+            }
+        };
+        subject = new StreamSplitter(trickle, 4096, 4);
+        subject.setChunkSizing(new ChunkSizing(256, 8192, 4));
+        Reader readerA = new Reader(subject.getStreamA(), 1000);
+        Reader readerB = new Reader(subject.getStreamB(), 77);
+
+        Thread threadA = new Thread(readerA);
+        Thread threadB = new Thread(readerB);
+        threadA.start();
+        threadB.start();
+        subject.readToEof();
+        threadA.join();
+        threadB.join();
+
+        assertEquals(512, subject.getChunkSize());
+        assertArrayEquals(data, readerA.bytes.toByteArray());
+        assertArrayEquals(data, readerB.bytes.toByteArray());
+    }
+
+    @Test
+    public void offer_pushModeWaitsForRoom() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(3).nextBytes(data);
+        subject = new StreamSplitter(100, 2);
+        Reader readerA = new Reader(subject.getStreamA(), 33);
+        Reader readerB = new Reader(subject.getStreamB(), 1000);
+        Thread threadA = new Thread(readerA);
+        Thread threadB = new Thread(readerB);
+        threadA.start();
+        threadB.start();
+
+        Semaphore writable = new Semaphore(0);
+        int offered = 0;
+        while (offered < data.length) {
+            int taken = subject.offer(data, offered, Math.min(250, data.length - offered));
+            offered += taken;
+            if (taken < 250 && offered < data.length) {
+                // a ring of two slots fills up quickly, the callback tells when to go on
+                subject.onWritable(writable::release);
+                assertTrue(writable.tryAcquire(5, TimeUnit.SECONDS));
+            }
+        }
+        subject.close();
+        threadA.join();
+        threadB.join();
+
+        assertArrayEquals(data, readerA.bytes.toByteArray());
+        assertArrayEquals(data, readerB.bytes.toByteArray());
+    }
+
+    @Test
+    public void readNow_callsBackWhenReadable() throws Exception {
+        subject = new StreamSplitter(100, 2);
+        NonBlockingInput input = (NonBlockingInput) subject.getStreamA();
+        byte[] buffer = new byte[100];
+        Semaphore readable = new Semaphore(0);
+
+        assertEquals(0, input.readNow(buffer, 0, buffer.length));
+        input.onReadable(readable::release);
+        assertEquals(0, readable.availablePermits());
+
+        subject.offer(inputBuffer, 0, inputBuffer.length);
+        assertEquals(1, readable.availablePermits());
+        assertEquals(inputBuffer.length, input.readNow(buffer, 0, buffer.length));
+        assertEquals(inputString, new String(buffer, 0, inputBuffer.length));
+
+        input.onReadable(readable::release);
+        subject.close();
+        assertEquals(2, readable.availablePermits());
+        assertEquals(-1, input.readNow(buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void readToEof_digestsInput() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(5).nextBytes(data);
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 100, 2);
+        subject.setDigestAlgorithm("SHA-256");
+        Reader readerA = new Reader(subject.getStreamA(), 70);
+        Thread threadA = new Thread(readerA);
+        threadA.start();
+
+        subject.readToEof();
+        threadA.join();
+
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), subject.getDigest());
+        assertArrayEquals(data, readerA.bytes.toByteArray());
+    }
+
+    @Test
+    public void abort_leavesNoDigest() throws Exception {
+        subject = new StreamSplitter(100, 2);
+        subject.setDigestAlgorithm("SHA-256");
+        subject.offer(inputBuffer, 0, inputBuffer.length);
+        subject.abort(new IOException("client went away"));
+
+        assertNull(subject.getDigest());
+    }
+
+    @Test
+    public void setCancellation_failsConsumersOnCancel() throws Exception {
+        CancellationContext cancellation = new CancellationContext();
+        StreamSplitter splitter = new StreamSplitter(16, 4);
+        splitter.setCancellation(cancellation);
+        InputStream consumer = splitter.addConsumer("a");
+        splitter.offer(new byte[8], 0, 8);
+
+        cancellation.cancel(new IOException("gone"));
+
+        try {
+            while (consumer.read() >= 0) {
+                // drain
+            }
+            fail("the split was cancelled");
+        } catch (IOException ex) {
+            assertSame(cancellation.getCause(), ex.getCause().getCause());
+        }
+        try {
+            splitter.offer(new byte[8], 0, 8);
+            fail("the producer finds out at its next offer");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void abort_failsConsumers() throws Exception {
+        subject = new StreamSplitter(100, 2);
+        Reader readerA = new Reader(subject.getStreamA(), 10);
+        subject.offer(inputBuffer, 0, inputBuffer.length);
+        subject.abort(new IOException("client went away"));
+
+        readerA.run();
+        assertTrue(readerA.caughtException);
+    }
+
+    @Test
+    public void getStats_slowConsumerLimitsSplit() throws Exception {
+        byte[] data = new byte[2000];
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 100, 2);
+        InputStream slow = subject.getStreamA();
+        Thread thread = new Thread(() -> {
+            try {
+                byte[] buffer = new byte[100];
+                while (slow.read(buffer) > 0) {
+                    Thread.sleep(5);
+                }
+            } catch (Exception ex) {
+                // fails the assertions below
+            }
+        });
+        thread.start();
+
+        subject.readToEof();
+        thread.join();
+
+        SplitterStats stats = subject.getStats();
+        assertEquals(data.length, stats.getBytesIn());
+        assertEquals(20, stats.getChunks());
+        assertEquals(SplitterStats.Limit.CONSUMERS, stats.getLimitedBy());
+        assertTrue(stats.getMeanOccupancy() > 1);
+        assertEquals(2, stats.getMaxOccupancy());
+        ConsumerStats consumer = subject.getConsumerStats().get(0);
+        assertTrue(consumer.getBytesPerSecond() > 0);
+        assertTrue(consumer.getStallTime(TimeUnit.MILLISECONDS) > 0);
+    }
+
+    @Test
+    public void addConsumer_sharedTransformRunsOnce() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(7).nextBytes(data);
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 100, 4);
+        AtomicInteger applied = new AtomicInteger();
+        StreamTransform gzip = StreamTransforms.gzip(6);
+        StreamTransform counting = new StreamTransform() {
+            public String getKey() {
+                return gzip.getKey();
+            }
+
+            public String getContentEncoding() {
+                return gzip.getContentEncoding();
+            }
+
+            public InputStream apply(InputStream input) throws IOException {
+                applied.incrementAndGet();
+                return gzip.apply(input);
+            }
+        };
+        Reader plain = new Reader(subject.addConsumer("plain"), 70);
+        Reader zippedA = new Reader(subject.addConsumer("a", ConsumerLimits.NONE,
+                Collections.singletonList(counting)), 70);
+        Reader zippedB = new Reader(subject.addConsumer("b", ConsumerLimits.NONE,
+                Collections.singletonList(counting)), 30);
+        Reader window = new Reader(subject.addConsumer("c", ConsumerLimits.NONE,
+                Arrays.asList(StreamTransforms.range(100, 500), counting)), 70);
+        Thread[] threads = {new Thread(plain), new Thread(zippedA), new Thread(zippedB), new Thread(window)};
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        subject.readToEof();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertArrayEquals(data, plain.bytes.toByteArray());
+        assertArrayEquals(data, IOUtils.toByteArray(
+                new GZIPInputStream(new ByteArrayInputStream(zippedA.bytes.toByteArray()))));
+        assertArrayEquals(zippedA.bytes.toByteArray(), zippedB.bytes.toByteArray());
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 600), IOUtils.toByteArray(
+                new GZIPInputStream(new ByteArrayInputStream(window.bytes.toByteArray()))));
+        assertEquals("once for a and b, once after the range", 2, applied.get());
+    }
+
+    @Test
+    public void replay_restartsConsumerFromStart() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(7).nextBytes(data);
+        File replayDir = tempFolder.newFolder();
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 256, 2);
+        // the head stays in memory, the rest goes to disk
+        subject.setReplayOptions(new ReplayOptions(4096, replayDir, data.length));
+        Reader plain = new Reader(subject.addConsumer("plain"), 100);
+        InputStream first = subject.addConsumer("a", ConsumerLimits.NONE,
+                Collections.<StreamTransform>emptyList(), true);
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        Thread failing = new Thread(() -> {
+            try {
+                // gives up halfway, which does not fail the split under the default policy, and starts over
+                IOUtils.readFully(first, new byte[1000]);
+                first.close();
+                IOUtils.copy(subject.replay("a"), replayed);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread plainThread = new Thread(plain);
+        plainThread.start();
+        failing.start();
+
+        subject.readToEof();
+        plainThread.join();
+        failing.join();
+
+        assertArrayEquals(data, plain.bytes.toByteArray());
+        assertArrayEquals(data, replayed.toByteArray());
+        assertEquals(1, replayDir.list().length);
+        assertTrue(subject.isReplayable("a"));
+        subject.acknowledge("a");
+        assertFalse(subject.isReplayable("a"));
+        assertEquals("the journal is dropped once acknowledged", 0, replayDir.list().length);
+    }
+
+    @Test
+    public void replay_failsOnceJournalIsFull() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(7).nextBytes(data);
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 256, 2);
+        subject.setReplayOptions(new ReplayOptions(1024, tempFolder.newFolder(), 1024));
+        subject.addConsumer("a", ConsumerLimits.NONE, Collections.<StreamTransform>emptyList(), true).close();
+        Reader plain = new Reader(subject.addConsumer("plain"), 100);
+        Thread plainThread = new Thread(plain);
+        plainThread.start();
+
+        subject.readToEof();
+        plainThread.join();
+
+        assertArrayEquals("a full journal does not hold up the split", data, plain.bytes.toByteArray());
+        try {
+            subject.replay("a");
+            fail("the journal only holds 2048 bytes");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("full"));
+        }
+    }
+
+    @Test
+    public void removeConsumer_doesNotFailSplit() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(13).nextBytes(data);
+        // the default policy fails the split when an ordinary consumer closes early
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 256, 2);
+        Reader plain = new Reader(subject.addConsumer("plain"), 100);
+        subject.addConsumer("never-started");
+        subject.addConsumer("never-zipped", ConsumerLimits.NONE,
+                Collections.singletonList(StreamTransforms.gzip(6)));
+
+        subject.removeConsumer("never-started");
+        subject.removeConsumer("never-zipped");
+        Thread plainThread = new Thread(plain);
+        plainThread.start();
+        subject.readToEof();
+        plainThread.join();
+
+        assertFalse(plain.caughtException);
+        assertArrayEquals(data, plain.bytes.toByteArray());
+        assertEquals(Collections.singleton("plain"), subject.getConsumers().keySet());
+    }
+
+    @Test
+    public void addPrefixConsumer_endsAfterPrefix() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(11).nextBytes(data);
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 256, 2);
+        Reader plain = new Reader(subject.addConsumer("plain"), 100);
+        InputStream prefix = subject.addPrefixConsumer("sniff", 1000);
+        ByteArrayOutputStream sniffed = new ByteArrayOutputStream();
+        // reads to its end of stream and then sits on it, which holds up nobody
+        Thread sniffer = new Thread(() -> {
+            try {
+                IOUtils.copy(prefix, sniffed);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread plainThread = new Thread(plain);
+        plainThread.start();
+        sniffer.start();
+
+        subject.readToEof();
+        plainThread.join();
+        sniffer.join();
+
+        assertArrayEquals(data, plain.bytes.toByteArray());
+        assertArrayEquals(Arrays.copyOf(data, 1000), sniffed.toByteArray());
+        ConsumerStats stats = subject.getConsumerStats().get(1);
+        assertEquals(ConsumerStats.State.DONE_EARLY, stats.getState());
+        assertEquals(1000, stats.getBytesRead());
+        assertEquals(-1, prefix.read());
+    }
+
+    @Test
+    public void addPrefixConsumer_closeBeforePrefixEndDoesNotFailSplit() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(12).nextBytes(data);
+        // the default policy fails the split when an ordinary consumer closes early
+        subject = new StreamSplitter(new ByteArrayInputStream(data), 256, 2);
+        Reader plain = new Reader(subject.addConsumer("plain"), 100);
+        InputStream prefix = subject.addPrefixConsumer("sniff", 8192);
+        Thread sniffer = new Thread(() -> {
+            try {
+                IOUtils.readFully(prefix, new byte[10]);
+                prefix.close();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread plainThread = new Thread(plain);
+        plainThread.start();
+        sniffer.start();
+
+        subject.readToEof();
+        plainThread.join();
+        sniffer.join();
+
+        assertFalse(plain.caughtException);
+        assertArrayEquals(data, plain.bytes.toByteArray());
+        assertEquals(ConsumerStats.State.DONE_EARLY, subject.getConsumerStats().get(1).getState());
     }
 
     private class Reader implements Runnable {
 
         private StringBuffer sb = new StringBuffer();
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         private InputStream inputStream;
         private byte[] buffer;
         private boolean caughtException = false;
@@ -149,6 +786,7 @@ public class StreamSplitterTest {
             try {
                 while ((numRead = inputStream.read(buffer, 0, buffer.length)) > 0) {
                     sb.append(new String(buffer, 0, numRead));
+                    bytes.write(buffer, 0, numRead);
                 }
             } catch (Exception ex) {
                 this.caughtException = true;
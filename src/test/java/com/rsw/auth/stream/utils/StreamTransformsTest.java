@@ -0,0 +1,102 @@
+package com.rsw.auth.stream.utils;
+
+import static org.junit.Assert.*;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Created by DAlms on 11/18/16.
+ */
+public class StreamTransformsTest {
+
+    private byte[] data = randomData(100000);
+
+    @Test
+    public void gzip_roundTrip() throws Exception {
+        StreamTransform gzip = StreamTransforms.gzip(6);
+
+        byte[] zipped = IOUtils.toByteArray(gzip.apply(new ByteArrayInputStream(data)));
+
+        assertEquals("gzip", gzip.getContentEncoding());
+        assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(zipped))));
+    }
+
+    @Test
+    public void deflate_roundTrip() throws Exception {
+        byte[] deflated = IOUtils.toByteArray(StreamTransforms.deflate(1).apply(new ByteArrayInputStream(data)));
+
+        assertArrayEquals(data, IOUtils.toByteArray(new InflaterInputStream(new ByteArrayInputStream(deflated))));
+    }
+
+    @Test
+    public void range_windowsInput() throws Exception {
+        StreamTransform range = StreamTransforms.range(1000, 234);
+
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 1234),
+                IOUtils.toByteArray(range.apply(new ByteArrayInputStream(data))));
+        assertNull(range.getContentEncoding());
+    }
+
+    @Test
+    public void range_pastEndIsEmpty() throws Exception {
+        InputStream window = StreamTransforms.range(data.length + 1, 10).apply(new ByteArrayInputStream(data));
+
+        assertEquals(-1, window.read());
+    }
+
+    @Test
+    public void verify_passesMatchingInput() throws Exception {
+        String hex = toHex(MessageDigest.getInstance("SHA-256").digest(data));
+
+        StreamTransform verify = StreamTransforms.verify("SHA-256", hex);
+
+        assertArrayEquals(data, IOUtils.toByteArray(verify.apply(new ByteArrayInputStream(data))));
+    }
+
+    @Test(expected = IOException.class)
+    public void verify_failsAtEndOfChangedInput() throws Exception {
+        String hex = toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        data[500]++;
+
+        IOUtils.toByteArray(StreamTransforms.verify("SHA-256", hex).apply(new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void forName_parsesSpecs() {
+        assertEquals(StreamTransforms.gzip(6).getKey(), StreamTransforms.forName("gzip:6").getKey());
+        assertEquals("deflate", StreamTransforms.forName(" Deflate ").getContentEncoding());
+        assertEquals(StreamTransforms.range(10, 20).getKey(), StreamTransforms.forName("range:10-20").getKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void forName_unknown() {
+        StreamTransforms.forName("zstd");
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] bytes = new byte[size];
+        Random random = new Random(3);
+        // compressible, but not trivially so
+        for (int ix = 0; ix < size; ix++) {
+            bytes[ix] = (byte) ('a' + random.nextInt(8));
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}